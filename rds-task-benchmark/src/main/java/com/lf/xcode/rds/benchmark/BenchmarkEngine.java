@@ -0,0 +1,84 @@
+package com.lf.xcode.rds.benchmark;
+
+import com.lf.xcode.rds.task.rdsbatch.MemTaskEngine;
+import com.lf.xcode.rds.task.rdsbatch.RdsTaskEngine;
+import com.lf.xcode.rds.task.rdsbatch.TaskEngine;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Protocol;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 压测使用的存储引擎
+ * mem:   进程内存储，不需要redis
+ * redis: 本地redis，通过 -Drds.host -Drds.port -Drds.database 指定，默认 127.0.0.1:6379/15
+ * storeCalls 统计组件方法的调用次数，connections 统计redis连接的借出次数(近似往返次数的下限)
+ */
+public class BenchmarkEngine implements AutoCloseable {
+
+    public static final String MEM = "mem";
+    public static final String REDIS = "redis";
+
+    private final TaskEngine engine;
+    private final JedisPool pool;
+    private final LongAdder storeCalls = new LongAdder();
+    private final LongAdder connections = new LongAdder();
+
+    public BenchmarkEngine(String type) {
+        TaskEngine delegate;
+        if (REDIS.equals(type)) {
+            pool = new JedisPool(new JedisPoolConfig(), System.getProperty("rds.host", "127.0.0.1"),
+                    Integer.getInteger("rds.port", 6379), Protocol.DEFAULT_TIMEOUT, null, Integer.getInteger("rds.database", 15));
+            Supplier<Jedis> jedisSupplier = () -> {
+                connections.increment();
+                return pool.getResource();
+            };
+            //不使用分布式锁，只衡量redis本身的往返
+            delegate = new RdsTaskEngine(jedisSupplier, Supplier::get);
+        } else if (MEM.equals(type)) {
+            pool = null;
+            delegate = new MemTaskEngine();
+        } else {
+            throw new IllegalArgumentException("unknown engine " + type);
+        }
+        engine = new CountingTaskEngine(delegate, storeCalls);
+    }
+
+    public TaskEngine getEngine() {
+        return engine;
+    }
+
+    public long storeCalls() {
+        return storeCalls.sum();
+    }
+
+    public long connections() {
+        return connections.sum();
+    }
+
+    /**
+     * key占用的内存，精确统计所有元素
+     *
+     * @param key
+     * @return 单位字节，mem引擎返回-1
+     */
+    public long memoryUsage(String key) {
+        if (pool == null) {
+            return -1;
+        }
+        try (Jedis jedis = pool.getResource()) {
+            Object usage = jedis.eval("return redis.call('memory', 'usage', KEYS[1], 'SAMPLES', '0')", 1, key);
+            return usage == null ? 0 : (Long) usage;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (pool != null) {
+            pool.close();
+        }
+    }
+}
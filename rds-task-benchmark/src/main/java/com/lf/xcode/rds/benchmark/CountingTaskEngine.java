@@ -0,0 +1,144 @@
+package com.lf.xcode.rds.benchmark;
+
+import com.lf.xcode.rds.task.metrics.TaskMetrics;
+import com.lf.xcode.rds.task.rdsbatch.BatchResultRecorder;
+import com.lf.xcode.rds.task.rdsbatch.DeadLetterStore;
+import com.lf.xcode.rds.task.rdsbatch.IdDictionary;
+import com.lf.xcode.rds.task.rdsbatch.PayloadStore;
+import com.lf.xcode.rds.task.rdsbatch.RetryRecorder;
+import com.lf.xcode.rds.task.rdsbatch.TaskEngine;
+import com.lf.xcode.rds.task.rdsbatch.config.BatchTaskConfig;
+import com.lf.xcode.rds.task.rdstask.ExecuteQueue;
+import com.lf.xcode.rds.task.rdstask.PartitionLease;
+import com.lf.xcode.rds.task.rdstask.TaskSignal;
+import com.lf.xcode.rds.task.rdstask.ZsetTask;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 统计存储调用次数的引擎
+ * 代理被包装引擎创建的所有组件，每次组件方法调用计数一次
+ * 组件之间传递时(如认领任务时传入执行队列)会还原为原始组件
+ */
+public class CountingTaskEngine implements TaskEngine {
+
+    private final TaskEngine delegate;
+    private final LongAdder calls;
+    private final Map<Object, Object> targets = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    public CountingTaskEngine(TaskEngine delegate, LongAdder calls) {
+        this.delegate = delegate;
+        this.calls = calls;
+    }
+
+    private <T> T wrap(Class<T> type, T target) {
+        T proxy = type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (p, method, args) -> {
+            if (method.getDeclaringClass() != Object.class) {
+                calls.increment();
+            }
+            if (args != null) {
+                for (int i = 0; i < args.length; i++) {
+                    args[i] = unwrap(args[i]);
+                }
+            }
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }));
+        targets.put(proxy, target);
+        return proxy;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T unwrap(T proxy) {
+        Object target = proxy == null ? null : targets.get(proxy);
+        return target == null ? proxy : (T) target;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public ZsetTask<String> createZsetTask(String taskType, Supplier<Integer> limitSupplier, Supplier<Long> expireFunc) {
+        return wrap(ZsetTask.class, delegate.createZsetTask(taskType, limitSupplier, expireFunc));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public ZsetTask<String> createZsetTask(String taskType, Supplier<Integer> limitSupplier, Supplier<Long> expireFunc,
+                                           Supplier<Long> expireRefreshInterval) {
+        return wrap(ZsetTask.class, delegate.createZsetTask(taskType, limitSupplier, expireFunc, expireRefreshInterval));
+    }
+
+    @Override
+    public ExecuteQueue createExecuteQueue(String name, Supplier<Integer> limit, Supplier<Long> expireFunc,
+                                           Supplier<Boolean> atomicAdmission) {
+        return wrap(ExecuteQueue.class, delegate.createExecuteQueue(name, limit, expireFunc, atomicAdmission));
+    }
+
+    @Override
+    public ExecuteQueue createExecuteQueue(String name, Supplier<Integer> limit, Supplier<Long> expireFunc,
+                                           Supplier<Boolean> atomicAdmission, int shards) {
+        return wrap(ExecuteQueue.class, delegate.createExecuteQueue(name, limit, expireFunc, atomicAdmission, shards));
+    }
+
+    @Override
+    public RetryRecorder createRetryRecorder(BatchTaskConfig config, String prefix, ZsetTask<String> subTask) {
+        return wrap(RetryRecorder.class, delegate.createRetryRecorder(config, prefix, unwrap(subTask)));
+    }
+
+    @Override
+    public RetryRecorder createRetryRecorder(BatchTaskConfig config, String prefix, ZsetTask<String> subTask,
+                                             DeadLetterStore deadLetterStore) {
+        return wrap(RetryRecorder.class, delegate.createRetryRecorder(config, prefix, unwrap(subTask), unwrap(deadLetterStore)));
+    }
+
+    @Override
+    public DeadLetterStore createDeadLetterStore(BatchTaskConfig config, String prefix) {
+        return wrap(DeadLetterStore.class, delegate.createDeadLetterStore(config, prefix));
+    }
+
+    @Override
+    public PayloadStore createPayloadStore(BatchTaskConfig config, String prefix) {
+        return wrap(PayloadStore.class, delegate.createPayloadStore(config, prefix));
+    }
+
+    @Override
+    public IdDictionary createIdDictionary(BatchTaskConfig config, String prefix) {
+        return wrap(IdDictionary.class, delegate.createIdDictionary(config, prefix));
+    }
+
+    @Override
+    public BatchResultRecorder createBatchResultRecorder(BatchTaskConfig config, ZsetTask<String> mainTask, Function<String, String> mainTaskKey,
+                                                         ZsetTask<String> subTask, ExecuteQueue executeQueue, RetryRecorder retryRecorder) {
+        return wrap(BatchResultRecorder.class, delegate.createBatchResultRecorder(config, unwrap(mainTask), mainTaskKey,
+                unwrap(subTask), unwrap(executeQueue), unwrap(retryRecorder)));
+    }
+
+    @Override
+    public TaskSignal createSignal(String name) {
+        return wrap(TaskSignal.class, delegate.createSignal(name));
+    }
+
+    @Override
+    public PartitionLease createPartitionLease(String name, Supplier<Long> leaseTime) {
+        return wrap(PartitionLease.class, delegate.createPartitionLease(name, leaseTime));
+    }
+
+    @Override
+    public <T> T withSession(Supplier<T> action) {
+        return delegate.withSession(action);
+    }
+
+    @Override
+    public TaskMetrics getMetrics() {
+        return delegate.getMetrics();
+    }
+}
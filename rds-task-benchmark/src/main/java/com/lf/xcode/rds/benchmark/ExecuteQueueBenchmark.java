@@ -0,0 +1,108 @@
+package com.lf.xcode.rds.benchmark;
+
+import com.lf.xcode.rds.task.rdstask.ExecuteQueue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 执行队列 入队/出队
+ * admit: 入队并移除，对应一次子任务准入与完成
+ * poll:  按截止时间读取队列中的任务，对应超时清理
+ * renew: 批量续约队列中的任务，对应子任务心跳
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExecuteQueueBenchmark {
+
+    @Param({BenchmarkEngine.MEM})
+    public String engine;
+
+    @Param({"false", "true"})
+    public boolean atomicAdmission;
+
+    @Param({"1000"})
+    public int queueSize;
+
+    //执行队列分片数量，redis引擎大于1时使用分片队列
+    @Param({"1"})
+    public int shards;
+
+    private BenchmarkEngine benchmarkEngine;
+    private ExecuteQueue queue;
+    private long seq;
+    //批量续约的任务
+    private List<String> renewTasks;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        benchmarkEngine = new BenchmarkEngine(engine);
+        queue = benchmarkEngine.getEngine().createExecuteQueue("BENCH:EXECUTE", () -> Integer.MAX_VALUE,
+                () -> TimeUnit.MINUTES.toMillis(10), () -> atomicAdmission, shards);
+        queue.clear();
+        renewTasks = new ArrayList<>();
+        for (int i = 0; i < queueSize; i++) {
+            queue.offer("fill_" + i);
+            if (i < 100) {
+                renewTasks.add("fill_" + i);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        queue.clear();
+        benchmarkEngine.close();
+    }
+
+    @Benchmark
+    public boolean admit(StoreCounters counters) {
+        long calls = benchmarkEngine.storeCalls();
+        long connections = benchmarkEngine.connections();
+        String member = "sub_" + (seq++);
+        boolean added = queue.offer(member);
+        queue.remove(member);
+        counters.storeCalls += benchmarkEngine.storeCalls() - calls;
+        counters.connections += benchmarkEngine.connections() - connections;
+        return added;
+    }
+
+    @Benchmark
+    public Set<String> poll(StoreCounters counters) {
+        long calls = benchmarkEngine.storeCalls();
+        long connections = benchmarkEngine.connections();
+        Set<String> polled = queue.poll(100, System.currentTimeMillis());
+        counters.storeCalls += benchmarkEngine.storeCalls() - calls;
+        counters.connections += benchmarkEngine.connections() - connections;
+        return polled;
+    }
+
+    @Benchmark
+    public Set<String> renew(StoreCounters counters) {
+        long calls = benchmarkEngine.storeCalls();
+        long connections = benchmarkEngine.connections();
+        Set<String> lost = queue.renew(renewTasks, System.currentTimeMillis());
+        counters.storeCalls += benchmarkEngine.storeCalls() - calls;
+        counters.connections += benchmarkEngine.connections() - connections;
+        return lost;
+    }
+}
@@ -0,0 +1,30 @@
+package com.lf.xcode.rds.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * 子任务标识的字节数，结果中与ops/s一起输出
+ * storedBytes/rawBytes 即编码后标识占原始标识的比例
+ * memoryBytes/members 即子任务列表每个子任务占用的内存，只有redis引擎采样
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.EVENTS)
+public class IdBytesCounters {
+
+    public long rawBytes;
+    public long storedBytes;
+    public long memoryBytes;
+    public long members;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        rawBytes = 0;
+        storedBytes = 0;
+        memoryBytes = 0;
+        members = 0;
+    }
+}
@@ -0,0 +1,123 @@
+package com.lf.xcode.rds.benchmark;
+
+import com.lf.xcode.rds.task.constant.TaskType;
+import com.lf.xcode.rds.task.rdsbatch.RdsBatchTaskHandler;
+import com.lf.xcode.rds.task.rdsbatch.config.BatchTaskConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 一次完整的调度循环(超时清理、分配、执行、结果记录)
+ * 每次调用前写入 mainTaskCount 个主任务，每个主任务 subTaskCount 个子任务，调用后清空
+ * 业务方法直接返回成功且不完成子任务，一次循环最多分配 executeTaskLimit 个子任务
+ * 结果中 storeCalls/dispatched 为每个子任务的存储调用次数，connections/dispatched 为redis连接借出次数
+ * 分配率可以通过 -prof gc 查看
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MainLoopBenchmark {
+
+    private static final String MAIN_KEY = "bench_main";
+
+    @Param({BenchmarkEngine.MEM})
+    public String engine;
+
+    @Param({"10", "100"})
+    public int mainTaskCount;
+
+    @Param({"10", "100"})
+    public int subTaskCount;
+
+    @Param({"100"})
+    public int executeTaskLimit;
+
+    @Param({"false", "true"})
+    public boolean claimOnPoll;
+
+    private BenchmarkEngine benchmarkEngine;
+    private RdsBatchTaskHandler handler;
+    private final LongAdder dispatched = new LongAdder();
+    private List<String> mainTaskList;
+    private List<List<String>> subTaskList;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        benchmarkEngine = new BenchmarkEngine(engine);
+        BatchTaskConfig config = new BatchTaskConfig();
+        config.setMainTaskLimit(mainTaskCount);
+        config.setExecuteTaskLimit(executeTaskLimit);
+        config.setTaskType(TaskType.SUB_TASK_NO_LIMIT);
+        config.setMainLoopLockTimeout(0);
+        config.setUseAtomicAdmission(true);
+        config.setUseClaimOnPoll(claimOnPoll);
+        handler = new RdsBatchTaskHandler(benchmarkEngine.getEngine(), config, () -> param -> {
+            dispatched.increment();
+            return true;
+        }, MAIN_KEY, "BENCH");
+        //执行队列按子任务去重，不同主任务的子任务不能重名
+        mainTaskList = new ArrayList<>(mainTaskCount);
+        subTaskList = new ArrayList<>(mainTaskCount);
+        for (int i = 0; i < mainTaskCount; i++) {
+            mainTaskList.add("main_" + i);
+            List<String> subTasks = new ArrayList<>(subTaskCount);
+            for (int j = 0; j < subTaskCount; j++) {
+                subTasks.add("main_" + i + ":sub_" + j);
+            }
+            subTaskList.add(subTasks);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void fill() {
+        for (int i = 0; i < mainTaskCount; i++) {
+            handler.addMainTask(mainTaskList.get(i));
+            handler.addSubTask(mainTaskList.get(i), subTaskList.get(i));
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void clear() {
+        for (String mainTask : mainTaskList) {
+            handler.clearSubTask(mainTask);
+        }
+        handler.clearMainTask();
+        handler.clearExecuteQueue();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        benchmarkEngine.close();
+    }
+
+    @Benchmark
+    public boolean mainLoop(StoreCounters counters) {
+        long calls = benchmarkEngine.storeCalls();
+        long connections = benchmarkEngine.connections();
+        long count = dispatched.sum();
+        boolean result = handler.mainLoop();
+        counters.storeCalls += benchmarkEngine.storeCalls() - calls;
+        counters.connections += benchmarkEngine.connections() - connections;
+        counters.dispatched += dispatched.sum() - count;
+        return result;
+    }
+}
@@ -0,0 +1,89 @@
+package com.lf.xcode.rds.benchmark;
+
+import com.lf.xcode.rds.task.rdsbatch.RetryRecorder;
+import com.lf.xcode.rds.task.rdsbatch.config.BatchTaskConfig;
+import com.lf.xcode.rds.task.rdstask.ZsetTask;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 失败记录
+ * recordFailure: 一次完成计数、判断与删除
+ * addAndGet:     旧的 addRetryRecord + getRetryCount 两次调用
+ * 重试次数设置为不会达到上限，只衡量计数本身
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RetryRecorderBenchmark {
+
+    private static final String MAIN_TASK = "bench_main";
+
+    @Param({BenchmarkEngine.MEM})
+    public String engine;
+
+    @Param({"1000"})
+    public int subTaskCount;
+
+    private BenchmarkEngine benchmarkEngine;
+    private RetryRecorder retryRecorder;
+    private int seq;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        benchmarkEngine = new BenchmarkEngine(engine);
+        BatchTaskConfig config = new BatchTaskConfig();
+        config.setRetryCount(Integer.MAX_VALUE);
+        ZsetTask<String> subTask = benchmarkEngine.getEngine().createZsetTask("BENCH:SUB_TASK", () -> Integer.MAX_VALUE, config::getSubTaskExpireTime);
+        retryRecorder = benchmarkEngine.getEngine().createRetryRecorder(config, "BENCH", subTask);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        retryRecorder.clearRetryRecord(MAIN_TASK);
+        benchmarkEngine.close();
+    }
+
+    private String nextSubTask() {
+        seq = (seq + 1) % subTaskCount;
+        return "sub_" + seq;
+    }
+
+    @Benchmark
+    public boolean recordFailure(StoreCounters counters) {
+        long calls = benchmarkEngine.storeCalls();
+        long connections = benchmarkEngine.connections();
+        boolean dropped = retryRecorder.recordFailure(MAIN_TASK, nextSubTask());
+        counters.storeCalls += benchmarkEngine.storeCalls() - calls;
+        counters.connections += benchmarkEngine.connections() - connections;
+        return dropped;
+    }
+
+    @Benchmark
+    public int addAndGet(StoreCounters counters) {
+        long calls = benchmarkEngine.storeCalls();
+        long connections = benchmarkEngine.connections();
+        String subTask = nextSubTask();
+        retryRecorder.addRetryRecord(MAIN_TASK, subTask);
+        int retryCount = retryRecorder.getRetryCount(MAIN_TASK, subTask);
+        counters.storeCalls += benchmarkEngine.storeCalls() - calls;
+        counters.connections += benchmarkEngine.connections() - connections;
+        return retryCount;
+    }
+}
@@ -0,0 +1,27 @@
+package com.lf.xcode.rds.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * 附加计数器，结果中与ops/s一起输出
+ * storeCalls/dispatched 即每个分配的子任务的存储调用次数
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.EVENTS)
+public class StoreCounters {
+
+    public long storeCalls;
+    public long connections;
+    public long dispatched;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        storeCalls = 0;
+        connections = 0;
+        dispatched = 0;
+    }
+}
@@ -0,0 +1,148 @@
+package com.lf.xcode.rds.benchmark;
+
+import com.lf.xcode.rds.task.rdsbatch.SubTaskIdCodec;
+import com.lf.xcode.rds.task.rdsbatch.config.BatchTaskConfig;
+import com.lf.xcode.rds.task.rdstask.RdsZsetTask;
+import com.lf.xcode.rds.task.rdstask.ZsetTask;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 子任务标识字典编码
+ * addBatch: batchSize个子任务编码后一次写入，标识为url和demo的媒体key
+ * decode:   batchSize个编码后的标识解码，对应分配时的解码
+ * 结果中 storedBytes/rawBytes 为写入的标识字节数比例，memoryBytes/members 为redis引擎子任务列表每个子任务占用的内存
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SubTaskIdBenchmark {
+
+    private static final String TASK_TYPE = "BENCH:ID_SUB_TASK";
+    private static final String KEY = "bench_main";
+    //每写入多少批采样一次内存，memory usage 需要遍历整个列表
+    private static final int MEMORY_SAMPLE_BATCHES = 100;
+
+    @Param({BenchmarkEngine.MEM})
+    public String engine;
+
+    @Param({"false", "true"})
+    public boolean useIdDictionary;
+
+    @Param({"100"})
+    public int batchSize;
+
+    private BenchmarkEngine benchmarkEngine;
+    private ZsetTask<String> zsetTask;
+    private SubTaskIdCodec codec;
+    private long seq;
+    private long added;
+    private long batches;
+    //上次采样时的内存和子任务数量
+    private long sampledUsage;
+    private long sampledAdded;
+    //解码使用的编码后的标识
+    private List<String> members;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        benchmarkEngine = new BenchmarkEngine(engine);
+        zsetTask = benchmarkEngine.getEngine().createZsetTask(TASK_TYPE, () -> Integer.MAX_VALUE, () -> RdsZsetTask.NO_EXPIRE);
+        BatchTaskConfig config = new BatchTaskConfig();
+        codec = new SubTaskIdCodec(benchmarkEngine.getEngine().createIdDictionary(config, "BENCH"), config.getIdDictionaryDelimiters());
+        members = new ArrayList<>(encode(nextBatch()));
+    }
+
+    @TearDown(Level.Iteration)
+    public void clear() {
+        zsetTask.clear(KEY);
+        added = 0;
+        batches = 0;
+        sampledUsage = 0;
+        sampledAdded = 0;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        benchmarkEngine.close();
+    }
+
+    /**
+     * 子任务标识，url按目录、媒体key按编号共享前缀
+     *
+     * @return
+     */
+    private List<String> nextBatch() {
+        List<String> subTaskList = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            long n = seq++;
+            subTaskList.add(n % 2 == 0 ?
+                    "https://cdn.example.com/media/" + (n % 100) + "/" + Long.toHexString(n * 2654435761L) + ".mp4" :
+                    "subMediaId_" + (n % 30) + "_" + Long.toString(n * 2654435761L % 60466176L, 36));
+        }
+        return subTaskList;
+    }
+
+    private Collection<String> encode(List<String> subTaskList) {
+        return useIdDictionary ? codec.encode(subTaskList).values() : subTaskList;
+    }
+
+    @Benchmark
+    public boolean addBatch(IdBytesCounters counters) {
+        List<String> subTaskList = nextBatch();
+        Collection<String> memberList = encode(subTaskList);
+        for (String subTask : subTaskList) {
+            counters.rawBytes += subTask.getBytes(StandardCharsets.UTF_8).length;
+        }
+        for (String member : memberList) {
+            counters.storedBytes += member.getBytes(StandardCharsets.UTF_8).length;
+        }
+        added += memberList.size();
+        boolean result = zsetTask.add(KEY, memberList, 0);
+        if (++batches % MEMORY_SAMPLE_BATCHES == 0) {
+            sampleMemory(counters);
+        }
+        return result;
+    }
+
+    /**
+     * 记录两次采样之间增加的内存和子任务数量，内存引擎不采样
+     *
+     * @param counters
+     */
+    private void sampleMemory(IdBytesCounters counters) {
+        long usage = benchmarkEngine.memoryUsage(RdsZsetTask.XCODE_RDS_TASK_RDS_ZSET_TASK + TASK_TYPE + KEY);
+        if (usage <= 0) {
+            return;
+        }
+        counters.memoryBytes += usage - sampledUsage;
+        counters.members += added - sampledAdded;
+        sampledUsage = usage;
+        sampledAdded = added;
+    }
+
+    @Benchmark
+    public int decode() {
+        return useIdDictionary ? codec.decode(members).size() : members.size();
+    }
+}
@@ -0,0 +1,90 @@
+package com.lf.xcode.rds.benchmark;
+
+import com.lf.xcode.rds.task.rdstask.ZsetTask;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 子任务写入
+ * addOne:   单个子任务写入
+ * addBatch: batchSize个子任务一次写入
+ * 每轮迭代结束清空，避免集合无限增长影响结果
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ZsetTaskBenchmark {
+
+    private static final String KEY = "bench_main";
+
+    @Param({BenchmarkEngine.MEM})
+    public String engine;
+
+    @Param({"100"})
+    public int batchSize;
+
+    @Param({"0", "60000"})
+    public long expireTime;
+
+    private BenchmarkEngine benchmarkEngine;
+    private ZsetTask<String> zsetTask;
+    private long seq;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        benchmarkEngine = new BenchmarkEngine(engine);
+        zsetTask = benchmarkEngine.getEngine().createZsetTask("BENCH:SUB_TASK", () -> Integer.MAX_VALUE, () -> expireTime);
+    }
+
+    @TearDown(Level.Iteration)
+    public void clear() {
+        zsetTask.clear(KEY);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        benchmarkEngine.close();
+    }
+
+    @Benchmark
+    public boolean addOne(StoreCounters counters) {
+        long calls = benchmarkEngine.storeCalls();
+        long connections = benchmarkEngine.connections();
+        boolean added = zsetTask.add(KEY, "sub_" + (seq++), 0);
+        counters.storeCalls += benchmarkEngine.storeCalls() - calls;
+        counters.connections += benchmarkEngine.connections() - connections;
+        return added;
+    }
+
+    @Benchmark
+    public boolean addBatch(StoreCounters counters) {
+        List<String> subTaskList = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            subTaskList.add("sub_" + (seq++));
+        }
+        long calls = benchmarkEngine.storeCalls();
+        long connections = benchmarkEngine.connections();
+        boolean added = zsetTask.add(KEY, subTaskList, 0);
+        counters.storeCalls += benchmarkEngine.storeCalls() - calls;
+        counters.connections += benchmarkEngine.connections() - connections;
+        return added;
+    }
+}
@@ -33,6 +33,16 @@ public class DemoRdsConfig extends BatchTaskConfig {
         this.setBizThreadPoolSize(20);
         this.setMainLoopSize(5);
         this.setRetryCount(2);
+        //失败后1秒再重试，之后每次翻倍
+        this.setRetryBackoffBase(1000);
+        this.setUseAtomicAdmission(true);
+        //事件驱动调度，10秒没有信号兜底调度一次
+        this.setUseEventDispatch(true);
+        this.setDispatchMaxIdle(10 * 1000);
+        //批量写入子任务时，10秒内同一个key只设置一次过期时间
+        this.setExpireRefreshInterval(10 * 1000);
+        //主任务等待每超过1分钟提升一级优先级，避免低优先级主任务饿死
+        this.setMainTaskAgingInterval(60 * 1000);
     }
 
 
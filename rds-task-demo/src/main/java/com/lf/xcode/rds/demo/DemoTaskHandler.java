@@ -2,15 +2,24 @@ package com.lf.xcode.rds.demo;
 
 import com.lf.xcode.rds.demo.base.BaseUtil;
 import com.lf.xcode.rds.demo.base.RedisClient;
+import com.lf.xcode.rds.task.metrics.MicrometerTaskMetrics;
 import com.lf.xcode.rds.task.rdsbatch.RdsBatchTaskHandler;
+import com.lf.xcode.rds.task.rdsbatch.RdsTaskEngine;
+import com.lf.xcode.rds.task.rdsbatch.param.DeadLetter;
 import com.lf.xcode.rds.task.rdsbatch.param.InvokeParam;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.integration.redis.util.RedisLockRegistry;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
@@ -36,13 +45,35 @@ public class DemoTaskHandler {
     private final RedisLockRegistry redisLockRegistry;
     //业务执行方法
     private Function<InvokeParam, Boolean> bizInvokeFunc;
+    //任务配置
+    private final DemoRdsConfig config;
 
 
-    public DemoTaskHandler(RedisLockRegistry redisLockRegistry, RedisClient redisClient, DemoRdsConfig config) {
+    public DemoTaskHandler(RedisLockRegistry redisLockRegistry, RedisClient redisClient, DemoRdsConfig config,
+                           MeterRegistry meterRegistry) {
         this.redisLockRegistry = redisLockRegistry;
-        //初始化分布式任务处理器
-        this.rdsBatchTaskHandler = new RdsBatchTaskHandler(redisClient::getJedis, generateLock(config), config,
-                () -> bizInvokeFunc, MAIN_KEY, PREFIX);
+        this.config = config;
+        //初始化分布式任务处理器，调度指标通过actuator暴露
+        RdsTaskEngine engine = new RdsTaskEngine(redisClient::getJedis, generateLock(config), new MicrometerTaskMetrics(meterRegistry));
+        this.rdsBatchTaskHandler = new RdsBatchTaskHandler(engine, config, () -> bizInvokeFunc, MAIN_KEY, PREFIX);
+        if (config.isUseEventDispatch()) {
+            //事件驱动调度，保证只有一个pod执行，分区模式下每个pod调度自己持有的分区
+            rdsBatchTaskHandler.startEventDispatch(isPartitioned() ? null :
+                    action -> BaseUtil.safeOnePodDo(redisLockRegistry, POD_LOCK_KEY, action, 3 * 1000));
+        }
+    }
+
+    /**
+     * 下线时释放持有的分区，其他pod下次调度即可接管
+     */
+    @PreDestroy
+    public void destroy() {
+        rdsBatchTaskHandler.stopEventDispatch();
+        rdsBatchTaskHandler.releasePartitions();
+    }
+
+    private boolean isPartitioned() {
+        return config.getPartitionCount() > 1;
     }
 
     /**
@@ -54,11 +85,38 @@ public class DemoTaskHandler {
         this.bizInvokeFunc = bizFunction;
     }
 
+    /**
+     * 注册异步业务执行的方法，注册后优先于同步方法执行
+     *
+     * @param asyncBizFunction
+     */
+    public void registerAsyncBizInvoke(Function<InvokeParam, CompletionStage<Boolean>> asyncBizFunction) {
+        rdsBatchTaskHandler.registerAsyncBizHandler(() -> asyncBizFunction);
+    }
+
+    /**
+     * 注册批量业务执行的方法，注册后优先于单个任务的方法执行
+     *
+     * @param batchBizFunction 返回 子任务->是否成功
+     */
+    public void registerBatchBizInvoke(Function<List<InvokeParam>, Map<String, Boolean>> batchBizFunction) {
+        rdsBatchTaskHandler.registerBatchBizHandler(() -> batchBizFunction);
+    }
+
     /**
      * 任务调度
      */
     @Scheduled(cron = "*/10 * * * * ?")
     public void schedule() {
+        if (config.isUseEventDispatch()) {
+            //由事件驱动调度线程执行
+            return;
+        }
+        if (isPartitioned()) {
+            //分区模式下每个pod调度自己持有的分区
+            rdsBatchTaskHandler.mainLoop();
+            return;
+        }
         //保证只有一个pod执行
         BaseUtil.safeOnePodDo(redisLockRegistry, POD_LOCK_KEY, rdsBatchTaskHandler::mainLoop, 3 * 1000);
     }
@@ -81,6 +139,50 @@ public class DemoTaskHandler {
         rdsBatchTaskHandler.addSubTask(mainTaskId, subTaskId);
     }
 
+    /**
+     * 添加延迟子任务，到达最早执行时间后才会执行
+     *
+     * @param mainTaskId
+     * @param subTaskId
+     * @param notBefore  最早执行时间 单位ms
+     */
+    public void addSubTask(String mainTaskId, List<String> subTaskId, long notBefore) {
+        rdsBatchTaskHandler.addSubTask(mainTaskId, subTaskId, notBefore);
+    }
+
+    /**
+     * 添加带负载的子任务，需要开启 usePayloadStore，执行时通过 InvokeParam.getPayload 获取
+     *
+     * @param mainTaskId
+     * @param payloads   子任务 -> 负载
+     */
+    public void addSubTaskWithPayload(String mainTaskId, Map<String, String> payloads) {
+        rdsBatchTaskHandler.addSubTaskWithPayload(mainTaskId, payloads);
+    }
+
+    /**
+     * 流式批量添加子任务，按窗口分块写入，超过限制时等待空闲
+     *
+     * @param mainTaskId
+     * @param subTaskIds
+     * @param timeout    等待空闲的超时时间 单位ms
+     * @return 写入的数量，超时未写入的子任务保留在迭代器中
+     */
+    public long ingestSubTask(String mainTaskId, Iterator<String> subTaskIds, long timeout) {
+        return rdsBatchTaskHandler.ingestSubTask(mainTaskId, subTaskIds, timeout);
+    }
+
+    /**
+     * 子任务心跳，开启租约后长时间执行的子任务需要在租约内定期调用
+     *
+     * @param mainTaskId
+     * @param subTaskId
+     * @return false:子任务已经不在执行中，可以停止执行
+     */
+    public boolean heartbeat(String mainTaskId, String subTaskId) {
+        return rdsBatchTaskHandler.heartbeat(mainTaskId, subTaskId);
+    }
+
     /**
      * 添加主任务
      *
@@ -90,6 +192,48 @@ public class DemoTaskHandler {
         rdsBatchTaskHandler.addMainTask(mainTaskId);
     }
 
+    /**
+     * 添加主任务并指定优先级，0-9 越小越先调度
+     *
+     * @param mainTaskId
+     * @param priority
+     */
+    public void addMainTask(String mainTaskId, int priority) {
+        rdsBatchTaskHandler.addMainTask(mainTaskId, priority);
+    }
+
+    /**
+     * 添加主任务并指定优先级和权重，WEIGHTED_FAIR 分配策略下按权重公平分配
+     *
+     * @param mainTaskId
+     * @param priority
+     * @param weight
+     */
+    public void addMainTask(String mainTaskId, int priority, double weight) {
+        rdsBatchTaskHandler.addMainTask(mainTaskId, priority, weight);
+    }
+
+    /**
+     * 等待主任务额度后添加子任务和主任务
+     *
+     * @param mainTaskId
+     * @param subTaskIds
+     * @param timeout    等待的最长时间 单位ms
+     * @return false:等待超时，没有添加
+     */
+    public boolean submitMainTask(String mainTaskId, List<String> subTaskIds, long timeout) {
+        return rdsBatchTaskHandler.submitMainTask(mainTaskId, subTaskIds, timeout);
+    }
+
+    /**
+     * 等待主任务额度，有空闲额度时完成，多个等待者先进先出
+     *
+     * @return
+     */
+    public CompletableFuture<Void> awaitMainTaskSlot() {
+        return rdsBatchTaskHandler.awaitMainTaskSlot();
+    }
+
     /**
      * 获取主任务当前数量
      */
@@ -97,6 +241,38 @@ public class DemoTaskHandler {
         return rdsBatchTaskHandler.mainTaskFreeSize();
     }
 
+    /**
+     * 分页查询死信，按进入死信的时间从早到晚
+     *
+     * @param pageNum  从1开始
+     * @param pageSize
+     * @return
+     */
+    public List<DeadLetter> listDeadLetters(int pageNum, int pageSize) {
+        return rdsBatchTaskHandler.listDeadLetters(pageNum, pageSize);
+    }
+
+    /**
+     * 重放死信，限速执行
+     *
+     * @param max           最多重放的数量
+     * @param ratePerSecond 每秒重放的数量，小于等于0不限速
+     * @return 重放的数量
+     */
+    public int replayDeadLetters(int max, int ratePerSecond) {
+        return rdsBatchTaskHandler.replayDeadLetters(max, 100, ratePerSecond);
+    }
+
+    /**
+     * 清理指定时间之前的死信
+     *
+     * @param deadBefore 单位ms
+     * @return 清理的数量
+     */
+    public int purgeDeadLetters(long deadBefore) {
+        return rdsBatchTaskHandler.purgeDeadLetters(deadBefore);
+    }
+
     /**
      * 生成分布式锁的回调执行方法
      *
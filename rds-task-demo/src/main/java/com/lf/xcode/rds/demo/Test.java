@@ -63,31 +63,16 @@ public class Test {
         //添加任务
         new Thread(() -> {
             Iterator<Map.Entry<String, List<String>>> iterator = allTask.entrySet().iterator();
-            while (!allTask.isEmpty()) {
-                log.info("开始扫描任务");
-                //主任务是否达到阈值
-                if (demoTaskHandler.getMainTaskFreeSize() > 0) {
-                    while (iterator.hasNext()) {
-                        if ((demoTaskHandler.getMainTaskFreeSize() > 0)) {
-                            Map.Entry<String, List<String>> next = iterator.next();
-                            String mediaId = next.getKey();
-                            List<String> batchSubMediaIds = next.getValue();
-                            //添加子任务，添加完毕后由 DemoTaskHandler.schedule 进行调度
-                            demoTaskHandler.addSubTask(mediaId, batchSubMediaIds);
-                            //绑定主任务
-                            demoTaskHandler.addMainTask(mediaId);
-                            //删除已经添加的任务
-                            iterator.remove();
-                        } else {
-                            break;
-                        }
-                    }
-                }
-                try {
-                    TimeUnit.SECONDS.sleep(5);
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
+            while (iterator.hasNext()) {
+                Map.Entry<String, List<String>> next = iterator.next();
+                String mediaId = next.getKey();
+                List<String> batchSubMediaIds = next.getValue();
+                //等待主任务额度后添加子任务和主任务，添加完毕后由 DemoTaskHandler.schedule 进行调度
+                while (!demoTaskHandler.submitMainTask(mediaId, batchSubMediaIds, 60 * 1000)) {
+                    log.info("等待主任务额度超时 mediaId:{}", mediaId);
                 }
+                //删除已经添加的任务
+                iterator.remove();
             }
         }).start();
     }
@@ -43,6 +43,8 @@ public class RedisClient {
         redisClientConfiguration.setHostName(redisHost);
         redisClientConfiguration.setPassword(redisPassword);
         redisClientConfiguration.setPort(Integer.valueOf(redisPort));
+        //连接池直接使用7号库，借出连接时不需要再select
+        redisClientConfiguration.setDatabase(7);
 
         JedisPoolConfig jedisPoolConfig = new JedisPoolConfig();
         // 如果赋值为-1，则表示不限制；如果pool已经分配了maxActive个jedis实例，则此时pool的状态为exhausted(耗尽)。
@@ -66,8 +68,6 @@ public class RedisClient {
     }
 
     public Jedis getJedis() {
-        Jedis jedis = this.pool.getResource();
-        jedis.select(7);
-        return jedis;
+        return this.pool.getResource();
     }
 }
@@ -0,0 +1,144 @@
+package com.lf.xcode.rds.task.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 基于micrometer的任务调度指标
+ * micrometer-core 为可选依赖，使用时需要业务方引入
+ * 指标:
+ * rds.task.phase          调度阶段耗时 tag: handler,phase
+ * rds.task.redis          redis操作耗时 tag: operation,outcome
+ * rds.task.queue.size     执行队列占用 tag: handler
+ * rds.task.queue.free     执行队列空闲 tag: handler
+ * rds.task.main.wait      主任务等待的子任务数量 tag: handler,main_task，主任务删除后移除
+ * rds.task.dispatched/success/failure/retry.dropped/timeout.reaped  子任务计数 tag: handler
+ * rds.task.biz            业务方法耗时(带直方图) tag: handler,mode,outcome
+ */
+public class MicrometerTaskMetrics implements TaskMetrics {
+
+    private static final String SUCCESS = "success";
+    private static final String FAILURE = "failure";
+
+    private final MeterRegistry registry;
+    //meter缓存，避免每次记录都查找注册表
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> gauges = new ConcurrentHashMap<>();
+    private final Map<String, Meter.Id> waitGaugeIds = new ConcurrentHashMap<>();
+
+    public MicrometerTaskMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    private static String outcome(boolean success) {
+        return success ? SUCCESS : FAILURE;
+    }
+
+    @Override
+    public void recordPhase(String handler, String phase, long nanos) {
+        timers.computeIfAbsent("phase:" + handler + ":" + phase, k -> Timer.builder("rds.task.phase")
+                .tags("handler", handler, "phase", phase)
+                .register(registry)).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void recordRedisOperation(String operation, long nanos, boolean success) {
+        String outcome = outcome(success);
+        timers.computeIfAbsent("redis:" + operation + ":" + outcome, k -> Timer.builder("rds.task.redis")
+                .tags("operation", operation, "outcome", outcome)
+                .register(registry)).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void recordQueue(String handler, int size, int freeSize) {
+        gauge("rds.task.queue.size", Tags.of("handler", handler)).set(size);
+        gauge("rds.task.queue.free", Tags.of("handler", handler)).set(freeSize);
+    }
+
+    @Override
+    public void recordWait(String handler, String mainTask, int wait) {
+        Tags tags = Tags.of("handler", handler, "main_task", mainTask);
+        gauge("rds.task.main.wait", tags).set(wait);
+    }
+
+    @Override
+    public void removeMainTask(String handler, String mainTask) {
+        String key = gaugeKey("rds.task.main.wait", Tags.of("handler", handler, "main_task", mainTask));
+        gauges.remove(key);
+        Meter.Id id = waitGaugeIds.remove(key);
+        if (id != null) {
+            registry.remove(id);
+        }
+    }
+
+    @Override
+    public void incrementDispatched(String handler, int count) {
+        counter("rds.task.dispatched", handler).increment(count);
+    }
+
+    @Override
+    public void incrementSuccess(String handler, int count) {
+        counter("rds.task.success", handler).increment(count);
+    }
+
+    @Override
+    public void incrementFailure(String handler, int count) {
+        counter("rds.task.failure", handler).increment(count);
+    }
+
+    @Override
+    public void incrementRetryDropped(String handler, int count) {
+        counter("rds.task.retry.dropped", handler).increment(count);
+    }
+
+    @Override
+    public void incrementTimeoutReaped(String handler, int count) {
+        counter("rds.task.timeout.reaped", handler).increment(count);
+    }
+
+    @Override
+    public void incrementTimeoutRequeued(String handler, int count) {
+        counter("rds.task.timeout.requeued", handler).increment(count);
+    }
+
+    @Override
+    public void recordBiz(String handler, String mode, long nanos, boolean success) {
+        String outcome = outcome(success);
+        timers.computeIfAbsent("biz:" + handler + ":" + mode + ":" + outcome, k -> Timer.builder("rds.task.biz")
+                .tags("handler", handler, "mode", mode, "outcome", outcome)
+                .publishPercentileHistogram()
+                .register(registry)).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    private Counter counter(String name, String handler) {
+        return counters.computeIfAbsent(name + ":" + handler, k -> Counter.builder(name)
+                .tag("handler", handler)
+                .register(registry));
+    }
+
+    private static String gaugeKey(String name, Tags tags) {
+        return name + ":" + tags;
+    }
+
+    private AtomicInteger gauge(String name, Tags tags) {
+        String key = gaugeKey(name, tags);
+        return gauges.computeIfAbsent(key, k -> {
+            AtomicInteger value = new AtomicInteger();
+            Gauge gauge = Gauge.builder(name, value, AtomicInteger::get).tags(tags).register(registry);
+            if ("rds.task.main.wait".equals(name)) {
+                waitGaugeIds.put(key, gauge.getId());
+            }
+            return value;
+        });
+    }
+}
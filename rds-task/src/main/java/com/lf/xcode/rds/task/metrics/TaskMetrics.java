@@ -0,0 +1,119 @@
+package com.lf.xcode.rds.task.metrics;
+
+/**
+ * 任务调度指标
+ * 1.默认不记录(NOOP)，可以使用 MicrometerTaskMetrics 或自行实现接入监控系统
+ * 2.调度线程、业务线程、异步回调都会调用，实现必须线程安全、耗时短且不抛出异常
+ * 3.handler 为处理器的任务前缀
+ */
+public interface TaskMetrics {
+
+    TaskMetrics NOOP = new TaskMetrics() {
+    };
+
+    //调度阶段
+    String PHASE_PRE_HANDLE = "preHandle";
+    String PHASE_MAIN_HANDLE = "mainHandle";
+    String PHASE_POST_HANDLE = "postHandle";
+
+    //业务执行方式
+    String BIZ_SYNC = "sync";
+    String BIZ_ASYNC = "async";
+    String BIZ_BATCH = "batch";
+
+    /**
+     * 调度阶段耗时
+     *
+     * @param handler
+     * @param phase   preHandle/mainHandle/postHandle
+     * @param nanos
+     */
+    default void recordPhase(String handler, String phase, long nanos) {
+    }
+
+    /**
+     * redis操作耗时，每次记录对应一次往返(pipeline、lua脚本也是一次)
+     *
+     * @param operation 操作名，如 zset.add queue.offer
+     * @param nanos
+     * @param success   是否执行成功
+     */
+    default void recordRedisOperation(String operation, long nanos, boolean success) {
+    }
+
+    /**
+     * 执行队列占用情况
+     *
+     * @param handler
+     * @param size     执行中的数量
+     * @param freeSize 空闲数量
+     */
+    default void recordQueue(String handler, int size, int freeSize) {
+    }
+
+    /**
+     * 主任务等待执行的子任务数量
+     *
+     * @param handler
+     * @param mainTask
+     * @param wait
+     */
+    default void recordWait(String handler, String mainTask, int wait) {
+    }
+
+    /**
+     * 主任务已删除，清理主任务维度的指标
+     *
+     * @param handler
+     * @param mainTask
+     */
+    default void removeMainTask(String handler, String mainTask) {
+    }
+
+    /**
+     * 进入执行队列并分发给业务的子任务数量
+     */
+    default void incrementDispatched(String handler, int count) {
+    }
+
+    /**
+     * 业务执行成功的子任务数量
+     */
+    default void incrementSuccess(String handler, int count) {
+    }
+
+    /**
+     * 业务执行失败的子任务数量
+     */
+    default void incrementFailure(String handler, int count) {
+    }
+
+    /**
+     * 超过重试次数被删除的子任务数量
+     */
+    default void incrementRetryDropped(String handler, int count) {
+    }
+
+    /**
+     * 执行超时被清理的子任务数量
+     */
+    default void incrementTimeoutReaped(String handler, int count) {
+    }
+
+    /**
+     * 执行超时后恢复为等待状态重新执行的子任务数量
+     */
+    default void incrementTimeoutRequeued(String handler, int count) {
+    }
+
+    /**
+     * 业务方法耗时
+     *
+     * @param handler
+     * @param mode    sync/async/batch
+     * @param nanos
+     * @param success
+     */
+    default void recordBiz(String handler, String mode, long nanos, boolean success) {
+    }
+}
@@ -1,20 +1,42 @@
 package com.lf.xcode.rds.task.rdsbatch;
 
+import cn.hutool.core.util.IdUtil;
 import com.lf.xcode.rds.task.constant.TaskType;
+import com.lf.xcode.rds.task.metrics.TaskMetrics;
 import com.lf.xcode.rds.task.rdsbatch.config.BatchTaskConfig;
+import com.lf.xcode.rds.task.rdsbatch.param.DeadLetter;
 import com.lf.xcode.rds.task.rdsbatch.param.InvokeParam;
-import com.lf.xcode.rds.task.rdstask.RdsQueue;
-import com.lf.xcode.rds.task.rdstask.RdsZsetTask;
+import com.lf.xcode.rds.task.rdstask.ExecuteQueue;
+import com.lf.xcode.rds.task.rdstask.PartitionLease;
+import com.lf.xcode.rds.task.rdstask.RdsKeys;
+import com.lf.xcode.rds.task.rdstask.TaskSignal;
+import com.lf.xcode.rds.task.rdstask.ZsetTask;
+import com.lf.xcode.rds.util.ExceptionUtil;
 import lombok.extern.slf4j.Slf4j;
 import redis.clients.jedis.Jedis;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
 import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 @Slf4j
 public abstract class AbstractBatchTaskHandler<S> implements BatchTaskHandler<String, S> {
@@ -22,53 +44,118 @@ public abstract class AbstractBatchTaskHandler<S> implements BatchTaskHandler<St
     protected Function<Supplier<Boolean>, Boolean> distributedLock;
     protected BatchTaskConfig config;
 
+    //存储引擎
+    protected final TaskEngine engine;
     //子任务
-    protected final RdsZsetTask rdsSubTask;
+    protected final ZsetTask<String> rdsSubTask;
     //主任务
-    protected final RdsZsetTask rdsMainTask;
+    protected final ZsetTask<String> rdsMainTask;
+    //加权公平分配的状态 WEIGHT:主任务->权重 DEFICIT:主任务->赤字
+    protected final ZsetTask<String> rdsFairTask;
     //执行队列
-    protected final RdsQueue executeQueue;
+    protected final ExecuteQueue executeQueue;
     //重试记录器
     protected final RetryRecorder retryRecorder;
+    //死信，超过最大重试次数的子任务
+    protected final DeadLetterStore deadLetterStore;
+    //子任务负载
+    protected final PayloadStore payloadStore;
+    //子任务标识编码
+    protected final SubTaskIdCodec idCodec;
+    //是否使用字典编码子任务标识，创建时确定，运行中修改配置不生效
+    protected final boolean useIdDictionary;
+    //调度唤醒信号
+    protected final TaskSignal dispatchSignal;
+    //主任务额度释放信号，删除主任务时发送
+    protected final TaskSignal mainTaskSlotSignal;
+    //调度指标
+    protected final TaskMetrics metrics;
+    //主任务分区租约
+    protected final PartitionLease partitionLease;
+    //当前节点标识，用于持有分区租约
+    protected final String owner = IdUtil.fastSimpleUUID();
     //业务处理器
     protected final Supplier<Function<InvokeParam, Boolean>> bizHandler;
+    //异步业务处理器，注册后优先使用，执行结果在回调中处理
+    protected volatile Supplier<Function<InvokeParam, CompletionStage<Boolean>>> asyncBizHandler;
 
-    //父任务-默认优先级
-    protected final static double DEFAULT_PRIORITY = 1;
-    //父任务-高优先级（进行中的任务）
-    protected final static double DEFAULT_PRIORITY_HIGH = 0;
     //子任务状态：等待执行
     protected final static double SUB_TASK_WAIT = 0;
     //子任务状态: 执行中
     protected final static double SUB_TASK_RUNNING = 1;
+    //加权公平分配-默认权重
+    protected final static double DEFAULT_WEIGHT = 1;
+    //加权公平分配-权重
+    protected final static String FAIR_WEIGHT = "WEIGHT";
+    //加权公平分配-赤字
+    protected final static String FAIR_DEFICIT = "DEFICIT";
+    //流式添加子任务背压时的检查间隔 单位ms
+    private final static long INGEST_WAIT_INTERVAL = 100;
     //所有任务的前缀
     protected final String prefix;
+    //存储key的前缀，开启cluster hash tag时为 {prefix}
+    protected final String keyPrefix;
     //主任务的key
     protected final String mainTaskName;
 
     protected ExecutorService bizThreadPool;
 
+    //等待主任务额度的生产者，先进先出
+    private final Queue<CompletableFuture<Void>> mainTaskSlotWaiters = new ConcurrentLinkedQueue<>();
+    //分配主任务额度的线程，没有等待者时退出
+    private Thread mainTaskSlotWaker;
+    private final Object mainTaskSlotLock = new Object();
+
     AbstractBatchTaskHandler(Supplier<Jedis> jedisSupplier,
                              Function<Supplier<Boolean>, Boolean> distributedLock,
                              BatchTaskConfig config,
                              Supplier<Function<InvokeParam, Boolean>> bizHandler,
                              String mainKey, String prefix) {
+        this(new RdsTaskEngine(jedisSupplier, distributedLock), config, bizHandler, mainKey, prefix);
         this.jedisSupplier = jedisSupplier;
         this.distributedLock = distributedLock;
+    }
+
+    AbstractBatchTaskHandler(TaskEngine engine,
+                             BatchTaskConfig config,
+                             Supplier<Function<InvokeParam, Boolean>> bizHandler,
+                             String mainKey, String prefix) {
+        this.engine = engine;
+        this.metrics = engine.getMetrics();
         this.config = config;
         this.bizHandler = bizHandler;
         this.mainTaskName = mainKey;
         this.prefix = prefix;
+        this.keyPrefix = config.isUseClusterHashTag() ? RdsKeys.hashTag(prefix) : prefix;
         //主任务列表
-        rdsMainTask = new RdsZsetTask(prefix + ":MAIN_TASK", jedisSupplier, config::getMainTaskLimit, config::getMainTaskExpireTime);
+        rdsMainTask = engine.createZsetTask(keyPrefix + ":MAIN_TASK", config::getMainTaskLimit, config::getMainTaskExpireTime,
+                config::getExpireRefreshInterval);
+        //加权公平分配的状态，随主任务删除
+        rdsFairTask = engine.createZsetTask(keyPrefix + ":FAIR", () -> Integer.MAX_VALUE, config::getMainTaskExpireTime,
+                config::getExpireRefreshInterval);
         //子任务limit
         Supplier<Integer> subLimitSupplier = config.getTaskType() == TaskType.SUB_TASK_NO_LIMIT ? () -> Integer.MAX_VALUE : config::getSubTaskLimit;
         //子任务列表
-        rdsSubTask = new RdsZsetTask(prefix + ":SUB_TASK", jedisSupplier, subLimitSupplier, config::getSubTaskExpireTime);
+        rdsSubTask = engine.createZsetTask(keyPrefix + ":SUB_TASK", subLimitSupplier, config::getSubTaskExpireTime,
+                config::getExpireRefreshInterval);
         //执行队列
-        executeQueue = new RdsQueue(prefix + ":EXECUTE", jedisSupplier, distributedLock, config::getExecuteTaskLimit, config::getTaskTimeout);
+        executeQueue = engine.createExecuteQueue(keyPrefix + ":EXECUTE", config::getExecuteTaskLimit, config::getTaskTimeout,
+                this::isAtomicAdmission, config.getExecuteQueueShards());
+        //死信
+        deadLetterStore = engine.createDeadLetterStore(config, keyPrefix);
+        //子任务负载
+        payloadStore = engine.createPayloadStore(config, keyPrefix);
+        //子任务标识编码，开关和分隔符只在创建时读取一次，同一个标识的编码结果不会在运行中变化
+        useIdDictionary = config.isUseIdDictionary();
+        idCodec = new SubTaskIdCodec(engine.createIdDictionary(config, keyPrefix), config.getIdDictionaryDelimiters());
         //重试记录
-        retryRecorder = new RetryRecorder(config, prefix, jedisSupplier);
+        retryRecorder = engine.createRetryRecorder(config, keyPrefix, rdsSubTask, deadLetterStore);
+        //调度唤醒信号
+        dispatchSignal = engine.createSignal(keyPrefix + ":DISPATCH");
+        //主任务额度释放信号
+        mainTaskSlotSignal = engine.createSignal(keyPrefix + ":MAIN_SLOT");
+        //分区租约
+        partitionLease = engine.createPartitionLease(keyPrefix + ":DISPATCH", config::getPartitionLeaseTime);
         //线程池初始化
         if (config.isUseBizThreadPool()) {
             bizThreadPool = Executors.newFixedThreadPool(config.getBizThreadPoolSize());
@@ -78,6 +165,16 @@ public abstract class AbstractBatchTaskHandler<S> implements BatchTaskHandler<St
 
     protected abstract void preHandle();
 
+    /**
+     * 注册异步业务处理器
+     * 业务方法返回CompletionStage，不再占用调度线程或业务线程池等待业务执行完成
+     *
+     * @param asyncBizHandler
+     */
+    public void registerAsyncBizHandler(Supplier<Function<InvokeParam, CompletionStage<Boolean>>> asyncBizHandler) {
+        this.asyncBizHandler = asyncBizHandler;
+    }
+
     protected abstract void mainHandle();
 
     protected abstract void postHandle();
@@ -85,11 +182,121 @@ public abstract class AbstractBatchTaskHandler<S> implements BatchTaskHandler<St
 
     /**
      * 提高主任务优先级
+     * 分数减去 IN_PROGRESS_BOOST 标记为进行中，已经是进行中的主任务不再写入
      *
      * @param mainTask
      */
     protected void upgradeMainTaskPriority(String mainTask) {
-        rdsMainTask.set(mainTaskName, mainTask, DEFAULT_PRIORITY_HIGH);
+        rdsMainTask.upgrade(mainTaskKey(mainTask), mainTask,
+                MainTaskPriority.inProgressScore(config.getMainTaskAgingInterval(), System.currentTimeMillis()),
+                0, -MainTaskPriority.IN_PROGRESS_BOOST);
+    }
+
+    /**
+     * 是否使用原子准入
+     * 分区模式下多个节点同时调度，必须使用原子准入；分片执行队列只支持原子准入
+     *
+     * @return
+     */
+    protected boolean isAtomicAdmission() {
+        return config.isUseAtomicAdmission() || config.getPartitionCount() > 1 || config.getExecuteQueueShards() > 1;
+    }
+
+    /**
+     * 主任务所在的主任务列表
+     * 分区模式下按主任务hash分区，否则为主任务的key
+     *
+     * @param mainTask
+     * @return
+     */
+    protected String mainTaskKey(String mainTask) {
+        int partitionCount = config.getPartitionCount();
+        if (partitionCount <= 1) {
+            return mainTaskName;
+        }
+        return partitionKey(Math.floorMod(mainTask.hashCode(), partitionCount));
+    }
+
+    /**
+     * 分区的主任务列表
+     *
+     * @param partition
+     * @return
+     */
+    protected String partitionKey(int partition) {
+        return mainTaskName + ":P" + partition;
+    }
+
+    /**
+     * 所有的主任务列表
+     *
+     * @return
+     */
+    protected List<String> mainTaskKeys() {
+        int partitionCount = config.getPartitionCount();
+        if (partitionCount <= 1) {
+            return Collections.singletonList(mainTaskName);
+        }
+        List<String> keys = new ArrayList<>(partitionCount);
+        for (int i = 0; i < partitionCount; i++) {
+            keys.add(partitionKey(i));
+        }
+        return keys;
+    }
+
+    /**
+     * 当前节点需要调度的主任务列表
+     * 分区模式下登记节点并平衡租约，只返回持有租约的分区
+     *
+     * @return
+     */
+    protected List<String> leaseMainTaskKeys() {
+        int partitionCount = config.getPartitionCount();
+        if (partitionCount <= 1) {
+            return Collections.singletonList(mainTaskName);
+        }
+        List<String> keys = new ArrayList<>();
+        for (Integer partition : partitionLease.balance(owner, partitionCount)) {
+            keys.add(partitionKey(partition));
+        }
+        return keys;
+    }
+
+    /**
+     * 释放当前节点持有的分区，节点下线时调用，其他节点下次调度即可接管
+     */
+    public void releasePartitions() {
+        if (config.getPartitionCount() > 1) {
+            partitionLease.release(owner, config.getPartitionCount());
+        }
+    }
+
+    /**
+     * 所有主任务列表的主任务数量
+     *
+     * @return
+     */
+    private int mainTaskSize() {
+        List<String> keys = mainTaskKeys();
+        if (keys.size() == 1) {
+            return rdsMainTask.size(keys.get(0));
+        }
+        return rdsMainTask.sizes(keys, MainTaskPriority.MIN_SCORE, MainTaskPriority.MAX_SCORE).values().stream().mapToInt(Integer::intValue).sum();
+    }
+
+    /**
+     * 唤醒调度线程
+     * 信号只用于降低调度延迟，发送失败时由最长空闲时间兜底，不影响业务
+     */
+    protected void signalDispatch() {
+        if (!config.isUseEventDispatch()) {
+            return;
+        }
+        try {
+            dispatchSignal.signal();
+        } catch (Exception e) {
+            log.info("signal_dispatch_failed {}", ExceptionUtil.getMessage(e));
+        }
     }
 
     /**
@@ -98,7 +305,152 @@ public abstract class AbstractBatchTaskHandler<S> implements BatchTaskHandler<St
      * @param mainTask
      */
     protected void delMainTask(String mainTask) {
-        rdsMainTask.remove(mainTaskName, mainTask);
+        rdsMainTask.remove(mainTaskKey(mainTask), mainTask);
+        if (AllocationPolicy.WEIGHTED_FAIR == config.getAllocationPolicy()) {
+            rdsFairTask.remove(FAIR_WEIGHT, mainTask);
+            rdsFairTask.remove(FAIR_DEFICIT, mainTask);
+        }
+        metrics.removeMainTask(prefix, mainTask);
+        signalMainTaskSlot();
+    }
+
+    /**
+     * 通知等待主任务额度的生产者
+     * 信号只用于降低等待延迟，发送失败时由 mainTaskSlotCheckInterval 定期检查兜底
+     */
+    protected void signalMainTaskSlot() {
+        try {
+            mainTaskSlotSignal.signal();
+        } catch (Exception e) {
+            log.info("signal_main_task_slot_failed {}", ExceptionUtil.getMessage(e));
+        }
+    }
+
+    /**
+     * 等待主任务额度
+     * 1.没有其他等待者且有空闲额度时立即完成，否则排队，按调用顺序先进先出分配
+     * 2.主任务被删除时收到信号立即分配，同时每 mainTaskSlotCheckInterval 检查一次兜底其他节点的删除
+     * 3.完成只表示当时有空闲额度，不预占额度，完成后应尽快添加主任务
+     * 4.回调在分配线程中执行，耗时的操作使用 thenRunAsync，放弃等待时调用 cancel
+     *
+     * @return
+     */
+    public CompletableFuture<Void> awaitMainTaskSlot() {
+        CompletableFuture<Void> slot = new CompletableFuture<>();
+        if (mainTaskSlotWaiters.isEmpty() && mainTaskFreeSize() > 0) {
+            slot.complete(null);
+            return slot;
+        }
+        mainTaskSlotWaiters.add(slot);
+        startMainTaskSlotWaker();
+        return slot;
+    }
+
+    /**
+     * 等待主任务额度后添加子任务和主任务，主任务已经在列表中时直接添加
+     *
+     * @param mainTask
+     * @param subTaskList
+     * @param timeout     等待主任务额度的最长时间 单位ms
+     * @return false:等待超时或线程中断，没有添加
+     */
+    public boolean submitMainTask(String mainTask, Collection<String> subTaskList, long timeout) {
+        if (!hasMainTask(mainTask) && !awaitMainTaskSlot(timeout)) {
+            return false;
+        }
+        return engine.withSession(() -> {
+            addSubTask(mainTask, subTaskList);
+            return addMainTask(mainTask);
+        });
+    }
+
+    /**
+     * 主任务是否在主任务列表中
+     *
+     * @param mainTask
+     * @return
+     */
+    private boolean hasMainTask(String mainTask) {
+        return !rdsMainTask.scores(mainTaskKey(mainTask), Collections.singletonList(mainTask)).isEmpty();
+    }
+
+    /**
+     * 阻塞等待主任务额度
+     *
+     * @param timeout 最长等待时间 单位ms
+     * @return false:等待超时或线程中断
+     */
+    private boolean awaitMainTaskSlot(long timeout) {
+        CompletableFuture<Void> slot = awaitMainTaskSlot();
+        try {
+            slot.get(timeout, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (TimeoutException | ExecutionException e) {
+            //超时
+        }
+        //取消失败说明已经分配到额度
+        return !slot.cancel(false);
+    }
+
+    /**
+     * 启动分配主任务额度的线程
+     */
+    private void startMainTaskSlotWaker() {
+        synchronized (mainTaskSlotLock) {
+            if (mainTaskSlotWaker != null) {
+                return;
+            }
+            mainTaskSlotWaker = new Thread(() -> {
+                while (!Thread.currentThread().isInterrupted()) {
+                    try {
+                        grantMainTaskSlots();
+                        synchronized (mainTaskSlotLock) {
+                            //加入等待者后才会检查线程是否存在，这里确认没有等待者再退出
+                            if (mainTaskSlotWaiters.isEmpty()) {
+                                mainTaskSlotWaker = null;
+                                return;
+                            }
+                        }
+                        mainTaskSlotSignal.await(config.getMainTaskSlotCheckInterval());
+                    } catch (Exception e) {
+                        log.info("grant_main_task_slot_failed {}", ExceptionUtil.getMessage(e, 10));
+                        try {
+                            //避免redis不可用时空转
+                            TimeUnit.MILLISECONDS.sleep(config.getMainTaskSlotCheckInterval());
+                        } catch (InterruptedException interruptedException) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }
+                synchronized (mainTaskSlotLock) {
+                    mainTaskSlotWaker = null;
+                }
+            }, "rds-main-task-slot-" + prefix);
+            mainTaskSlotWaker.setDaemon(true);
+            mainTaskSlotWaker.start();
+        }
+    }
+
+    /**
+     * 按空闲额度依次完成等待者，已经取消的等待者不占用额度
+     */
+    private void grantMainTaskSlots() {
+        mainTaskSlotWaiters.removeIf(CompletableFuture::isDone);
+        if (mainTaskSlotWaiters.isEmpty()) {
+            return;
+        }
+        int free = mainTaskFreeSize();
+        while (free > 0) {
+            CompletableFuture<Void> slot = mainTaskSlotWaiters.poll();
+            if (slot == null) {
+                break;
+            }
+            if (slot.complete(null)) {
+                free--;
+            }
+        }
     }
 
 
@@ -110,7 +462,23 @@ public abstract class AbstractBatchTaskHandler<S> implements BatchTaskHandler<St
      * @return
      */
     public boolean addSubTask(String mainTask, String subTask) {
-        return rdsSubTask.add(mainTask, subTask, SUB_TASK_WAIT);
+        return addSubTask(mainTask, subTask, 0);
+    }
+
+    /**
+     * 添加延迟子任务，到达最早执行时间后才会被分配
+     *
+     * @param mainTask
+     * @param subTask
+     * @param notBefore 最早执行时间 单位ms，小于等于0立即执行
+     * @return
+     */
+    public boolean addSubTask(String mainTask, String subTask, long notBefore) {
+        return engine.withSession(() -> {
+            boolean result = rdsSubTask.add(mainTask, member(subTask), SubTaskSchedule.waitScore(notBefore));
+            signalDispatch();
+            return result;
+        });
     }
 
 
@@ -122,18 +490,299 @@ public abstract class AbstractBatchTaskHandler<S> implements BatchTaskHandler<St
      * @return
      */
     public boolean addSubTask(String mainTask, Collection<String> subTaskList) {
-        return rdsSubTask.add(mainTask, subTaskList, SUB_TASK_WAIT);
+        return addSubTask(mainTask, subTaskList, 0);
+    }
+
+    /**
+     * 添加延迟子任务，到达最早执行时间后才会被分配
+     *
+     * @param mainTask
+     * @param subTaskList
+     * @param notBefore   最早执行时间 单位ms，小于等于0立即执行
+     * @return
+     */
+    public boolean addSubTask(String mainTask, Collection<String> subTaskList, long notBefore) {
+        return engine.withSession(() -> {
+            boolean result = rdsSubTask.add(mainTask, members(subTaskList), SubTaskSchedule.waitScore(notBefore));
+            signalDispatch();
+            return result;
+        });
+    }
+
+    /**
+     * 批量添加子任务，每个子任务分别指定最早执行时间
+     *
+     * @param mainTask
+     * @param notBefore 子任务 -> 最早执行时间 单位ms，小于等于0立即执行
+     * @return
+     */
+    public boolean addSubTask(String mainTask, Map<String, Long> notBefore) {
+        return engine.withSession(() -> {
+            Map<String, String> members = members(notBefore);
+            Map<String, Double> scores = new HashMap<>(notBefore.size());
+            notBefore.forEach((subTask, time) -> scores.put(members.get(subTask), SubTaskSchedule.waitScore(time == null ? 0 : time)));
+            boolean result = rdsSubTask.set(mainTask, scores);
+            signalDispatch();
+            return result;
+        });
     }
 
     /**
-     * 添加一个主任务
+     * 添加带负载的子任务，需要开启 usePayloadStore
+     * 先写入负载再添加子任务，分配到的子任务一定能读到负载
+     * 子任务完成(finishSubTask)时删除负载，进入死信的子任务保留负载用于重放
+     *
+     * @param mainTask
+     * @param payloads 子任务 -> 负载
+     * @return
+     */
+    public boolean addSubTaskWithPayload(String mainTask, Map<String, String> payloads) {
+        if (!config.isUsePayloadStore()) {
+            throw new IllegalStateException("usePayloadStore is disabled");
+        }
+        return engine.withSession(() -> {
+            Map<String, String> members = members(payloads);
+            Map<String, String> memberPayloads = new HashMap<>(payloads.size());
+            payloads.forEach((subTask, payload) -> memberPayloads.put(members.get(subTask), payload));
+            payloadStore.put(mainTask, memberPayloads);
+            boolean result = rdsSubTask.add(mainTask, memberPayloads.keySet(), SUB_TASK_WAIT);
+            signalDispatch();
+            return result;
+        });
+    }
+
+    /**
+     * 执行参数
+     * 开启 usePayloadStore 时一次往返读取这批子任务的负载，开启 useIdDictionary 时解码为业务的子任务标识
+     *
+     * @param mainTask
+     * @param memberList 子任务在存储中的标识
+     * @return 存储中的标识 -> 执行参数
+     */
+    protected Map<String, InvokeParam> invokeParams(String mainTask, Collection<String> memberList) {
+        Map<String, String> payloads = config.isUsePayloadStore() && !memberList.isEmpty() ?
+                payloadStore.get(mainTask, memberList) : Collections.emptyMap();
+        Map<String, String> subTasks = useIdDictionary && !memberList.isEmpty() ?
+                idCodec.decode(memberList) : Collections.emptyMap();
+        Map<String, InvokeParam> params = new LinkedHashMap<>(memberList.size() * 2);
+        for (String member : memberList) {
+            params.put(member, new InvokeParam().setMainTask(mainTask).setSubTask(subTasks.getOrDefault(member, member))
+                    .setPayload(payloads.get(member)));
+        }
+        return params;
+    }
+
+    /**
+     * 子任务在存储中的标识，开启 useIdDictionary 时为编码后的标识
+     *
+     * @param subTask
+     * @return
+     */
+    protected String member(String subTask) {
+        return useIdDictionary ? idCodec.encode(subTask) : subTask;
+    }
+
+    /**
+     * 子任务在存储中的标识
+     *
+     * @param subTaskList
+     * @return 顺序与参数一致
+     */
+    protected Collection<String> members(Collection<String> subTaskList) {
+        return useIdDictionary ? idCodec.encode(subTaskList).values() : subTaskList;
+    }
+
+    /**
+     * 子任务在存储中的标识
+     *
+     * @param subTaskMap 子任务 -> 任意值
+     * @return 子任务 -> 存储中的标识
+     */
+    private Map<String, String> members(Map<String, ?> subTaskMap) {
+        if (useIdDictionary) {
+            return idCodec.encode(subTaskMap.keySet());
+        }
+        Map<String, String> members = new HashMap<>(subTaskMap.size());
+        subTaskMap.keySet().forEach(subTask -> members.put(subTask, subTask));
+        return members;
+    }
+
+    /**
+     * 流式添加子任务，适用于子任务数量很大的主任务
+     * 1.按 ingestChunkSize 分块，每块一次zadd，每次往返发送 ingestWindow 个块，客户端只缓存一个窗口的子任务
+     * 2.主任务不在列表中且主任务数量达到 mainTaskLimit 时，等待有空闲的主任务额度后再写入
+     * 3.子任务限制模式下子任务数量达到 subTaskLimit 时，等待子任务执行完成后再写入
+     * 4.每个窗口写入后加入主任务并唤醒调度，写入期间即可开始执行
+     *
+     * @param mainTask
+     * @param subTasks
+     * @param timeout  背压等待的最长时间 单位ms，超时返回，迭代器停在未写入的位置，可以再次调用继续写入
+     * @return 写入的子任务数量
+     */
+    public long ingestSubTask(String mainTask, Iterator<String> subTasks, long timeout) {
+        long start = System.currentTimeMillis();
+        if (!subTasks.hasNext()) {
+            return 0;
+        }
+        //主任务数量限制
+        if (!hasMainTask(mainTask) && !awaitMainTaskSlot(timeout)) {
+            return 0;
+        }
+        long added = 0;
+        while (subTasks.hasNext()) {
+            int chunkSize = Math.max(config.getIngestChunkSize(), 1);
+            int free = chunkSize * Math.max(config.getIngestWindow(), 1);
+            if (config.getTaskType() == TaskType.SUB_TASK_LIMIT) {
+                //子任务数量限制
+                int subFree = awaitFree(() -> rdsSubTask.freeSize(mainTask), start, timeout);
+                if (subFree <= 0) {
+                    break;
+                }
+                free = Math.min(free, subFree);
+            }
+            List<List<String>> chunks = new ArrayList<>();
+            List<String> chunk = null;
+            int count = 0;
+            while (count < free && subTasks.hasNext()) {
+                if (chunk == null || chunk.size() >= chunkSize) {
+                    chunk = new ArrayList<>(Math.min(chunkSize, free - count));
+                    chunks.add(chunk);
+                }
+                chunk.add(subTasks.next());
+                count++;
+            }
+            engine.withSession(() -> {
+                rdsSubTask.addChunks(mainTask, memberChunks(chunks), SUB_TASK_WAIT);
+                //所有子任务执行后主任务会被删除，每个窗口写入后重新加入
+                return addMainTask(mainTask);
+            });
+            added += count;
+        }
+        return added;
+    }
+
+    /**
+     * 流式添加子任务
+     *
+     * @param mainTask
+     * @param subTasks
+     * @param timeout  背压等待的最长时间 单位ms
+     * @return 写入的子任务数量
+     * @see #ingestSubTask(String, Iterator, long)
+     */
+    public long ingestSubTask(String mainTask, Stream<String> subTasks, long timeout) {
+        return ingestSubTask(mainTask, subTasks.iterator(), timeout);
+    }
+
+    /**
+     * 子任务在存储中的标识，开启 useIdDictionary 时整个窗口一起编码
+     *
+     * @param chunks
+     * @return
+     */
+    private List<? extends Collection<String>> memberChunks(List<List<String>> chunks) {
+        if (!useIdDictionary) {
+            return chunks;
+        }
+        List<String> all = new ArrayList<>();
+        chunks.forEach(all::addAll);
+        Map<String, String> members = idCodec.encode(all);
+        List<List<String>> result = new ArrayList<>(chunks.size());
+        for (List<String> chunk : chunks) {
+            List<String> memberChunk = new ArrayList<>(chunk.size());
+            chunk.forEach(subTask -> memberChunk.add(members.get(subTask)));
+            result.add(memberChunk);
+        }
+        return result;
+    }
+
+    /**
+     * 等待有空闲额度
+     *
+     * @param freeSize 空闲数量
+     * @param start    开始等待的时间
+     * @param timeout  最长等待时间 单位ms
+     * @return 空闲数量，超时或线程中断返回0
+     */
+    private int awaitFree(Supplier<Integer> freeSize, long start, long timeout) {
+        while (true) {
+            int free = freeSize.get();
+            if (free > 0) {
+                return free;
+            }
+            if (System.currentTimeMillis() - start >= timeout) {
+                return 0;
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(INGEST_WAIT_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * 添加一个主任务，并指定优先级和加权公平分配的权重
+     * 权重只在 WEIGHTED_FAIR 分配策略下生效，权重越大分到的执行数量越多
+     * 主任务已经存在时只更新权重，保留原来的分数
+     *
+     * @param mainTask
+     * @param priority 优先级 0-9，越小越先调度
+     * @param weight   大于0
+     * @return
+     */
+    public boolean addMainTask(String mainTask, int priority, double weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("weight must be positive");
+        }
+        MainTaskPriority.check(priority);
+        if (AllocationPolicy.WEIGHTED_FAIR != config.getAllocationPolicy()) {
+            return addMainTask(mainTask, priority);
+        }
+        return engine.withSession(() -> {
+            rdsFairTask.set(FAIR_WEIGHT, mainTask, weight);
+            return addMainTask(mainTask, priority);
+        });
+    }
+
+    /**
+     * 添加一个主任务，使用默认优先级
+     * 主任务已经存在时保留原来的分数，不再覆盖为默认优先级：进行中的主任务不会被降级，等待中的主任务不会丢失已经累积的等待时间
      *
      * @param mainTask
      * @return
      */
     public boolean addMainTask(String mainTask) {
-        //默认低优先级
-        return rdsMainTask.add(mainTaskName, mainTask, DEFAULT_PRIORITY);
+        return addMainTask(mainTask, MainTaskPriority.DEFAULT);
+    }
+
+    /**
+     * 添加一个主任务，并指定优先级
+     * 主任务已经存在时保留原来的分数，不会覆盖进行中的状态和已经累积的等待时间
+     *
+     * @param mainTask
+     * @param priority 优先级 0-9，越小越先调度
+     * @return
+     */
+    public boolean addMainTask(String mainTask, int priority) {
+        MainTaskPriority.check(priority);
+        return engine.withSession(() -> {
+            putMainTask(mainTask, priority);
+            signalDispatch();
+            return true;
+        });
+    }
+
+    /**
+     * 写入主任务，不唤醒调度，已经存在时保留原来的分数
+     *
+     * @param mainTask
+     * @param priority
+     */
+    private void putMainTask(String mainTask, int priority) {
+        double score = MainTaskPriority.score(priority, config.getMainTaskAgingInterval(), System.currentTimeMillis());
+        rdsMainTask.addIfAbsent(mainTaskKey(mainTask), mainTask, score);
     }
 
     /**
@@ -144,7 +793,7 @@ public abstract class AbstractBatchTaskHandler<S> implements BatchTaskHandler<St
      */
 
     public boolean mainTaskHasFree() {
-        return rdsMainTask.size(mainTaskName) < config.getMainTaskLimit();
+        return mainTaskSize() < config.getMainTaskLimit();
     }
 
     /**
@@ -154,7 +803,7 @@ public abstract class AbstractBatchTaskHandler<S> implements BatchTaskHandler<St
      */
     @Override
     public int mainTaskFreeSize() {
-        return config.getMainTaskLimit() - rdsMainTask.size(mainTaskName);
+        return config.getMainTaskLimit() - mainTaskSize();
     }
 
     /**
@@ -163,7 +812,9 @@ public abstract class AbstractBatchTaskHandler<S> implements BatchTaskHandler<St
      * @return
      */
     public boolean clearMainTask() {
-        rdsMainTask.clear(mainTaskName);
+        mainTaskKeys().forEach(rdsMainTask::clear);
+        rdsFairTask.clear(FAIR_WEIGHT);
+        rdsFairTask.clear(FAIR_DEFICIT);
         return true;
     }
 
@@ -176,15 +827,19 @@ public abstract class AbstractBatchTaskHandler<S> implements BatchTaskHandler<St
     public boolean clearAll() {
         Set<String> mainTaskList;
         do {
-            int size = rdsMainTask.size(mainTaskName);
+            int size = mainTaskSize();
             log.info("mainTaskList size={}", size);
-            mainTaskList = rdsMainTask.poll(mainTaskName, 0, -1, 0, 100);
-            if (mainTaskList != null) {
-                for (String mainTask : mainTaskList) {
-                    //删除所有的子任务
-                    clearSubTask(mainTask);
-                    //剔除主任务
-                    rdsMainTask.remove(mainTaskName, mainTask);
+            mainTaskList = new HashSet<>();
+            for (String mainKey : mainTaskKeys()) {
+                Set<String> keyTaskList = rdsMainTask.poll(mainKey, MainTaskPriority.MIN_SCORE, MainTaskPriority.MAX_SCORE, 0, 100);
+                if (keyTaskList != null) {
+                    for (String mainTask : keyTaskList) {
+                        //删除所有的子任务
+                        clearSubTask(mainTask);
+                        //剔除主任务
+                        rdsMainTask.remove(mainKey, mainTask);
+                    }
+                    mainTaskList.addAll(keyTaskList);
                 }
             }
             try {
@@ -208,6 +863,10 @@ public abstract class AbstractBatchTaskHandler<S> implements BatchTaskHandler<St
      */
     public boolean clearSubTask(String mainTask) {
         rdsSubTask.clear(mainTask);
+        //删除重试记录
+        retryRecorder.clearRetryRecord(mainTask);
+        //删除负载
+        payloadStore.clear(mainTask);
         return true;
     }
 
@@ -231,11 +890,61 @@ public abstract class AbstractBatchTaskHandler<S> implements BatchTaskHandler<St
      * @return
      */
     public boolean finishSubTask(String mainTask, String subTask) {
-        //删除子任务
-        rdsSubTask.remove(mainTask, subTask);
-        //删除限流
-        executeQueue.remove(subTask);
-        return true;
+        //业务回调中调用，多个操作在一个会话中完成
+        return engine.withSession(() -> {
+            String member = member(subTask);
+            //删除子任务
+            rdsSubTask.remove(mainTask, member);
+            if (config.isUsePayloadStore()) {
+                payloadStore.remove(mainTask, Collections.singletonList(member));
+            }
+            //删除限流
+            executeQueue.remove(member);
+            //执行队列有空闲，唤醒调度
+            signalDispatch();
+            return true;
+        });
+    }
+
+    /**
+     * 子任务心跳，续约执行租约
+     * 开启租约(taskLeaseTime)后，执行时间超过租约的子任务需要在租约到期前调用，否则会被超时回收
+     *
+     * @param mainTask
+     * @param subTask
+     * @return false:子任务已经不在执行中(已完成或已超时回收)，业务可以停止执行
+     */
+    public boolean heartbeat(String mainTask, String subTask) {
+        return heartbeat(Collections.singletonList(new InvokeParam().setMainTask(mainTask).setSubTask(subTask))).isEmpty();
+    }
+
+    /**
+     * 批量心跳，一次往返完成一批子任务的续约
+     *
+     * @param tasks
+     * @return 已经不在执行中(已完成或已超时回收)的子任务
+     */
+    public List<InvokeParam> heartbeat(Collection<InvokeParam> tasks) {
+        if (tasks.isEmpty()) {
+            return Collections.emptyList();
+        }
+        //子任务 -> 执行参数，开启 useIdDictionary 时转换为存储中的标识
+        Map<String, InvokeParam> taskMap = new LinkedHashMap<>();
+        for (InvokeParam task : tasks) {
+            taskMap.put(task.getSubTask(), task);
+        }
+        if (useIdDictionary) {
+            Map<String, String> members = idCodec.encode(new ArrayList<>(taskMap.keySet()));
+            Map<String, InvokeParam> memberMap = new LinkedHashMap<>();
+            taskMap.forEach((subTask, task) -> memberMap.put(members.get(subTask), task));
+            taskMap = memberMap;
+        }
+        Set<String> lost = executeQueue.renew(taskMap.keySet(), System.currentTimeMillis());
+        List<InvokeParam> result = new ArrayList<>(lost.size());
+        for (String subTask : lost) {
+            result.add(taskMap.get(subTask));
+        }
+        return result;
     }
 
     /**
@@ -258,5 +967,119 @@ public abstract class AbstractBatchTaskHandler<S> implements BatchTaskHandler<St
         executeQueue.clear();
     }
 
+    /**
+     * 死信数量
+     *
+     * @return
+     */
+    public int deadLetterSize() {
+        return deadLetterStore.size();
+    }
+
+    /**
+     * 分页获取死信，按进入死信的时间从早到晚
+     *
+     * @param pageNum  从1开始
+     * @param pageSize
+     * @return
+     */
+    public List<DeadLetter> listDeadLetters(int pageNum, int pageSize) {
+        List<DeadLetter> deadLetters = deadLetterStore.list(pageNum, pageSize);
+        if (!useIdDictionary || deadLetters.isEmpty()) {
+            return deadLetters;
+        }
+        //死信中保存的是存储中的标识，返回解码为业务的子任务标识的副本，内存存储返回的是保存的对象
+        List<String> memberList = new ArrayList<>(deadLetters.size());
+        deadLetters.forEach(deadLetter -> memberList.add(deadLetter.getSubTask()));
+        Map<String, String> subTasks = idCodec.decode(memberList);
+        List<DeadLetter> result = new ArrayList<>(deadLetters.size());
+        for (DeadLetter deadLetter : deadLetters) {
+            result.add(new DeadLetter().setMainTask(deadLetter.getMainTask()).setSubTask(subTasks.get(deadLetter.getSubTask()))
+                    .setError(deadLetter.getError()).setAttempts(deadLetter.getAttempts()).setDeadAt(deadLetter.getDeadAt()));
+        }
+        return result;
+    }
+
+    /**
+     * 删除指定时间之前进入死信的死信
+     *
+     * @param deadBefore 单位ms
+     * @return 删除的数量
+     */
+    public int purgeDeadLetters(long deadBefore) {
+        return deadLetterStore.purge(deadBefore);
+    }
+
+    /**
+     * 重放死信
+     * 1.从最早的死信开始，每批先原子地取出并删除，多个节点同时重放时不会重复添加
+     * 2.每个主任务的子任务按 ingestChunkSize 分块，一次往返写入，主任务已经删除时以默认优先级重新添加
+     * 3.每批只唤醒一次调度，重新添加失败时这一批写回死信
+     * 重放的子任务重新计算重试次数
+     *
+     * @param max           最多重放的数量
+     * @param batchSize     每批数量
+     * @param ratePerSecond 每秒最多重放的数量，小于等于0不限速
+     * @return 重放的数量
+     */
+    public int replayDeadLetters(int max, int batchSize, int ratePerSecond) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+        int replayed = 0;
+        while (replayed < max) {
+            long start = System.currentTimeMillis();
+            List<DeadLetter> batch = deadLetterStore.pop(Math.min(batchSize, max - replayed));
+            if (batch.isEmpty()) {
+                break;
+            }
+            int chunkSize = Math.max(config.getIngestChunkSize(), 1);
+            //主任务 -> 分块的子任务
+            Map<String, List<List<String>>> chunkMap = new LinkedHashMap<>();
+            for (DeadLetter deadLetter : batch) {
+                List<List<String>> chunks = chunkMap.computeIfAbsent(deadLetter.getMainTask(), k -> new ArrayList<>());
+                if (chunks.isEmpty() || chunks.get(chunks.size() - 1).size() >= chunkSize) {
+                    chunks.add(new ArrayList<>());
+                }
+                chunks.get(chunks.size() - 1).add(deadLetter.getSubTask());
+            }
+            try {
+                engine.withSession(() -> {
+                    chunkMap.forEach((mainTask, chunks) -> {
+                        rdsSubTask.addChunks(mainTask, chunks, SUB_TASK_WAIT);
+                        putMainTask(mainTask, MainTaskPriority.DEFAULT);
+                    });
+                    return null;
+                });
+            } catch (RuntimeException e) {
+                //已经从死信中取出，写回后再抛出
+                batch.forEach(deadLetterStore::add);
+                throw e;
+            }
+            signalDispatch();
+            replayed += batch.size();
+            log.info("replayDeadLetters batch {} total {}", batch.size(), replayed);
+            if (ratePerSecond > 0) {
+                long wait = batch.size() * 1000L / ratePerSecond - (System.currentTimeMillis() - start);
+                if (wait > 0) {
+                    try {
+                        TimeUnit.MILLISECONDS.sleep(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+        }
+        return replayed;
+    }
+
+    /**
+     * 清空死信
+     */
+    public void clearDeadLetters() {
+        deadLetterStore.clear();
+    }
+
 
 }
@@ -6,4 +6,5 @@ package com.lf.xcode.rds.task.rdsbatch;
 public enum AllocationPolicy {
     RANDOM, //随机分配,
     ORDER, //顺序分配
+    WEIGHTED_FAIR, //加权公平分配(赤字轮询)，权重在添加主任务时指定，赤字跨调度保存
 }
@@ -0,0 +1,37 @@
+package com.lf.xcode.rds.task.rdsbatch;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 批量任务结果记录
+ * 1.成功的子任务更新为执行中状态，主任务更新为高优先级
+ * 2.失败的子任务从执行队列中剔除，增加重试次数，超过最大重试次数则删除子任务并记录死信
+ * 3.执行超时的子任务同失败处理，只处理仍在执行队列中的子任务，多个节点同时回收时只有一个生效
+ */
+public interface BatchResultRecorder {
+
+    /**
+     * 记录一批子任务的执行结果
+     *
+     * @param mainTask
+     * @param success  执行成功的子任务
+     * @param failed   执行失败的子任务 -> 失败原因
+     * @param claimed  子任务是否已经认领，认领的子任务已经是执行中状态，失败时恢复为等待状态
+     * @return 超过最大重试次数被删除的子任务
+     */
+    Set<String> record(String mainTask, Collection<String> success, Map<String, String> failed, boolean claimed);
+
+    /**
+     * 回收一个主任务下执行超时的子任务
+     * 仍在执行队列中的子任务从队列中剔除，增加重试次数并恢复为等待状态，超过最大重试次数则删除子任务并记录死信
+     * 已经不在执行队列中(已完成或已被回收)或已经删除的子任务跳过
+     *
+     * @param mainTask
+     * @param subTasks 执行超时的子任务
+     * @param error    失败原因
+     * @return 回收的子任务 -> 是否超过最大重试次数被删除
+     */
+    Map<String, Boolean> reclaim(String mainTask, Collection<String> subTasks, String error);
+}
@@ -0,0 +1,73 @@
+package com.lf.xcode.rds.task.rdsbatch;
+
+import com.lf.xcode.rds.task.rdsbatch.param.DeadLetter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * 死信存储
+ * 每个处理器前缀一个，记录超过最大重试次数被删除的子任务，按进入死信的时间排序
+ * 同一个子任务只保留最后一次
+ */
+public interface DeadLetterStore {
+
+    //lua脚本中每次最多删除的死信数量，避免unpack超过栈上限，调小 deadLetterMaxSize 后分多次删除
+    int TRIM_BATCH_SIZE = 1000;
+
+    /**
+     * 死信的唯一标识，与lua脚本中的 dead_letter 一致
+     *
+     * @param mainTask
+     * @param subTask
+     * @return 主任务utf-8字节数:主任务:子任务
+     */
+    static String id(String mainTask, String subTask) {
+        return mainTask.getBytes(StandardCharsets.UTF_8).length + ":" + mainTask + ":" + subTask;
+    }
+
+    /**
+     * 记录死信，超过 deadLetterMaxSize 时删除最早的死信
+     *
+     * @param deadLetter
+     */
+    void add(DeadLetter deadLetter);
+
+    int size();
+
+    /**
+     * 分页获取死信，按进入死信的时间从早到晚
+     *
+     * @param pageNum  从1开始
+     * @param pageSize
+     * @return
+     */
+    List<DeadLetter> list(int pageNum, int pageSize);
+
+    /**
+     * 取出并删除最早的死信，读取和删除是原子的，多个节点同时重放时同一个死信只会被取出一次
+     *
+     * @param size 数量，每次最多 TRIM_BATCH_SIZE 个
+     * @return
+     */
+    List<DeadLetter> pop(int size);
+
+    /**
+     * 删除死信
+     *
+     * @param deadLetters
+     * @return 删除的数量
+     */
+    int remove(Collection<DeadLetter> deadLetters);
+
+    /**
+     * 删除指定时间之前进入死信的死信
+     *
+     * @param deadBefore
+     * @return 删除的数量
+     */
+    int purge(long deadBefore);
+
+    void clear();
+}
@@ -0,0 +1,30 @@
+package com.lf.xcode.rds.task.rdsbatch;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * 子任务标识的前缀字典
+ * 每个处理器前缀一个，前缀 -> 句柄，句柄为分配顺序的62进制
+ * 只增不删，同一个前缀的句柄不会改变
+ */
+public interface IdDictionary {
+
+    /**
+     * 获取前缀的句柄，不存在时分配，一次往返
+     *
+     * @param prefixes
+     * @return 前缀 -> 句柄，字典达到 idDictionaryMaxSize 后没有分配到句柄的前缀不包含
+     */
+    Map<String, String> handles(Collection<String> prefixes);
+
+    /**
+     * 根据句柄获取前缀，一次往返
+     *
+     * @param handles
+     * @return 句柄 -> 前缀，不存在的句柄不包含
+     */
+    Map<String, String> prefixes(Collection<String> handles);
+
+    int size();
+}
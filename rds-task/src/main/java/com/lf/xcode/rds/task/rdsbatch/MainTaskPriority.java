@@ -0,0 +1,68 @@
+package com.lf.xcode.rds.task.rdsbatch;
+
+/**
+ * 主任务优先级
+ * 分数 = 优先级 * 每级跨度 + 加入时间，分数越小越先调度，一次范围查询即可按优先级获取
+ * 1.开启老化时每级跨度为老化间隔，等待每超过一个老化间隔相当于提升一级，分数不需要随时间改写
+ * 2.不开启老化时每级跨度大于任何等待时间，只在同一优先级内先进先出
+ * 3.进行中的主任务分数减去 IN_PROGRESS_BOOST，排在所有等待的主任务之前，与业务指定的优先级分开
+ */
+public final class MainTaskPriority {
+
+    //最高优先级，数字越小优先级越高
+    public static final int HIGHEST = 0;
+    //最低优先级
+    public static final int LOWEST = 9;
+    //默认优先级
+    public static final int DEFAULT = 5;
+
+    //加入时间的起点，减小分数的数值
+    private static final long EPOCH = 1700000000000L;
+    //不开启老化时每级的跨度，约31年
+    private static final double LEVEL_SPAN = 1e12;
+    //进行中的主任务分数偏移，大于所有等待中的分数
+    public static final double IN_PROGRESS_BOOST = 1e14;
+    //分数区间，double可以精确表示
+    public static final double MIN_SCORE = -IN_PROGRESS_BOOST * 2;
+    public static final double MAX_SCORE = IN_PROGRESS_BOOST * 2;
+    //进行中的主任务分数上限
+    public static final double IN_PROGRESS_MAX_SCORE = -1;
+
+    private MainTaskPriority() {
+    }
+
+    /**
+     * 等待中的主任务分数
+     *
+     * @param priority      优先级 0-9
+     * @param agingInterval 老化间隔 单位ms，小于等于0不老化
+     * @param now           加入时间
+     * @return
+     */
+    public static double score(int priority, long agingInterval, long now) {
+        double span = agingInterval > 0 ? agingInterval : LEVEL_SPAN;
+        return priority * span + Math.max(now - EPOCH, 0);
+    }
+
+    /**
+     * 进行中的主任务分数，用于提升时主任务已经被删除的情况
+     *
+     * @param agingInterval
+     * @param now
+     * @return
+     */
+    public static double inProgressScore(long agingInterval, long now) {
+        return score(DEFAULT, agingInterval, now) - IN_PROGRESS_BOOST;
+    }
+
+    /**
+     * 校验优先级
+     *
+     * @param priority
+     */
+    public static void check(int priority) {
+        if (priority < HIGHEST || priority > LOWEST) {
+            throw new IllegalArgumentException("priority must be between " + HIGHEST + " and " + LOWEST);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.lf.xcode.rds.task.rdsbatch;
+
+import com.lf.xcode.rds.task.rdsbatch.config.BatchTaskConfig;
+import com.lf.xcode.rds.task.rdstask.ExecuteQueue;
+import com.lf.xcode.rds.task.rdstask.MemZsetTask;
+import com.lf.xcode.rds.task.rdstask.ZsetTask;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import static com.lf.xcode.rds.task.rdsbatch.AbstractBatchTaskHandler.SUB_TASK_RUNNING;
+import static com.lf.xcode.rds.task.rdsbatch.AbstractBatchTaskHandler.SUB_TASK_WAIT;
+
+/**
+ * 基于内存的批量任务结果记录，用于单节点部署和测试
+ * 规则同 RdsBatchResultRecorder
+ */
+public class MemBatchResultRecorder implements BatchResultRecorder {
+
+    private final BatchTaskConfig config;
+    private final ZsetTask<String> mainTaskZset;
+    //主任务 -> 主任务所在的key
+    private final Function<String, String> mainTaskKey;
+    private final MemZsetTask subTaskZset;
+    private final ExecuteQueue executeQueue;
+    private final RetryRecorder retryRecorder;
+
+    public MemBatchResultRecorder(BatchTaskConfig config, ZsetTask<String> mainTaskZset, Function<String, String> mainTaskKey,
+                                  MemZsetTask subTaskZset, ExecuteQueue executeQueue, RetryRecorder retryRecorder) {
+        this.config = config;
+        this.mainTaskZset = mainTaskZset;
+        this.mainTaskKey = mainTaskKey;
+        this.subTaskZset = subTaskZset;
+        this.executeQueue = executeQueue;
+        this.retryRecorder = retryRecorder;
+    }
+
+    @Override
+    public Set<String> record(String mainTask, Collection<String> success, Map<String, String> failed, boolean claimed) {
+        if (!success.isEmpty()) {
+            if (!claimed) {
+                for (String subTask : success) {
+                    subTaskZset.setIfPresent(mainTask, subTask, SUB_TASK_RUNNING);
+                }
+            }
+            mainTaskZset.upgrade(mainTaskKey.apply(mainTask), mainTask,
+                    MainTaskPriority.inProgressScore(config.getMainTaskAgingInterval(), System.currentTimeMillis()),
+                    0, -MainTaskPriority.IN_PROGRESS_BOOST);
+        }
+        Set<String> dropped = new LinkedHashSet<>();
+        for (Map.Entry<String, String> item : failed.entrySet()) {
+            String subTask = item.getKey();
+            executeQueue.remove(subTask);
+            boolean drop = claimed ? retryRecorder.recordFailure(mainTask, subTask, SUB_TASK_WAIT, item.getValue()) :
+                    retryRecorder.recordFailure(mainTask, subTask, item.getValue());
+            if (drop) {
+                dropped.add(subTask);
+            }
+        }
+        return dropped;
+    }
+
+    @Override
+    public Map<String, Boolean> reclaim(String mainTask, Collection<String> subTasks, String error) {
+        Map<String, Boolean> result = new LinkedHashMap<>();
+        for (String subTask : subTasks) {
+            if (!executeQueue.remove(subTask) || subTaskZset.scores(mainTask, Collections.singletonList(subTask)).isEmpty()) {
+                continue;
+            }
+            result.put(subTask, retryRecorder.recordFailure(mainTask, subTask, SUB_TASK_WAIT, error));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,104 @@
+package com.lf.xcode.rds.task.rdsbatch;
+
+import com.lf.xcode.rds.task.rdsbatch.config.BatchTaskConfig;
+import com.lf.xcode.rds.task.rdsbatch.param.DeadLetter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * 基于内存的死信存储，用于单节点部署和测试
+ * 按写入顺序保存，规则同 RdsDeadLetterStore
+ */
+public class MemDeadLetterStore implements DeadLetterStore {
+
+    private final BatchTaskConfig config;
+    private final LinkedHashMap<String, DeadLetter> deadLetters = new LinkedHashMap<>();
+
+    public MemDeadLetterStore(BatchTaskConfig config) {
+        this.config = config;
+    }
+
+    @Override
+    public synchronized void add(DeadLetter deadLetter) {
+        int max = config.getDeadLetterMaxSize();
+        if (max <= 0) {
+            return;
+        }
+        String id = DeadLetterStore.id(deadLetter.getMainTask(), deadLetter.getSubTask());
+        //重新写入，排到最后
+        deadLetters.remove(id);
+        deadLetters.put(id, deadLetter);
+        //与 RdsDeadLetterStore 一致，每次最多删除 TRIM_BATCH_SIZE 个最早的死信
+        int excess = Math.min(deadLetters.size() - max, TRIM_BATCH_SIZE);
+        Iterator<DeadLetter> iterator = deadLetters.values().iterator();
+        while (excess-- > 0 && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    @Override
+    public synchronized int size() {
+        return deadLetters.size();
+    }
+
+    @Override
+    public synchronized List<DeadLetter> list(int pageNum, int pageSize) {
+        int offset = (Math.max(pageNum, 1) - 1) * pageSize;
+        List<DeadLetter> result = new ArrayList<>();
+        int index = 0;
+        for (DeadLetter deadLetter : deadLetters.values()) {
+            if (result.size() >= pageSize) {
+                break;
+            }
+            if (index++ >= offset) {
+                result.add(deadLetter);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized List<DeadLetter> pop(int size) {
+        List<DeadLetter> result = new ArrayList<>();
+        Iterator<DeadLetter> iterator = deadLetters.values().iterator();
+        while (result.size() < Math.min(size, TRIM_BATCH_SIZE) && iterator.hasNext()) {
+            result.add(iterator.next());
+            iterator.remove();
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized int remove(Collection<DeadLetter> deadLetters) {
+        int removed = 0;
+        for (DeadLetter deadLetter : deadLetters) {
+            if (this.deadLetters.remove(DeadLetterStore.id(deadLetter.getMainTask(), deadLetter.getSubTask())) != null) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public synchronized int purge(long deadBefore) {
+        int removed = 0;
+        Iterator<DeadLetter> iterator = deadLetters.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getDeadAt() < deadBefore) {
+                iterator.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public synchronized void clear() {
+        deadLetters.clear();
+    }
+}
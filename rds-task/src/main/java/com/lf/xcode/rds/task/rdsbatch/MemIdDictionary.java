@@ -0,0 +1,56 @@
+package com.lf.xcode.rds.task.rdsbatch;
+
+import com.lf.xcode.rds.task.rdsbatch.config.BatchTaskConfig;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 基于内存的子任务标识前缀字典，用于单节点部署和测试
+ * 规则同 RdsIdDictionary
+ */
+public class MemIdDictionary implements IdDictionary {
+
+    private final BatchTaskConfig config;
+    private final Map<String, String> handles = new HashMap<>();
+    private final Map<String, String> prefixes = new HashMap<>();
+
+    public MemIdDictionary(BatchTaskConfig config) {
+        this.config = config;
+    }
+
+    @Override
+    public synchronized Map<String, String> handles(Collection<String> prefixes) {
+        Map<String, String> result = new HashMap<>(prefixes.size());
+        for (String prefix : prefixes) {
+            String handle = handles.get(prefix);
+            if (handle == null && this.prefixes.size() < config.getIdDictionaryMaxSize()) {
+                handle = SubTaskIdCodec.base62(this.prefixes.size());
+                handles.put(prefix, handle);
+                this.prefixes.put(handle, prefix);
+            }
+            if (handle != null) {
+                result.put(prefix, handle);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized Map<String, String> prefixes(Collection<String> handles) {
+        Map<String, String> result = new HashMap<>(handles.size());
+        for (String handle : handles) {
+            String prefix = prefixes.get(handle);
+            if (prefix != null) {
+                result.put(handle, prefix);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized int size() {
+        return prefixes.size();
+    }
+}
@@ -0,0 +1,63 @@
+package com.lf.xcode.rds.task.rdsbatch;
+
+import com.lf.xcode.rds.task.rdsbatch.config.BatchTaskConfig;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 基于内存的子任务负载存储，用于单节点部署和测试
+ * 同样保存编码后的负载，规则同 RdsPayloadStore
+ */
+public class MemPayloadStore implements PayloadStore {
+
+    private final BatchTaskConfig config;
+    //主任务 -> 子任务 -> 编码后的负载
+    private final Map<String, Map<String, byte[]>> payloads = new ConcurrentHashMap<>();
+
+    public MemPayloadStore(BatchTaskConfig config) {
+        this.config = config;
+    }
+
+    @Override
+    public void put(String mainTask, Map<String, String> payloads) {
+        if (payloads.isEmpty()) {
+            return;
+        }
+        Map<String, byte[]> map = this.payloads.computeIfAbsent(mainTask, k -> new ConcurrentHashMap<>());
+        int threshold = config.getPayloadCompressThreshold();
+        payloads.forEach((subTask, payload) -> map.put(subTask, PayloadCodec.encode(payload, threshold)));
+    }
+
+    @Override
+    public Map<String, String> get(String mainTask, Collection<String> subTasks) {
+        Map<String, byte[]> map = payloads.get(mainTask);
+        if (map == null) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> result = new HashMap<>(subTasks.size());
+        for (String subTask : subTasks) {
+            byte[] data = map.get(subTask);
+            if (data != null) {
+                result.put(subTask, PayloadCodec.decode(data));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void remove(String mainTask, Collection<String> subTasks) {
+        Map<String, byte[]> map = payloads.get(mainTask);
+        if (map != null) {
+            subTasks.forEach(map::remove);
+        }
+    }
+
+    @Override
+    public void clear(String mainTask) {
+        payloads.remove(mainTask);
+    }
+}
@@ -0,0 +1,133 @@
+package com.lf.xcode.rds.task.rdsbatch;
+
+import com.lf.xcode.rds.task.rdsbatch.config.BatchTaskConfig;
+import com.lf.xcode.rds.task.rdsbatch.param.DeadLetter;
+import com.lf.xcode.rds.task.rdstask.MemZsetTask;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 基于内存的任务重试记录，用于单节点部署和测试
+ * 每个主任务一个map，field为子任务，value为重试次数，过期规则同 RdsRetryRecorder
+ */
+public class MemRetryRecorder implements RetryRecorder {
+
+    private final BatchTaskConfig config;
+    //子任务
+    private final MemZsetTask subTask;
+    //死信
+    private final DeadLetterStore deadLetterStore;
+    private final ConcurrentHashMap<String, Ledger> ledgerMap = new ConcurrentHashMap<>();
+
+    public MemRetryRecorder(BatchTaskConfig config, MemZsetTask subTask) {
+        this(config, subTask, new MemDeadLetterStore(config));
+    }
+
+    public MemRetryRecorder(BatchTaskConfig config, MemZsetTask subTask, DeadLetterStore deadLetterStore) {
+        this.config = config;
+        this.subTask = subTask;
+        this.deadLetterStore = deadLetterStore;
+    }
+
+    /**
+     * 重试记录的过期时间，留足够的记录时间
+     *
+     * @return
+     */
+    private long recordExpireAt() {
+        return System.currentTimeMillis() + config.getTaskTimeout() * (config.getRetryCount() + 1);
+    }
+
+    private static Ledger alive(Ledger ledger) {
+        return ledger == null || ledger.expireAt <= System.currentTimeMillis() ? new Ledger() : ledger;
+    }
+
+    private Ledger get(String mainTask) {
+        Ledger ledger = ledgerMap.get(mainTask);
+        if (ledger != null && ledger.expireAt <= System.currentTimeMillis()) {
+            ledgerMap.remove(mainTask, ledger);
+            return null;
+        }
+        return ledger;
+    }
+
+    @Override
+    public void addRetryRecord(String mainTask, String subTask) {
+        ledgerMap.compute(mainTask, (k, ledger) -> {
+            ledger = alive(ledger);
+            ledger.counts.merge(subTask, 1, Integer::sum);
+            ledger.expireAt = recordExpireAt();
+            return ledger;
+        });
+    }
+
+    @Override
+    public int getRetryCount(String mainTask, String subTask) {
+        Ledger ledger = get(mainTask);
+        Integer count = ledger == null ? null : ledger.counts.get(subTask);
+        return count == null ? 0 : count;
+    }
+
+    @Override
+    public void delRetryRecord(String mainTask, String subTask) {
+        ledgerMap.computeIfPresent(mainTask, (k, ledger) -> {
+            ledger.counts.remove(subTask);
+            return ledger.counts.isEmpty() ? null : ledger;
+        });
+    }
+
+    @Override
+    public void clearRetryRecord(String mainTask) {
+        ledgerMap.remove(mainTask);
+    }
+
+    @Override
+    public boolean recordFailure(String mainTask, String subTask, String error) {
+        return recordFailure(mainTask, subTask, null, error);
+    }
+
+    @Override
+    public boolean recordFailure(String mainTask, String subTask, double restoreScore, String error) {
+        return recordFailure(mainTask, subTask, Double.valueOf(restoreScore), error);
+    }
+
+    private boolean recordFailure(String mainTask, String subTask, Double restoreScore, String error) {
+        boolean[] drop = new boolean[1];
+        int[] count = new int[1];
+        ledgerMap.compute(mainTask, (k, ledger) -> {
+            ledger = alive(ledger);
+            count[0] = ledger.counts.merge(subTask, 1, Integer::sum);
+            if (count[0] > config.getRetryCount()) {
+                ledger.counts.remove(subTask);
+                drop[0] = true;
+            } else {
+                ledger.expireAt = recordExpireAt();
+            }
+            return ledger.counts.isEmpty() ? null : ledger;
+        });
+        if (drop[0]) {
+            this.subTask.remove(mainTask, subTask);
+            deadLetterStore.add(new DeadLetter().setMainTask(mainTask).setSubTask(subTask).setError(error)
+                    .setAttempts(count[0]).setDeadAt(System.currentTimeMillis()));
+            return true;
+        }
+        //开启退避时延迟到下次执行时间
+        long delay = SubTaskSchedule.retryDelay(config, count[0], ThreadLocalRandom.current().nextDouble());
+        if (delay >= 0) {
+            this.subTask.setIfPresent(mainTask, subTask, SubTaskSchedule.waitScore(System.currentTimeMillis() + delay));
+        } else if (restoreScore != null) {
+            this.subTask.setIfPresent(mainTask, subTask, restoreScore);
+        }
+        return false;
+    }
+
+    /**
+     * 一个主任务的重试记录
+     */
+    private static final class Ledger {
+        private final Map<String, Integer> counts = new ConcurrentHashMap<>();
+        private volatile long expireAt;
+    }
+}
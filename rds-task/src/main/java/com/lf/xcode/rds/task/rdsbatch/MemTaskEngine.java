@@ -0,0 +1,95 @@
+package com.lf.xcode.rds.task.rdsbatch;
+
+import com.lf.xcode.rds.task.metrics.TaskMetrics;
+import com.lf.xcode.rds.task.rdsbatch.config.BatchTaskConfig;
+import com.lf.xcode.rds.task.rdstask.ExecuteQueue;
+import com.lf.xcode.rds.task.rdstask.MemPartitionLease;
+import com.lf.xcode.rds.task.rdstask.MemQueue;
+import com.lf.xcode.rds.task.rdstask.MemSignal;
+import com.lf.xcode.rds.task.rdstask.MemZsetTask;
+import com.lf.xcode.rds.task.rdstask.PartitionLease;
+import com.lf.xcode.rds.task.rdstask.TaskSignal;
+import com.lf.xcode.rds.task.rdstask.ZsetTask;
+
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 基于内存的任务存储引擎
+ * 用于单节点部署、测试，以及作为redis引擎的性能对照
+ * 所有数据只保存在当前进程中，不支持多pod
+ */
+public class MemTaskEngine implements TaskEngine {
+
+    //调度指标
+    private final TaskMetrics metrics;
+
+    public MemTaskEngine() {
+        this(TaskMetrics.NOOP);
+    }
+
+    public MemTaskEngine(TaskMetrics metrics) {
+        this.metrics = metrics == null ? TaskMetrics.NOOP : metrics;
+    }
+
+    @Override
+    public TaskMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public ZsetTask<String> createZsetTask(String taskType, Supplier<Integer> limitSupplier, Supplier<Long> expireFunc) {
+        return new MemZsetTask(taskType, limitSupplier, expireFunc);
+    }
+
+    /**
+     * 内存队列本身是线程安全的，不需要分布式锁，atomicAdmission不生效
+     */
+    @Override
+    public ExecuteQueue createExecuteQueue(String name, Supplier<Integer> limit, Supplier<Long> expireFunc,
+                                           Supplier<Boolean> atomicAdmission) {
+        return new MemQueue(name, limit, expireFunc);
+    }
+
+    @Override
+    public RetryRecorder createRetryRecorder(BatchTaskConfig config, String prefix, ZsetTask<String> subTask) {
+        return new MemRetryRecorder(config, (MemZsetTask) subTask);
+    }
+
+    @Override
+    public RetryRecorder createRetryRecorder(BatchTaskConfig config, String prefix, ZsetTask<String> subTask,
+                                             DeadLetterStore deadLetterStore) {
+        return new MemRetryRecorder(config, (MemZsetTask) subTask, deadLetterStore);
+    }
+
+    @Override
+    public DeadLetterStore createDeadLetterStore(BatchTaskConfig config, String prefix) {
+        return new MemDeadLetterStore(config);
+    }
+
+    @Override
+    public PayloadStore createPayloadStore(BatchTaskConfig config, String prefix) {
+        return new MemPayloadStore(config);
+    }
+
+    @Override
+    public IdDictionary createIdDictionary(BatchTaskConfig config, String prefix) {
+        return new MemIdDictionary(config);
+    }
+
+    @Override
+    public BatchResultRecorder createBatchResultRecorder(BatchTaskConfig config, ZsetTask<String> mainTask, Function<String, String> mainTaskKey,
+                                                         ZsetTask<String> subTask, ExecuteQueue executeQueue, RetryRecorder retryRecorder) {
+        return new MemBatchResultRecorder(config, mainTask, mainTaskKey, (MemZsetTask) subTask, executeQueue, retryRecorder);
+    }
+
+    @Override
+    public TaskSignal createSignal(String name) {
+        return new MemSignal();
+    }
+
+    @Override
+    public PartitionLease createPartitionLease(String name, Supplier<Long> leaseTime) {
+        return new MemPartitionLease();
+    }
+}
@@ -0,0 +1,94 @@
+package com.lf.xcode.rds.task.rdsbatch;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 子任务负载的编码
+ * 格式 = 1字节编码类型 + 内容，内容为utf-8字节或gzip压缩后的utf-8字节
+ * 超过压缩阈值且压缩后更小时才压缩，短负载只多1个字节
+ */
+public final class PayloadCodec {
+
+    //编码类型: 不压缩
+    private static final byte RAW = 0;
+    //编码类型: gzip
+    private static final byte GZIP = 1;
+
+    private PayloadCodec() {
+    }
+
+    /**
+     * 编码
+     *
+     * @param payload
+     * @param compressThreshold 压缩阈值 单位字节，小于等于0不压缩
+     * @return
+     */
+    public static byte[] encode(String payload, int compressThreshold) {
+        byte[] raw = payload.getBytes(StandardCharsets.UTF_8);
+        if (compressThreshold > 0 && raw.length >= compressThreshold) {
+            byte[] compressed = gzip(raw);
+            if (compressed.length < raw.length) {
+                return withType(GZIP, compressed);
+            }
+        }
+        return withType(RAW, raw);
+    }
+
+    /**
+     * 解码
+     *
+     * @param data
+     * @return
+     */
+    public static String decode(byte[] data) {
+        if (data == null || data.length == 0) {
+            return null;
+        }
+        switch (data[0]) {
+            case RAW:
+                return new String(data, 1, data.length - 1, StandardCharsets.UTF_8);
+            case GZIP:
+                return new String(gunzip(data), StandardCharsets.UTF_8);
+            default:
+                throw new IllegalArgumentException("unknown payload type " + data[0]);
+        }
+    }
+
+    private static byte[] withType(byte type, byte[] content) {
+        byte[] data = new byte[content.length + 1];
+        data[0] = type;
+        System.arraycopy(content, 0, data, 1, content.length);
+        return data;
+    }
+
+    private static byte[] gzip(byte[] raw) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 16);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(raw);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+        try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(data, 1, data.length - 1))) {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = gzip.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,38 @@
+package com.lf.xcode.rds.task.rdsbatch;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * 子任务负载存储
+ * 每个主任务一个，子任务 -> 负载，负载使用 PayloadCodec 编码后保存
+ * 子任务列表中只保存子任务标识，负载在分配时按批读取
+ */
+public interface PayloadStore {
+
+    /**
+     * 写入负载，已存在的覆盖
+     *
+     * @param mainTask
+     * @param payloads 子任务 -> 负载
+     */
+    void put(String mainTask, Map<String, String> payloads);
+
+    /**
+     * 批量读取负载，一次往返
+     *
+     * @param mainTask
+     * @param subTasks
+     * @return 子任务 -> 负载，没有负载的子任务不包含
+     */
+    Map<String, String> get(String mainTask, Collection<String> subTasks);
+
+    void remove(String mainTask, Collection<String> subTasks);
+
+    /**
+     * 删除主任务的所有负载
+     *
+     * @param mainTask
+     */
+    void clear(String mainTask);
+}
@@ -0,0 +1,181 @@
+package com.lf.xcode.rds.task.rdsbatch;
+
+import com.lf.xcode.rds.task.rdsbatch.config.BatchTaskConfig;
+import com.lf.xcode.rds.task.rdstask.RdsClient;
+import com.lf.xcode.rds.task.rdstask.RdsQueue;
+import com.lf.xcode.rds.task.rdstask.RdsZsetTask;
+import redis.clients.jedis.Jedis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static com.lf.xcode.rds.task.rdsbatch.AbstractBatchTaskHandler.SUB_TASK_RUNNING;
+import static com.lf.xcode.rds.task.rdsbatch.AbstractBatchTaskHandler.SUB_TASK_WAIT;
+
+/**
+ * 基于redis的批量任务结果记录
+ * 一个主任务下一批子任务的执行结果，在一个lua脚本中完成记录
+ * 1.成功的子任务更新为执行中状态，主任务标记为进行中(已经是进行中时不写入)
+ * 2.失败的子任务从执行队列中剔除，增加重试次数，超过最大重试次数则删除子任务并记录死信，开启重试退避时延迟到下次执行时间
+ * 3.执行超时的子任务在一个lua脚本中回收，从执行队列中剔除成功的才恢复为等待状态，规则同失败
+ */
+public class RdsBatchResultRecorder implements BatchResultRecorder {
+
+    private static final String NO_SCORE = "";
+
+    //批量结果脚本 KEYS[1]:子任务 KEYS[2]:重试记录 KEYS[3]:主任务 KEYS[4]:死信 KEYS[5]:死信索引 KEYS[6..]:执行队列
+    //ARGV:主任务,主任务不存在时的进行中分数,成功分数,失败恢复分数,最大重试次数,重试记录过期时间,成功数量,退避参数(6个),死信最大数量,
+    //成功的子任务...,失败的子任务,失败原因,失败的子任务,失败原因...
+    //返回超过最大重试次数被删除的子任务
+    private static final String RECORD_SCRIPT = RdsRetryRecorder.RETRY_SCORE_FUNCTION + RdsDeadLetterStore.DEAD_LETTER_FUNCTION +
+            "local success = tonumber(ARGV[7]) " +
+                    "local first = 15 " +
+                    "if success > 0 then " +
+                    "  if ARGV[3] ~= '' then " +
+                    "    for i = first, first + success - 1 do redis.call('zadd', KEYS[1], 'XX', ARGV[3], ARGV[i]) end " +
+                    "  end " +
+                    "  local score = redis.call('zscore', KEYS[3], ARGV[1]) " +
+                    "  if not score then redis.call('zadd', KEYS[3], ARGV[2], ARGV[1]) " +
+                    "  elseif tonumber(score) >= 0 then redis.call('zincrby', KEYS[3], -" + (long) MainTaskPriority.IN_PROGRESS_BOOST + ", ARGV[1]) end " +
+                    "end " +
+                    "local limit = tonumber(ARGV[5]) " +
+                    "local dropped = {} " +
+                    "for i = first + success, #ARGV, 2 do " +
+                    "  local member = ARGV[i] " +
+                    "  q_rem(member) " +
+                    "  local count = redis.call('hincrby', KEYS[2], member, 1) " +
+                    "  if count > limit then " +
+                    "    redis.call('hdel', KEYS[2], member) " +
+                    "    redis.call('zrem', KEYS[1], member) " +
+                    "    dead_letter(4, 5, ARGV[1], member, ARGV[i + 1], count, tonumber(ARGV[8]), tonumber(ARGV[14])) " +
+                    "    dropped[#dropped + 1] = member " +
+                    "  else " +
+                    "    local score = retry_score(8, count, (i - first - success) / 2) or ARGV[4] " +
+                    "    if score ~= '' then redis.call('zadd', KEYS[1], 'XX', score, member) end " +
+                    "  end " +
+                    "end " +
+                    "if #ARGV >= first + success then redis.call('pexpireat', KEYS[2], ARGV[6]) end " +
+                    "return dropped";
+
+    //超时回收脚本 KEYS[1]:子任务 KEYS[2]:重试记录 KEYS[3]:死信 KEYS[4]:死信索引 KEYS[5..]:执行队列
+    //ARGV:主任务,恢复的分数,最大重试次数,重试记录过期时间,退避参数(6个),死信最大数量,失败原因,子任务...
+    //返回 回收的子任务,是否删除(1/0),回收的子任务,是否删除...
+    private static final String RECLAIM_SCRIPT = RdsRetryRecorder.RETRY_SCORE_FUNCTION + RdsDeadLetterStore.DEAD_LETTER_FUNCTION +
+            "local limit = tonumber(ARGV[3]) " +
+                    "local result = {} " +
+                    "for i = 13, #ARGV do " +
+                    "  local member = ARGV[i] " +
+                    //只回收自己从执行队列中剔除的、仍然存在的子任务
+                    "  if q_rem(member) == 1 and redis.call('zscore', KEYS[1], member) then " +
+                    "    local count = redis.call('hincrby', KEYS[2], member, 1) " +
+                    "    if count > limit then " +
+                    "      redis.call('hdel', KEYS[2], member) " +
+                    "      redis.call('zrem', KEYS[1], member) " +
+                    "      dead_letter(3, 4, ARGV[1], member, ARGV[12], count, tonumber(ARGV[5]), tonumber(ARGV[11])) " +
+                    "      result[#result + 1] = member " +
+                    "      result[#result + 1] = 1 " +
+                    "    else " +
+                    "      redis.call('zadd', KEYS[1], retry_score(5, count, #result / 2) or ARGV[2], member) " +
+                    "      result[#result + 1] = member " +
+                    "      result[#result + 1] = 0 " +
+                    "    end " +
+                    "  end " +
+                    "end " +
+                    "if #result > 0 then redis.call('pexpireat', KEYS[2], ARGV[4]) end " +
+                    "return result";
+
+    private final BatchTaskConfig config;
+    private final RdsClient client;
+    private final RdsZsetTask rdsMainTask;
+    //主任务 -> 主任务所在的key
+    private final Function<String, String> mainTaskKey;
+    private final RdsZsetTask rdsSubTask;
+    private final RdsQueue executeQueue;
+    private final RdsRetryRecorder retryRecorder;
+
+    public RdsBatchResultRecorder(BatchTaskConfig config, Supplier<Jedis> jedisSupplier, RdsZsetTask rdsMainTask, Function<String, String> mainTaskKey,
+                                  RdsZsetTask rdsSubTask, RdsQueue executeQueue, RdsRetryRecorder retryRecorder) {
+        this(config, new RdsClient(jedisSupplier), rdsMainTask, mainTaskKey, rdsSubTask, executeQueue, retryRecorder);
+    }
+
+    public RdsBatchResultRecorder(BatchTaskConfig config, RdsClient client, RdsZsetTask rdsMainTask, Function<String, String> mainTaskKey,
+                                  RdsZsetTask rdsSubTask, RdsQueue executeQueue, RdsRetryRecorder retryRecorder) {
+        this.config = config;
+        this.client = client;
+        this.rdsMainTask = rdsMainTask;
+        this.mainTaskKey = mainTaskKey;
+        this.rdsSubTask = rdsSubTask;
+        this.executeQueue = executeQueue;
+        this.retryRecorder = retryRecorder;
+    }
+
+    @Override
+    public Set<String> record(String mainTask, Collection<String> success, Map<String, String> failed, boolean claimed) {
+        if (success.isEmpty() && failed.isEmpty()) {
+            return Collections.emptySet();
+        }
+        List<String> args = new ArrayList<>(14 + success.size() + failed.size() * 2);
+        args.add(mainTask);
+        args.add(String.valueOf(MainTaskPriority.inProgressScore(config.getMainTaskAgingInterval(), System.currentTimeMillis())));
+        args.add(claimed ? NO_SCORE : String.valueOf(SUB_TASK_RUNNING));
+        args.add(claimed ? String.valueOf(SUB_TASK_WAIT) : NO_SCORE);
+        args.add(String.valueOf(config.getRetryCount()));
+        args.add(String.valueOf(retryRecorder.recordExpireAt()));
+        args.add(String.valueOf(success.size()));
+        args.addAll(retryRecorder.backoffArgs());
+        args.add(String.valueOf(config.getDeadLetterMaxSize()));
+        args.addAll(success);
+        failed.forEach((subTask, error) -> {
+            args.add(subTask);
+            args.add(error == null ? "" : error);
+        });
+        List<String> keys = new ArrayList<>(Arrays.asList(rdsSubTask.generateKey(mainTask),
+                retryRecorder.generateRetryRecordKey(mainTask), rdsMainTask.generateKey(mainTaskKey.apply(mainTask))));
+        keys.addAll(retryRecorder.getDeadLetterStore().getScriptKeys());
+        keys.addAll(executeQueue.getScriptKeys());
+        return client.execute("batch.record", jedis -> {
+            @SuppressWarnings("unchecked")
+            List<String> dropped = (List<String>) executeQueue.script(6, RECORD_SCRIPT).eval(jedis, keys, args);
+            return dropped == null ? Collections.<String>emptySet() : new LinkedHashSet<>(dropped);
+        });
+    }
+
+    @Override
+    public Map<String, Boolean> reclaim(String mainTask, Collection<String> subTasks, String error) {
+        if (subTasks.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        List<String> args = new ArrayList<>(12 + subTasks.size());
+        args.add(mainTask);
+        args.add(String.valueOf(SUB_TASK_WAIT));
+        args.add(String.valueOf(config.getRetryCount()));
+        args.add(String.valueOf(retryRecorder.recordExpireAt()));
+        args.addAll(retryRecorder.backoffArgs());
+        args.add(String.valueOf(config.getDeadLetterMaxSize()));
+        args.add(error == null ? "" : error);
+        args.addAll(subTasks);
+        List<String> keys = new ArrayList<>(Arrays.asList(rdsSubTask.generateKey(mainTask), retryRecorder.generateRetryRecordKey(mainTask)));
+        keys.addAll(retryRecorder.getDeadLetterStore().getScriptKeys());
+        keys.addAll(executeQueue.getScriptKeys());
+        return client.execute("batch.reclaim", jedis -> {
+            @SuppressWarnings("unchecked")
+            List<Object> items = (List<Object>) executeQueue.script(5, RECLAIM_SCRIPT).eval(jedis, keys, args);
+            Map<String, Boolean> result = new LinkedHashMap<>();
+            if (items != null) {
+                for (int i = 0; i + 1 < items.size(); i += 2) {
+                    result.put((String) items.get(i), ((Long) items.get(i + 1)) == 1);
+                }
+            }
+            return result;
+        });
+    }
+}
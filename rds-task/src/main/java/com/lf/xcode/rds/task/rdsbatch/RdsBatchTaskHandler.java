@@ -2,16 +2,23 @@ package com.lf.xcode.rds.task.rdsbatch;
 
 import cn.hutool.core.collection.CollUtil;
 import cn.hutool.core.util.RandomUtil;
+import cn.hutool.core.util.StrUtil;
+import com.lf.xcode.rds.task.metrics.TaskMetrics;
 import com.lf.xcode.rds.task.rdsbatch.config.BatchTaskConfig;
 import com.lf.xcode.rds.task.rdsbatch.param.InvokeParam;
 import com.lf.xcode.rds.util.ExceptionUtil;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import redis.clients.jedis.Jedis;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
@@ -22,6 +29,25 @@ import java.util.function.Supplier;
 @Slf4j
 public class RdsBatchTaskHandler extends AbstractBatchTaskHandler<String> {
 
+    //事件驱动调度线程
+    @Getter(AccessLevel.NONE)
+    private Thread dispatcher;
+    //批量业务处理器，注册后一个主任务本次分配的子任务一次性交给业务处理，返回 子任务->是否成功
+    private volatile Supplier<Function<List<InvokeParam>, Map<String, Boolean>>> batchBizHandler;
+    //批量任务结果记录
+    private final BatchResultRecorder batchResultRecorder;
+    //本次调度处理的主任务列表，分区模式下为持有租约的分区
+    @Getter(AccessLevel.NONE)
+    private volatile List<String> dispatchMainTaskKeys = Collections.emptyList();
+
+    //失败原因: 业务返回失败
+    private static final String BIZ_RETURN_FALSE = "biz returned false";
+    //失败原因: 批量业务没有返回该子任务的结果
+    private static final String BIZ_NO_RESULT = "biz returned no result";
+    //失败原因: 执行超时
+    private static final String TIMEOUT_ERROR = "execute timeout";
+    //失败原因的最大长度
+    private static final int ERROR_SUMMARY_LENGTH = 512;
 
     /**
      * @param jedisSupplier   获取jedis的方法
@@ -37,9 +63,26 @@ public class RdsBatchTaskHandler extends AbstractBatchTaskHandler<String> {
                                Supplier<Function<InvokeParam, Boolean>> bizFunction,
                                String mainKey, String prefix) {
         super(jedisSupplier, distributedLock, config, bizFunction, mainKey, prefix);
+        batchResultRecorder = engine.createBatchResultRecorder(config, rdsMainTask, this::mainTaskKey, rdsSubTask, executeQueue, retryRecorder);
         log.info("{}{}RdsBatchTaskHandler init", mainKey, prefix);
     }
 
+    /**
+     * @param engine      存储引擎，如 RdsTaskEngine/MemTaskEngine
+     * @param config      任务配置
+     * @param bizFunction 业务处理器
+     * @param mainKey     主任务的key
+     * @param prefix      任务的前缀
+     */
+    public RdsBatchTaskHandler(TaskEngine engine,
+                               BatchTaskConfig config,
+                               Supplier<Function<InvokeParam, Boolean>> bizFunction,
+                               String mainKey, String prefix) {
+        super(engine, config, bizFunction, mainKey, prefix);
+        batchResultRecorder = engine.createBatchResultRecorder(config, rdsMainTask, this::mainTaskKey, rdsSubTask, executeQueue, retryRecorder);
+        log.info("{}{}RdsBatchTaskHandler init engine {}", mainKey, prefix, engine.getClass().getSimpleName());
+    }
+
 
     /**
      * 循环执行任务
@@ -50,12 +93,7 @@ public class RdsBatchTaskHandler extends AbstractBatchTaskHandler<String> {
     public boolean mainLoop() {
         long start = System.currentTimeMillis();
         try {
-            //前置处理
-            preHandle();
-            //任务处理
-            mainHandle();
-            //后置处理
-            postHandle();
+            dispatch();
         } finally {
             long end = System.currentTimeMillis();
             //如果本次循环时间小于分布式锁等待超时时间，则休眠一段时间,强制让其他等锁的线程超时，避免再次执行
@@ -75,6 +113,90 @@ public class RdsBatchTaskHandler extends AbstractBatchTaskHandler<String> {
     }
 
 
+    /**
+     * 注册批量业务处理器
+     * 注册后优先于单个任务的处理器，适用于支持批量请求的下游
+     *
+     * @param batchBizHandler 入参为一个主任务本次分配的子任务，返回 子任务->是否成功，未返回的子任务视为失败
+     */
+    public void registerBatchBizHandler(Supplier<Function<List<InvokeParam>, Map<String, Boolean>>> batchBizHandler) {
+        this.batchBizHandler = batchBizHandler;
+    }
+
+    /**
+     * 执行一次调度，不做补充睡眠
+     *
+     * @return
+     */
+    public boolean dispatch() {
+        //前置、后置处理各在一个会话中执行，调度线程只借出一次连接
+        //任务处理只在读取、准入时使用会话，同步执行业务时不占用连接
+        long start = System.nanoTime();
+        engine.withSession(() -> {
+            preHandle();
+            return null;
+        });
+        //任务处理
+        long preEnd = System.nanoTime();
+        metrics.recordPhase(prefix, TaskMetrics.PHASE_PRE_HANDLE, preEnd - start);
+        mainHandle();
+        //后置处理
+        long mainEnd = System.nanoTime();
+        metrics.recordPhase(prefix, TaskMetrics.PHASE_MAIN_HANDLE, mainEnd - preEnd);
+        engine.withSession(() -> {
+            postHandle();
+            return null;
+        });
+        metrics.recordPhase(prefix, TaskMetrics.PHASE_POST_HANDLE, System.nanoTime() - mainEnd);
+        return true;
+    }
+
+    /**
+     * 启动事件驱动调度
+     * 收到唤醒信号后立即执行一次调度，超过 dispatchMaxIdle 没有信号也会执行一次调度兜底
+     *
+     * @param podLock 调度使用的分布式锁，保证只有一个pod执行调度，为null时不加锁
+     */
+    public synchronized void startEventDispatch(Function<Supplier<Boolean>, Boolean> podLock) {
+        if (dispatcher != null) {
+            return;
+        }
+        dispatcher = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    boolean signaled = dispatchSignal.await(config.getDispatchMaxIdle());
+                    log.info("eventDispatch_wakeup signaled {}", signaled);
+                    if (podLock == null) {
+                        dispatch();
+                    } else {
+                        podLock.apply(this::dispatch);
+                    }
+                } catch (Exception e) {
+                    log.info("eventDispatch_failed {}", ExceptionUtil.getMessage(e, 10));
+                    try {
+                        //避免redis不可用时空转
+                        TimeUnit.MILLISECONDS.sleep(RandomUtil.randomInt(500, 1000));
+                    } catch (InterruptedException interruptedException) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }, "rds-event-dispatch-" + prefix);
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * 停止事件驱动调度
+     * 阻塞在等待信号中的线程会在本次等待超时后退出
+     */
+    public synchronized void stopEventDispatch() {
+        if (dispatcher != null) {
+            dispatcher.interrupt();
+            dispatcher = null;
+        }
+    }
+
     /**
      * 执行任务
      *
@@ -82,19 +204,116 @@ public class RdsBatchTaskHandler extends AbstractBatchTaskHandler<String> {
      */
     @Override
     public boolean doBizTask(String mainTask, String subTask) {
+        return invokeBizTask(invokeParams(mainTask, Collections.singletonList(member(subTask))).values().iterator().next()) == null;
+    }
+
+    /**
+     * 执行任务
+     *
+     * @param param
+     * @return 失败原因，成功返回null
+     */
+    private String invokeBizTask(InvokeParam param) {
+        long start = System.nanoTime();
+        boolean success = false;
         try {
             Function<InvokeParam, Boolean> bizFunc = bizHandler.get();
-            return bizFunc.apply(new InvokeParam().setMainTask(mainTask).setSubTask(subTask));
+            success = Boolean.TRUE.equals(bizFunc.apply(param));
+            return success ? null : BIZ_RETURN_FALSE;
+        } catch (Exception e) {
+            log.info(e.getMessage(), ExceptionUtil.getMessage(e, 10));
+            return errorSummary(e);
+        } finally {
+            metrics.recordBiz(prefix, TaskMetrics.BIZ_SYNC, System.nanoTime() - start, success);
+        }
+    }
+
+    /**
+     * 批量执行任务
+     *
+     * @param mainTask
+     * @param subTaskList
+     * @return 子任务->是否成功
+     */
+    public Map<String, Boolean> doBatchBizTask(String mainTask, Collection<String> subTaskList) {
+        Map<String, Boolean> result = new LinkedHashMap<>();
+        Map<String, InvokeParam> params = invokeParams(mainTask, members(subTaskList));
+        invokeBatchBizTask(params).forEach((member, error) -> result.put(params.get(member).getSubTask(), error == null));
+        return result;
+    }
+
+    /**
+     * 批量执行任务
+     *
+     * @param params 同一个主任务的子任务 存储中的标识->执行参数
+     * @return 存储中的标识->失败原因，成功为null
+     */
+    private Map<String, String> invokeBatchBizTask(Map<String, InvokeParam> params) {
+        long start = System.nanoTime();
+        boolean success = false;
+        Map<String, String> errors = new LinkedHashMap<>();
+        try {
+            //业务返回的结果以业务的子任务标识为key
+            Map<String, Boolean> result = batchBizHandler.get().apply(new ArrayList<>(params.values()));
+            success = result != null;
+            params.forEach((member, param) -> {
+                Boolean ok = result == null ? null : result.get(param.getSubTask());
+                errors.put(member, Boolean.TRUE.equals(ok) ? null : ok == null ? BIZ_NO_RESULT : BIZ_RETURN_FALSE);
+            });
         } catch (Exception e) {
             log.info(e.getMessage(), ExceptionUtil.getMessage(e, 10));
-            return false;
+            String error = errorSummary(e);
+            for (String member : params.keySet()) {
+                errors.put(member, error);
+            }
+        } finally {
+            metrics.recordBiz(prefix, TaskMetrics.BIZ_BATCH, System.nanoTime() - start, success);
+        }
+        return errors;
+    }
+
+    /**
+     * 失败原因摘要，异常类型和信息
+     *
+     * @param e
+     * @return
+     */
+    private static String errorSummary(Throwable e) {
+        return StrUtil.maxLength(e.getClass().getName() + ": " + e.getMessage(), ERROR_SUMMARY_LENGTH);
+    }
+
+    /**
+     * 异步执行任务
+     *
+     * @param mainTask
+     * @param subTask
+     * @return
+     */
+    public CompletionStage<Boolean> doBizTaskAsync(String mainTask, String subTask) {
+        return invokeBizTaskAsync(invokeParams(mainTask, Collections.singletonList(member(subTask))).values().iterator().next());
+    }
+
+    /**
+     * 异步执行任务
+     *
+     * @param param
+     * @return
+     */
+    private CompletionStage<Boolean> invokeBizTaskAsync(InvokeParam param) {
+        try {
+            Function<InvokeParam, CompletionStage<Boolean>> bizFunc = asyncBizHandler.get();
+            CompletionStage<Boolean> result = bizFunc.apply(param);
+            return result == null ? CompletableFuture.completedFuture(false) : result;
+        } catch (Exception e) {
+            log.info(e.getMessage(), ExceptionUtil.getMessage(e, 10));
+            return CompletableFuture.completedFuture(false);
         }
     }
 
     @Override
     protected void preHandle() {
-        //清理过期任务
-        clearOutTimeTask(config.getMainLoopSize());
+        //回收执行超时的任务
+        clearOutTimeTask();
     }
 
     /**
@@ -103,140 +322,510 @@ public class RdsBatchTaskHandler extends AbstractBatchTaskHandler<String> {
      * 2.获取每个主任务的部分等待执行的子任务
      * 3.根据执行队列空闲程度，执行各个主任务的子任务
      * 4.子任务执行采用非公平锁进行抢队执行
+     * 5.分区模式下只处理持有租约的分区
      */
     @Override
     protected void mainHandle() {
-        int pageNum = 0;
+        log.info("mainHandler_begin");
+        AtomicInteger running = new AtomicInteger(0);
+        List<String> mainKeys = leaseMainTaskKeys();
+        dispatchMainTaskKeys = mainKeys;
+        //本次调度最多分配的数量，分区模式下不借用时按持有的分区比例分摊执行队列
+        int partitionCount = config.getPartitionCount();
+        int budget = partitionCount <= 1 || config.isPartitionBudgetBorrow() ? Integer.MAX_VALUE :
+                (int) Math.ceil((double) config.getExecuteTaskLimit() * mainKeys.size() / partitionCount);
+        AtomicInteger admittedTotal = new AtomicInteger(0);
+        for (String mainKey : mainKeys) {
+            if (!mainHandle(mainKey, budget, admittedTotal, running)) {
+                break;
+            }
+        }
+        log.info("本次循环分配了 {} 个任务", running.get());
+    }
+
+    /**
+     * 处理一个主任务列表
+     *
+     * @param mainKey       主任务列表的key
+     * @param budget        本次调度最多分配的数量
+     * @param admittedTotal 本次调度已经分配的数量
+     * @param running
+     * @return false:执行队列已满或者分配数量已用完
+     */
+    private boolean mainHandle(String mainKey, int budget, AtomicInteger admittedTotal, AtomicInteger running) {
+        //页码从1开始
+        int pageNum = 1;
         //每次批量查询10个主任务
-        List<String> mainTaskList = null;
         Set<String> dbList = null;
-        log.info("mainHandler_begin");
         int mainLoopSize = config.getMainLoopSize();
-        AtomicInteger running = new AtomicInteger(0);
         do {
+            //本页开始前已经分配的数量
+            int admittedBefore = admittedTotal.get();
             //数字越小优先级越高
-            dbList = rdsMainTask.pollAsc(mainTaskName, DEFAULT_PRIORITY_HIGH, DEFAULT_PRIORITY, pageNum, mainLoopSize);
+            dbList = rdsMainTask.pollAsc(mainKey, MainTaskPriority.MIN_SCORE, MainTaskPriority.MAX_SCORE, pageNum, mainLoopSize);
             if (dbList != null && !dbList.isEmpty()) {
                 log.info("mainHandle_mainTaskList size {} list {}", dbList.size(), dbList);
-                mainTaskList = new ArrayList<>(dbList);
+                List<String> mainTaskList = new ArrayList<>(dbList);
                 if (AllocationPolicy.RANDOM == config.getAllocationPolicy()) {
                     //随机打乱list, 这个没有作用了，下面的代码按劳分配了
                     Collections.shuffle(mainTaskList);
                 }
-                //剩余任务数量
-                int remain = executeQueue.freeSize();
-                log.info("executeQueue_remain {}", remain);
-                //等待执行的任务数量
-                Map<String, Integer> waitMap = new HashMap<>();
+                //等待执行的任务数量 主任务下已经到期的待执行子任务数量
+                Map<String, Integer> waitMap = new LinkedHashMap<>();
+                //剩余任务数量，读取执行队列和等待数量在一个会话中完成
+                int remain = engine.withSession(() -> {
+                    int free = executeQueue.freeSize();
+                    int left = Math.min(free, budget - admittedTotal.get());
+                    log.info("executeQueue_remain {}", left);
+                    metrics.recordQueue(prefix, config.getExecuteTaskLimit() - free, free);
+                    if (left > 0) {
+                        //一次pipeline批量获取
+                        waitMap.putAll(rdsSubTask.sizes(mainTaskList, SubTaskSchedule.dueMin(System.currentTimeMillis()), SUB_TASK_WAIT));
+                    }
+                    return left;
+                });
+                if (remain <= 0) {
+                    return false;
+                }
                 //等待任务的总数量
                 AtomicInteger wait = new AtomicInteger(0);
-                mainTaskList.forEach(mainTask -> {
-                    //主任务下待执行的子任务数量
-                    int waitCount = rdsSubTask.size(mainTask, SUB_TASK_WAIT, SUB_TASK_WAIT);
-                    waitMap.put(mainTask, waitCount);
-                    wait.addAndGet(waitCount);
-                });
+                waitMap.values().forEach(wait::addAndGet);
+                waitMap.forEach((mainTask, count) -> metrics.recordWait(prefix, mainTask, count));
+                boolean fair = AllocationPolicy.WEIGHTED_FAIR == config.getAllocationPolicy();
+                //主任务 -> 本轮记入后的赤字
+                Map<String, Double> deficits = new HashMap<>();
+                Map<String, Integer> assignMap = fair ? allocateFair(waitMap, remain, deficits) : allocate(waitMap, wait.get(), remain);
+                //主任务 -> 进入执行队列的数量
+                Map<String, Integer> admittedMap = new ConcurrentHashMap<>();
                 //主任务使用非公平锁
-                waitMap.entrySet().stream().parallel().forEach(item -> {
+                assignMap.entrySet().stream().parallel().forEach(item -> {
                     String mainTask = item.getKey();
-                    //等待的任务数/总的等待数量 = 比例
-                    float rate = waitMap.get(mainTask).floatValue() / wait.get();
-                    //根据比例计算每个主任务的执行数量 每个主任务分配的可执行数量 至少为1，尽可能饱和
-                    int count = ((int) (remain * rate)) + 1;
+                    int count = item.getValue();
                     log.info("assign_job main {} count {}", mainTask, count);
-                    if (executeQueue.free()) {
-                        //分批获取 subTaskLimit个 子任务
-                        Set<String> subTaskList = rdsSubTask.poll(mainTask, SUB_TASK_WAIT, 0, count);
-                        log.info("subTaskList size= {} list = {}", subTaskList.size(), subTaskList);
-                        //子任务在执行完毕后，会降低limit，这样就可以继续分配了
-                        if (CollUtil.isNotEmpty(subTaskList)) {
-                            for (String subTask : subTaskList) {
-                                //删除子任务的情景: 1.任务执行失败 2.异步回调，调用任务完成接口 3.任务超时
-                                //executeQueue.contains(subTask) 的含义是支持父任务重复执行，但子任务不可重复执行
-                                if (!executeQueue.contains(subTask) &&
-                                        //尝试进入执行队列
-                                        executeQueue.add(subTask)) {
-                                    //是否使用线程池执行业务，此处不必担心线程池队列满了,因为executeQueue.add会对线程池进行限制
-                                    //如果业务执行很慢，且executeQueue限流大于biz线程池数量，可能会导致线程池排队
-                                    if (config.isUseBizThreadPool()) {
-                                        //采用异步线程池执行
-                                        bizThreadPool.execute(() -> runBizWork(mainTask, subTask, running));
-                                    } else {
-                                        //parallel线程直接运行
-                                        runBizWork(mainTask, subTask, running);
-                                    }
-                                }
-                            }
-                        } else {
-                            //说明所有的子任务都已经在执行了，主任务不在进入循环，删除主任务
-                            delMainTask(mainTask);
-                        }
+                    if (count <= 0) {
+                        //加权公平分配下本轮赤字不足，等待下次调度
+                        return;
+                    }
+                    boolean claimOnPoll = config.isUseClaimOnPoll();
+                    //获取、准入子任务、读取负载在一个会话中完成，并行线程各自使用自己的连接，执行业务前归还
+                    Map<String, InvokeParam> admitted = engine.withSession(() -> invokeParams(mainTask, admitSubTask(mainTask, count, claimOnPoll)));
+                    admittedMap.put(mainTask, admitted.size());
+                    if (!admitted.isEmpty()) {
+                        admittedTotal.addAndGet(admitted.size());
+                        metrics.incrementDispatched(prefix, admitted.size());
+                        dispatchBizWork(mainTask, admitted, running, claimOnPoll);
                     }
                 });
+                if (fair) {
+                    settleFair(waitMap, deficits, admittedMap);
+                }
             }
             //如果任务队列已经满了，则不再继续分配
-            if (!executeQueue.free()) {
-                break;
+            if (!executeQueue.free() || admittedTotal.get() >= budget) {
+                return false;
+            }
+            //有分配时不需要++，因为1.循环内部会删除已经分配的任务，所以只查询当前页可以保证数据也是会更新的，2.要按照优先级查询
+            //本页一个都没有分配(子任务都在延迟/运行中)，再查当前页结果不变，翻到下一页，避免空转
+            if (admittedTotal.get() == admittedBefore) {
+                pageNum++;
             }
-            //  pageNum++; 不需要++，因为1.循环内部会删除已经分配的任务，所以只查询第一页可以保证数据也是会更新的，2.要按照优先级查询
         } while (dbList != null && dbList.size() >= mainLoopSize);
-        log.info("本次循环分配了 {} 个任务", running.get());
+        return true;
+    }
+
+
+    /**
+     * 按等待数量比例分配
+     * 每个主任务分配的数量 = 剩余数量 * 等待数量 / 总的等待数量 + 1，至少为1，尽可能饱和
+     *
+     * @param waitMap 主任务 -> 等待的子任务数量
+     * @param wait    总的等待数量
+     * @param remain  本次可分配的数量
+     * @return 主任务 -> 分配数量
+     */
+    private Map<String, Integer> allocate(Map<String, Integer> waitMap, int wait, int remain) {
+        Map<String, Integer> assignMap = new LinkedHashMap<>(waitMap.size());
+        waitMap.forEach((mainTask, count) -> {
+            //等待的任务数/总的等待数量 = 比例
+            float rate = count.floatValue() / wait;
+            assignMap.put(mainTask, ((int) (remain * rate)) + 1);
+        });
+        return assignMap;
+    }
+
+    /**
+     * 加权公平分配(赤字轮询)
+     * 1.按权重把本次可分配的数量记入有等待子任务的主任务的赤字，主任务最多执行 赤字 个子任务，未用完的赤字留到下次调度
+     * 2.公平份额分配后还有剩余时，按权重分给还有等待子任务的主任务，保证执行队列饱和
+     * 3.没有等待子任务的主任务分配1个，由 admitSubTask 确认后删除
+     *
+     * @param waitMap  主任务 -> 等待的子任务数量
+     * @param remain   本次可分配的数量
+     * @param deficits 输出: 主任务 -> 本轮记入后的赤字
+     * @return 主任务 -> 分配数量
+     */
+    private Map<String, Integer> allocateFair(Map<String, Integer> waitMap, int remain, Map<String, Double> deficits) {
+        Map<String, Integer> assignMap = new LinkedHashMap<>(waitMap.size());
+        List<String> active = new ArrayList<>(waitMap.size());
+        waitMap.forEach((mainTask, count) -> {
+            if (count > 0) {
+                active.add(mainTask);
+            } else {
+                assignMap.put(mainTask, 1);
+            }
+        });
+        if (active.isEmpty()) {
+            return assignMap;
+        }
+        //权重、赤字在一个会话中获取
+        Map<String, Double> weights = new HashMap<>();
+        Map<String, Double> saved = new HashMap<>();
+        engine.withSession(() -> {
+            weights.putAll(rdsFairTask.scores(FAIR_WEIGHT, active));
+            saved.putAll(rdsFairTask.scores(FAIR_DEFICIT, active));
+            return null;
+        });
+        double totalWeight = 0;
+        for (String mainTask : active) {
+            totalWeight += weight(weights, mainTask);
+        }
+        int left = remain;
+        for (String mainTask : active) {
+            double deficit = saved.getOrDefault(mainTask, 0D) + remain * weight(weights, mainTask) / totalWeight;
+            deficits.put(mainTask, deficit);
+            int count = (int) Math.min(Math.floor(deficit), waitMap.get(mainTask));
+            assignMap.put(mainTask, count);
+            left -= count;
+        }
+        //剩余的数量按权重分给还有等待子任务的主任务，每轮至少分出1个
+        while (left > 0) {
+            double unsatisfiedWeight = 0;
+            for (String mainTask : active) {
+                if (assignMap.get(mainTask) < waitMap.get(mainTask)) {
+                    unsatisfiedWeight += weight(weights, mainTask);
+                }
+            }
+            if (unsatisfiedWeight == 0) {
+                break;
+            }
+            int round = left;
+            for (String mainTask : active) {
+                int need = waitMap.get(mainTask) - assignMap.get(mainTask);
+                if (need <= 0) {
+                    continue;
+                }
+                int extra = Math.min(Math.min(need, left), (int) Math.ceil(round * weight(weights, mainTask) / unsatisfiedWeight));
+                assignMap.put(mainTask, assignMap.get(mainTask) + extra);
+                left -= extra;
+                if (left <= 0) {
+                    break;
+                }
+            }
+        }
+        return assignMap;
+    }
+
+    /**
+     * 保存本轮分配后的赤字
+     * 扣除进入执行队列的数量，没有等待子任务的主任务赤字清零，赤字最多累积到执行队列的限制数量
+     *
+     * @param waitMap     主任务 -> 等待的子任务数量
+     * @param deficits    主任务 -> 本轮记入后的赤字
+     * @param admittedMap 主任务 -> 进入执行队列的数量
+     */
+    private void settleFair(Map<String, Integer> waitMap, Map<String, Double> deficits, Map<String, Integer> admittedMap) {
+        if (deficits.isEmpty()) {
+            return;
+        }
+        double cap = config.getExecuteTaskLimit();
+        Map<String, Double> next = new HashMap<>(deficits.size());
+        deficits.forEach((mainTask, deficit) -> {
+            int admitted = admittedMap.getOrDefault(mainTask, 0);
+            next.put(mainTask, waitMap.get(mainTask) <= admitted ? 0D : Math.min(Math.max(deficit - admitted, 0D), cap));
+        });
+        rdsFairTask.set(FAIR_DEFICIT, next);
+    }
+
+    private static double weight(Map<String, Double> weights, String mainTask) {
+        Double weight = weights.get(mainTask);
+        return weight == null || weight <= 0 ? DEFAULT_WEIGHT : weight;
+    }
+
+    /**
+     * 获取主任务已经到期的等待执行的子任务，并进入执行队列
+     * 按 立即执行 -> 最早到期 的顺序获取，没有等待执行(包括未到期)的子任务时删除主任务
+     *
+     * @param mainTask
+     * @param count       最多获取的数量
+     * @param claimOnPoll 是否使用认领模式
+     * @return 进入执行队列的子任务
+     */
+    private List<String> admitSubTask(String mainTask, int count, boolean claimOnPoll) {
+        if (!executeQueue.free()) {
+            return Collections.emptyList();
+        }
+        //分批获取 subTaskLimit个 子任务，认领模式下获取的同时已经进入执行队列并标记为执行中
+        double dueMin = SubTaskSchedule.dueMin(System.currentTimeMillis());
+        Set<String> subTaskList = claimOnPoll ?
+                rdsSubTask.claim(mainTask, SUB_TASK_WAIT, dueMin, SUB_TASK_RUNNING, count, executeQueue) :
+                rdsSubTask.pollDesc(mainTask, SUB_TASK_WAIT, dueMin, 0, count);
+        log.info("subTaskList size= {} list = {}", subTaskList.size(), subTaskList);
+        //子任务在执行完毕后，会降低limit，这样就可以继续分配了
+        if (CollUtil.isNotEmpty(subTaskList)) {
+            //进入执行队列的子任务
+            List<String> admitted = new ArrayList<>(subTaskList.size());
+            for (String subTask : subTaskList) {
+                //删除子任务的情景: 1.任务执行失败 2.异步回调，调用任务完成接口 3.任务超时
+                //executeQueue.contains(subTask) 的含义是支持父任务重复执行，但子任务不可重复执行
+                //原子准入模式下脚本内已经去重，不需要再检查
+                if (claimOnPoll || ((isAtomicAdmission() || !executeQueue.contains(subTask)) &&
+                        //尝试进入执行队列，记录所属的主任务用于超时回收
+                        executeQueue.offer(subTask, mainTask))) {
+                    admitted.add(subTask);
+                }
+            }
+            return admitted;
+        }
+        if (rdsSubTask.size(mainTask, SubTaskSchedule.MIN_SCORE, SUB_TASK_WAIT) == 0) {
+            //认领为空也可能是执行队列已满或者子任务未到期，需要确认没有等待的子任务
+            //说明所有的子任务都已经在执行了，主任务不在进入循环，删除主任务
+            delMainTask(mainTask);
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * 分发已经进入执行队列的子任务
+     *
+     * @param mainTask
+     * @param params   存储中的标识 -> 执行参数
+     * @param running
+     * @param claimed  是否已经认领
+     */
+    private void dispatchBizWork(String mainTask, Map<String, InvokeParam> params, final AtomicInteger running, boolean claimed) {
+        if (params.isEmpty()) {
+            return;
+        }
+        if (batchBizHandler != null) {
+            //批量业务，一个主任务的子任务一次性执行
+            if (config.isUseBizThreadPool()) {
+                bizThreadPool.execute(() -> runBatchBizWork(mainTask, params, running, claimed));
+            } else {
+                runBatchBizWork(mainTask, params, running, claimed);
+            }
+            return;
+        }
+        params.forEach((subTask, param) -> {
+            //是否使用线程池执行业务，此处不必担心线程池队列满了,因为executeQueue.add会对线程池进行限制
+            //如果业务执行很慢，且executeQueue限流大于biz线程池数量，可能会导致线程池排队
+            if (asyncBizHandler != null) {
+                //异步业务，结果在回调中处理，不占用线程
+                runBizWorkAsync(mainTask, subTask, param, running, claimed);
+            } else if (config.isUseBizThreadPool()) {
+                //采用异步线程池执行
+                bizThreadPool.execute(() -> runBizWork(mainTask, subTask, param, running, claimed));
+            } else {
+                //parallel线程直接运行
+                runBizWork(mainTask, subTask, param, running, claimed);
+            }
+        });
     }
 
+    /**
+     * 批量执行子任务
+     * 执行结果在一次redis往返中记录，规则同单个子任务
+     *
+     * @param mainTask
+     * @param params
+     * @param running
+     * @param claimed  是否已经认领
+     */
+    private void runBatchBizWork(String mainTask, Map<String, InvokeParam> params, final AtomicInteger running, boolean claimed) {
+        Map<String, String> result = invokeBatchBizTask(params);
+        List<String> success = new ArrayList<>(params.size());
+        //失败的子任务 -> 失败原因
+        Map<String, String> failed = new LinkedHashMap<>();
+        result.forEach((subTask, error) -> {
+            if (error == null) {
+                success.add(subTask);
+            } else {
+                failed.put(subTask, error);
+            }
+        });
+        Set<String> dropped = batchResultRecorder.record(mainTask, success, failed, claimed);
+        running.addAndGet(success.size());
+        metrics.incrementSuccess(prefix, success.size());
+        metrics.incrementFailure(prefix, failed.size());
+        metrics.incrementRetryDropped(prefix, dropped.size());
+        if (!failed.isEmpty()) {
+            log.info("subTask biz_run_failed {}", failed.keySet());
+            //失败的子任务已经移出执行队列，唤醒调度
+            signalDispatch();
+        }
+        if (!dropped.isEmpty()) {
+            log.info("subTask did_max_retryCount_drop_task {}", dropped);
+        }
+    }
 
     /**
      * 执行子任务
      * 1.如果执行成功，更新子任务为执行中状态，这样下次扫描不会再次分配
      * 2.如果执行失败，不更改子任务状态，将任务从执行队列中剔除，增加子任务重试次数
      * 3.如果重试次数超过最大重试次数，则删除子任务，再也不会执行该任务
+     * 4.认领的子任务已经是执行中状态，成功时不需要再更新，失败时恢复为等待状态
      *
      * @param mainTask
-     * @param subTask
+     * @param subTask  存储中的标识
+     * @param param
      * @param running
+     * @param claimed  是否已经认领
      */
 
-    private void runBizWork(String mainTask, String subTask, final AtomicInteger running) {
+    private void runBizWork(String mainTask, String subTask, InvokeParam param, final AtomicInteger running, boolean claimed) {
         //执行业务逻辑
-        if (doBizTask(mainTask, subTask)) {
-            //更新子任务为执行中状态，这样下次扫描不会再次分配
-            rdsSubTask.set(mainTask, subTask, SUB_TASK_RUNNING);
+        handleBizResult(mainTask, subTask, invokeBizTask(param), running, claimed);
+    }
+
+    /**
+     * 异步执行子任务
+     * 执行中状态、主任务优先级、重试记录在业务完成的回调中处理
+     * 使用业务线程池时回调切换到业务线程池执行，避免在业务方的io线程上访问redis
+     *
+     * @param mainTask
+     * @param subTask  存储中的标识
+     * @param param
+     * @param running
+     * @param claimed  是否已经认领
+     */
+    private void runBizWorkAsync(String mainTask, String subTask, InvokeParam param, final AtomicInteger running, boolean claimed) {
+        long start = System.nanoTime();
+        BiConsumer<Boolean, Throwable> callback = (success, e) -> {
+            metrics.recordBiz(prefix, TaskMetrics.BIZ_ASYNC, System.nanoTime() - start, e == null && Boolean.TRUE.equals(success));
+            if (e != null) {
+                log.info("subTask biz_async_failed {} {}", subTask, ExceptionUtil.getMessage(e, 10));
+            }
+            try {
+                String error = e != null ? errorSummary(e) : Boolean.TRUE.equals(success) ? null : BIZ_RETURN_FALSE;
+                handleBizResult(mainTask, subTask, error, running, claimed);
+            } catch (Exception ex) {
+                log.info("subTask handle_biz_result_failed {} {}", subTask, ExceptionUtil.getMessage(ex, 10));
+            }
+        };
+        CompletionStage<Boolean> result = invokeBizTaskAsync(param);
+        if (config.isUseBizThreadPool()) {
+            result.whenCompleteAsync(callback, bizThreadPool);
+        } else {
+            result.whenComplete(callback);
+        }
+    }
+
+    /**
+     * 处理业务执行结果
+     *
+     * @param mainTask
+     * @param subTask
+     * @param error    失败原因，执行成功为null
+     * @param running
+     * @param claimed  是否已经认领
+     */
+    private void handleBizResult(String mainTask, String subTask, String error, final AtomicInteger running, boolean claimed) {
+        //结果记录的多个操作在一个会话中完成，业务线程、异步回调线程也只借出一次连接
+        engine.withSession(() -> {
+            recordBizResult(mainTask, subTask, error, running, claimed);
+            return null;
+        });
+    }
+
+    private void recordBizResult(String mainTask, String subTask, String error, final AtomicInteger running, boolean claimed) {
+        if (error == null) {
+            if (!claimed) {
+                //更新子任务为执行中状态，这样下次扫描不会再次分配
+                //子任务可能已经在业务中调用finishSubTask完成，不能重新添加
+                rdsSubTask.setIfPresent(mainTask, subTask, SUB_TASK_RUNNING);
+            }
             //更新主任务为高优先级，优先集中处理同一个主任务的子任务
             upgradeMainTaskPriority(mainTask);
             //执行成功，计数器+1
             running.incrementAndGet();
+            metrics.incrementSuccess(prefix, 1);
         } else {
             //业务逻辑执行失败，说明需要重试
             //将子任务从执行队列中剔除
             executeQueue.remove(subTask);
             log.info("subTask biz_run_failed {}", subTask);
-            //增加重试次数
-            retryRecorder.addRetryRecord(mainTask, subTask);
-            if (retryRecorder.getRetryCount(mainTask, subTask) > config.getRetryCount()) {
-                //删除重试记录
-                retryRecorder.delRetryRecord(mainTask, subTask);
-                //删除子任务，再也不会执行该任务
+            metrics.incrementFailure(prefix, 1);
+            //增加重试次数，超过最大重试次数会删除重试记录和子任务，再也不会执行该任务
+            //认领的子任务未超过重试次数时恢复为等待状态，等待下次重试
+            //超过最大重试次数时记录死信
+            boolean drop = claimed ? retryRecorder.recordFailure(mainTask, subTask, SUB_TASK_WAIT, error) :
+                    retryRecorder.recordFailure(mainTask, subTask, error);
+            if (drop) {
                 log.info("subTask did_max_retryCount_drop_task {}", subTask);
-                rdsSubTask.remove(mainTask, subTask);
+                metrics.incrementRetryDropped(prefix, 1);
             }
+            //执行队列空出位置，子任务也可能已经恢复为等待状态，唤醒调度
+            signalDispatch();
         }
     }
 
     /**
-     * 删除过期任务
-     *
-     * @param mainLoopSize
+     * 回收执行超时的任务
+     * 1.分批读取执行队列中超时的任务及所属的主任务，直到没有超时的任务
+     * 2.按主任务回收，子任务增加重试次数并恢复为等待状态，超过最大重试次数删除并记录死信
+     * 3.没有记录所属主任务的任务只从执行队列中删除
+     * 4.恢复了子任务的主任务重新加入主任务列表，所有子任务都在执行时主任务已经删除
      */
-    private void clearOutTimeTask(int mainLoopSize) {
-        //获取执行过期的任务
-        long deadline = System.currentTimeMillis() - config.getTaskTimeout();
-        Set<String> expireTaskList = executeQueue.poll(mainLoopSize, deadline);
-        if (!expireTaskList.isEmpty()) {
-            //删除过期任务
-            expireTaskList.forEach(task -> {
-                long time = executeQueue.getTaskExecuteTime(task);
-                log.info("expireTaskList task {} time {}", task, time);
-                executeQueue.remove(task);
+    private void clearOutTimeTask() {
+        //开启租约时从最后一次心跳开始计算
+        long lease = config.getTaskLeaseTime();
+        long deadline = System.currentTimeMillis() - (lease > 0 ? lease : config.getTaskTimeout());
+        int batchSize = Math.max(config.getTimeoutReapBatchSize(), 1);
+        int reaped = 0;
+        int requeued = 0;
+        int dropped = 0;
+        Map<String, String> expireTaskMap;
+        do {
+            expireTaskMap = executeQueue.pollOwner(batchSize, deadline);
+            //主任务 -> 超时的子任务
+            Map<String, List<String>> ownerMap = new LinkedHashMap<>();
+            for (Map.Entry<String, String> item : expireTaskMap.entrySet()) {
+                if (item.getValue() == null) {
+                    if (executeQueue.remove(item.getKey())) {
+                        reaped++;
+                    }
+                } else {
+                    ownerMap.computeIfAbsent(item.getValue(), k -> new ArrayList<>()).add(item.getKey());
+                }
+            }
+            if (ownerMap.isEmpty()) {
+                continue;
+            }
+            //一批回收在一个会话中完成
+            Map<String, Boolean> result = engine.withSession(() -> {
+                Map<String, Boolean> reclaimed = new LinkedHashMap<>();
+                ownerMap.forEach((mainTask, subTaskList) -> {
+                    Map<String, Boolean> mainReclaimed = batchResultRecorder.reclaim(mainTask, subTaskList, TIMEOUT_ERROR);
+                    if (mainReclaimed.containsValue(false)) {
+                        addMainTask(mainTask);
+                    }
+                    reclaimed.putAll(mainReclaimed);
+                });
+                return reclaimed;
             });
+            for (Boolean drop : result.values()) {
+                if (drop) {
+                    dropped++;
+                } else {
+                    requeued++;
+                }
+            }
+            reaped += result.size();
+        } while (expireTaskMap.size() >= batchSize);
+        if (reaped > 0) {
+            log.info("clearOutTimeTask reaped {} requeued {} dropped {}", reaped, requeued, dropped);
+            metrics.incrementTimeoutReaped(prefix, reaped);
+            metrics.incrementTimeoutRequeued(prefix, requeued);
+            metrics.incrementRetryDropped(prefix, dropped);
         }
     }
 
@@ -254,15 +843,21 @@ public class RdsBatchTaskHandler extends AbstractBatchTaskHandler<String> {
      * 如果所有子任务都已经完成，则删除主任务
      */
     private void checkAndClearMainTask() {
+        for (String mainKey : dispatchMainTaskKeys) {
+            checkAndClearMainTask(mainKey);
+        }
+    }
+
+    private void checkAndClearMainTask(String mainKey) {
         //获取所有已经完成的任务
         int pageNum = 0;
         int pageSize = 10;
-        //只查询高优先级的任务
-        Set<String> mainTaskList = rdsMainTask.pollAsc(mainTaskName, DEFAULT_PRIORITY_HIGH, DEFAULT_PRIORITY_HIGH, pageNum, pageSize);
+        //只查询进行中的主任务
+        Set<String> mainTaskList = rdsMainTask.pollAsc(mainKey, MainTaskPriority.MIN_SCORE, MainTaskPriority.IN_PROGRESS_MAX_SCORE, pageNum, pageSize);
         if (mainTaskList != null) {
             for (String mainTask : mainTaskList) {
                 // 检测等待执行的子任务 limit 1
-                Set<String> subTask = rdsSubTask.poll(mainTask, SUB_TASK_WAIT, 0, 1);
+                Set<String> subTask = rdsSubTask.poll(mainTask, SubTaskSchedule.MIN_SCORE, SUB_TASK_WAIT, 0, 1);
                 //说明所有的子任务都已经在执行了，主任务不在进入循环，删除主任务
                 if (subTask == null || subTask.size() == 0) {
                     log.info("检测出主任务已经完成删除主任务:{}", mainTask);
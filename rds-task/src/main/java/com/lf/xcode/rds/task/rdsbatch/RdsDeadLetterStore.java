@@ -0,0 +1,192 @@
+package com.lf.xcode.rds.task.rdsbatch;
+
+import cn.hutool.json.JSONUtil;
+import com.lf.xcode.rds.task.rdsbatch.config.BatchTaskConfig;
+import com.lf.xcode.rds.task.rdsbatch.param.DeadLetter;
+import com.lf.xcode.rds.task.rdstask.RdsClient;
+import com.lf.xcode.rds.task.rdstask.RdsScript;
+import com.lf.xcode.rds.task.rdstask.RdsZsetTask;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 基于redis的死信存储
+ * 1.hash保存死信，field为死信标识，value为json
+ * 2.zset索引，member为死信标识，score为进入死信的时间，用于分页和按时间清理
+ * 3.重试记录、批量结果记录在删除子任务的同一个lua脚本中写入死信
+ */
+public class RdsDeadLetterStore implements DeadLetterStore {
+
+    private static final String DEAD_LETTER = "DEAD_LETTER";
+    //每次清理的数量
+    private static final int PURGE_BATCH_SIZE = 1000;
+
+    //写入死信函数 hk/ik:死信hash和索引在KEYS中的下标 max:最大数量，小于等于0不记录
+    //超过最大数量时删除最早的死信，每次最多删除 TRIM_BATCH_SIZE 个
+    static final String DEAD_LETTER_FUNCTION =
+            "local function dead_letter(hk, ik, main, sub, err, count, now, max) " +
+                    "  if max <= 0 then return end " +
+                    "  local id = #main .. ':' .. main .. ':' .. sub " +
+                    "  redis.call('hset', KEYS[hk], id, cjson.encode({mainTask = main, subTask = sub, error = err, attempts = count, deadAt = now})) " +
+                    "  redis.call('zadd', KEYS[ik], now, id) " +
+                    "  local excess = math.min(redis.call('zcard', KEYS[ik]) - max, " + TRIM_BATCH_SIZE + ") " +
+                    "  if excess > 0 then " +
+                    "    local old = redis.call('zrange', KEYS[ik], 0, excess - 1) " +
+                    "    redis.call('hdel', KEYS[hk], unpack(old)) " +
+                    "    redis.call('zremrangebyrank', KEYS[ik], 0, excess - 1) " +
+                    "  end " +
+                    "end ";
+
+    //写入脚本 KEYS[1]:死信 KEYS[2]:索引 ARGV:主任务,子任务,失败原因,失败次数,进入时间,最大数量
+    private static final RdsScript ADD_SCRIPT = new RdsScript(DEAD_LETTER_FUNCTION +
+            "dead_letter(1, 2, ARGV[1], ARGV[2], ARGV[3], tonumber(ARGV[4]), tonumber(ARGV[5]), tonumber(ARGV[6])) " +
+            "return 1");
+
+    //取出脚本 KEYS[1]:死信 KEYS[2]:索引 ARGV:数量
+    private static final RdsScript POP_SCRIPT = new RdsScript(
+            "local ids = redis.call('zrange', KEYS[2], 0, tonumber(ARGV[1]) - 1) " +
+                    "if #ids == 0 then return {} end " +
+                    "local values = redis.call('hmget', KEYS[1], unpack(ids)) " +
+                    "redis.call('hdel', KEYS[1], unpack(ids)) " +
+                    "redis.call('zrem', KEYS[2], unpack(ids)) " +
+                    "local result = {} " +
+                    "for _, value in ipairs(values) do " +
+                    "  if value then result[#result + 1] = value end " +
+                    "end " +
+                    "return result");
+
+    //清理脚本 KEYS[1]:死信 KEYS[2]:索引 ARGV:截止时间,数量
+    private static final RdsScript PURGE_SCRIPT = new RdsScript(
+            "local ids = redis.call('zrangebyscore', KEYS[2], '-inf', '(' .. ARGV[1], 'LIMIT', 0, ARGV[2]) " +
+                    "if #ids > 0 then " +
+                    "  redis.call('hdel', KEYS[1], unpack(ids)) " +
+                    "  redis.call('zrem', KEYS[2], unpack(ids)) " +
+                    "end " +
+                    "return #ids");
+
+    private final BatchTaskConfig config;
+    private final String prefix;
+    private final RdsClient client;
+
+    public RdsDeadLetterStore(BatchTaskConfig config, String prefix, RdsClient client) {
+        this.config = config;
+        this.prefix = prefix;
+        this.client = client;
+    }
+
+    public String getName() {
+        return RdsZsetTask.XCODE_RDS_TASK_RDS_ZSET_TASK + prefix + DEAD_LETTER;
+    }
+
+    public String getIndexName() {
+        return getName() + ":INDEX";
+    }
+
+    /**
+     * 死信hash、索引，lua脚本中按顺序使用
+     *
+     * @return
+     */
+    List<String> getScriptKeys() {
+        return Arrays.asList(getName(), getIndexName());
+    }
+
+    @Override
+    public void add(DeadLetter deadLetter) {
+        client.execute("deadLetter.add", jedis -> ADD_SCRIPT.eval(jedis, getScriptKeys(),
+                Arrays.asList(deadLetter.getMainTask(), deadLetter.getSubTask(), deadLetter.getError() == null ? "" : deadLetter.getError(),
+                        String.valueOf(deadLetter.getAttempts()), String.valueOf(deadLetter.getDeadAt()),
+                        String.valueOf(config.getDeadLetterMaxSize()))));
+    }
+
+    @Override
+    public int size() {
+        return client.execute("deadLetter.size", jedis -> {
+            Long zcard = jedis.zcard(getIndexName());
+            return zcard == null ? 0 : zcard.intValue();
+        });
+    }
+
+    @Override
+    public List<DeadLetter> list(int pageNum, int pageSize) {
+        if (pageSize <= 0) {
+            return Collections.emptyList();
+        }
+        long start = (long) (Math.max(pageNum, 1) - 1) * pageSize;
+        return client.execute("deadLetter.list", jedis -> {
+            Collection<String> ids = jedis.zrange(getIndexName(), start, start + pageSize - 1);
+            if (ids == null || ids.isEmpty()) {
+                return Collections.<DeadLetter>emptyList();
+            }
+            List<String> values = jedis.hmget(getName(), ids.toArray(new String[0]));
+            List<DeadLetter> result = new ArrayList<>(values.size());
+            for (String value : values) {
+                //索引和hash不一致时跳过
+                if (value != null) {
+                    result.add(JSONUtil.toBean(value, DeadLetter.class));
+                }
+            }
+            return result;
+        });
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<DeadLetter> pop(int size) {
+        if (size <= 0) {
+            return Collections.emptyList();
+        }
+        return client.execute("deadLetter.pop", jedis -> {
+            List<String> values = (List<String>) POP_SCRIPT.eval(jedis, getScriptKeys(),
+                    Collections.singletonList(String.valueOf(Math.min(size, TRIM_BATCH_SIZE))));
+            List<DeadLetter> result = new ArrayList<>(values.size());
+            //索引和hash不一致时脚本已经跳过
+            for (String value : values) {
+                result.add(JSONUtil.toBean(value, DeadLetter.class));
+            }
+            return result;
+        });
+    }
+
+    @Override
+    public int remove(Collection<DeadLetter> deadLetters) {
+        if (deadLetters.isEmpty()) {
+            return 0;
+        }
+        String[] ids = deadLetters.stream().map(item -> DeadLetterStore.id(item.getMainTask(), item.getSubTask()))
+                .toArray(String[]::new);
+        return client.execute("deadLetter.remove", jedis -> {
+            Pipeline pipeline = jedis.pipelined();
+            pipeline.hdel(getName(), ids);
+            Response<Long> removed = pipeline.zrem(getIndexName(), ids);
+            pipeline.sync();
+            return removed.get() == null ? 0 : removed.get().intValue();
+        });
+    }
+
+    @Override
+    public int purge(long deadBefore) {
+        int total = 0;
+        int removed;
+        do {
+            removed = client.execute("deadLetter.purge", jedis -> {
+                Object result = PURGE_SCRIPT.eval(jedis, getScriptKeys(),
+                        Arrays.asList(String.valueOf(deadBefore), String.valueOf(PURGE_BATCH_SIZE)));
+                return result == null ? 0 : ((Long) result).intValue();
+            });
+            total += removed;
+        } while (removed >= PURGE_BATCH_SIZE);
+        return total;
+    }
+
+    @Override
+    public void clear() {
+        client.execute("deadLetter.clear", jedis -> jedis.del(getName(), getIndexName()));
+    }
+}
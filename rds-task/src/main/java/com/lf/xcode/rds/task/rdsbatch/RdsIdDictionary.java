@@ -0,0 +1,118 @@
+package com.lf.xcode.rds.task.rdsbatch;
+
+import com.lf.xcode.rds.task.rdsbatch.config.BatchTaskConfig;
+import com.lf.xcode.rds.task.rdstask.RdsClient;
+import com.lf.xcode.rds.task.rdstask.RdsScript;
+import com.lf.xcode.rds.task.rdstask.RdsZsetTask;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 基于redis-hash的子任务标识前缀字典
+ * 1.正向hash 前缀->句柄，反向hash 句柄->前缀，句柄为反向hash数量的62进制，只增不删所以不会重复
+ * 2.分配在lua脚本中完成，多个节点同时分配同一个前缀得到相同的句柄
+ * 3.前缀数量远小于子任务数量，字典本身占用的内存可以忽略
+ */
+public class RdsIdDictionary implements IdDictionary {
+
+    private static final String ID_DICT = "ID_DICT";
+
+    //分配脚本 KEYS[1]:正向 KEYS[2]:反向 ARGV:最大数量,前缀...
+    //返回与前缀顺序一致的句柄，字典已满时为false
+    private static final RdsScript HANDLES_SCRIPT = new RdsScript(
+            "local digits = '" + SubTaskIdCodec.DIGITS + "' " +
+                    "local max = tonumber(ARGV[1]) " +
+                    "local result = {} " +
+                    "for i = 2, #ARGV do " +
+                    "  local h = redis.call('hget', KEYS[1], ARGV[i]) " +
+                    "  if not h then " +
+                    "    local n = redis.call('hlen', KEYS[2]) " +
+                    "    if n < max then " +
+                    "      h = '' " +
+                    "      repeat " +
+                    "        local d = n % 62 " +
+                    "        h = string.sub(digits, d + 1, d + 1) .. h " +
+                    "        n = math.floor(n / 62) " +
+                    "      until n == 0 " +
+                    "      redis.call('hset', KEYS[1], ARGV[i], h) " +
+                    "      redis.call('hset', KEYS[2], h, ARGV[i]) " +
+                    "    else " +
+                    "      h = false " +
+                    "    end " +
+                    "  end " +
+                    "  result[#result + 1] = h " +
+                    "end " +
+                    "return result");
+
+    private final BatchTaskConfig config;
+    private final String prefix;
+    private final RdsClient client;
+
+    public RdsIdDictionary(BatchTaskConfig config, String prefix, RdsClient client) {
+        this.config = config;
+        this.prefix = prefix;
+        this.client = client;
+    }
+
+    public String getName() {
+        return RdsZsetTask.XCODE_RDS_TASK_RDS_ZSET_TASK + prefix + ID_DICT;
+    }
+
+    public String getReverseName() {
+        return getName() + ":REVERSE";
+    }
+
+    @Override
+    public Map<String, String> handles(Collection<String> prefixes) {
+        if (prefixes.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        List<String> prefixList = new ArrayList<>(prefixes);
+        List<String> args = new ArrayList<>(prefixList.size() + 1);
+        args.add(String.valueOf(config.getIdDictionaryMaxSize()));
+        args.addAll(prefixList);
+        return client.execute("idDictionary.handles", jedis -> {
+            @SuppressWarnings("unchecked")
+            List<String> handles = (List<String>) HANDLES_SCRIPT.eval(jedis, Arrays.asList(getName(), getReverseName()), args);
+            Map<String, String> result = new HashMap<>(prefixList.size());
+            for (int i = 0; i < prefixList.size() && i < handles.size(); i++) {
+                if (handles.get(i) != null) {
+                    result.put(prefixList.get(i), handles.get(i));
+                }
+            }
+            return result;
+        });
+    }
+
+    @Override
+    public Map<String, String> prefixes(Collection<String> handles) {
+        if (handles.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        String[] fields = handles.toArray(new String[0]);
+        return client.execute("idDictionary.prefixes", jedis -> {
+            List<String> values = jedis.hmget(getReverseName(), fields);
+            Map<String, String> result = new HashMap<>(fields.length);
+            for (int i = 0; i < fields.length && i < values.size(); i++) {
+                if (values.get(i) != null) {
+                    result.put(fields[i], values.get(i));
+                }
+            }
+            return result;
+        });
+    }
+
+    @Override
+    public int size() {
+        return client.execute("idDictionary.size", jedis -> {
+            Long hlen = jedis.hlen(getReverseName());
+            return hlen == null ? 0 : hlen.intValue();
+        });
+    }
+}
@@ -0,0 +1,98 @@
+package com.lf.xcode.rds.task.rdsbatch;
+
+import com.lf.xcode.rds.task.rdsbatch.config.BatchTaskConfig;
+import com.lf.xcode.rds.task.rdstask.RdsClient;
+import com.lf.xcode.rds.task.rdstask.RdsZsetTask;
+import redis.clients.jedis.Pipeline;
+import redis.clients.util.SafeEncoder;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 基于redis-hash的子任务负载存储
+ * 1.每个主任务一个hash，field为子任务，value为编码后的负载，使用二进制读写，不经过字符串转义
+ * 2.设置子任务过期时间时，过期时间=子任务过期时间*(负载数量+1)，只延长不缩短，同子任务列表
+ * 3.写入和延长过期时间在一次往返中完成
+ */
+public class RdsPayloadStore implements PayloadStore {
+
+    private static final String PAYLOAD = "PAYLOAD";
+
+    //延长过期时间脚本 KEYS[1]:负载 ARGV:单个子任务过期时间
+    private static final String EXPIRE_SCRIPT =
+            "local timeout = tonumber(ARGV[1]) * (redis.call('hlen', KEYS[1]) + 1) " +
+                    "if redis.call('pttl', KEYS[1]) < timeout then redis.call('pexpire', KEYS[1], timeout) end " +
+                    "return 1";
+
+    private final BatchTaskConfig config;
+    private final String prefix;
+    private final RdsClient client;
+
+    public RdsPayloadStore(BatchTaskConfig config, String prefix, RdsClient client) {
+        this.config = config;
+        this.prefix = prefix;
+        this.client = client;
+    }
+
+    public String getName(String mainTask) {
+        return RdsZsetTask.XCODE_RDS_TASK_RDS_ZSET_TASK + prefix + PAYLOAD + ":" + mainTask;
+    }
+
+    @Override
+    public void put(String mainTask, Map<String, String> payloads) {
+        if (payloads.isEmpty()) {
+            return;
+        }
+        String name = getName(mainTask);
+        int threshold = config.getPayloadCompressThreshold();
+        Map<byte[], byte[]> hash = new HashMap<>(payloads.size());
+        payloads.forEach((subTask, payload) -> hash.put(SafeEncoder.encode(subTask), PayloadCodec.encode(payload, threshold)));
+        long expire = config.getSubTaskExpireTime();
+        client.execute("payload.put", jedis -> {
+            Pipeline pipeline = jedis.pipelined();
+            pipeline.hmset(SafeEncoder.encode(name), hash);
+            if (expire > 0) {
+                pipeline.eval(EXPIRE_SCRIPT, Collections.singletonList(name), Collections.singletonList(String.valueOf(expire)));
+            }
+            pipeline.sync();
+            return null;
+        });
+    }
+
+    @Override
+    public Map<String, String> get(String mainTask, Collection<String> subTasks) {
+        if (subTasks.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        String[] fields = subTasks.toArray(new String[0]);
+        byte[][] binaryFields = new byte[fields.length][];
+        for (int i = 0; i < fields.length; i++) {
+            binaryFields[i] = SafeEncoder.encode(fields[i]);
+        }
+        List<byte[]> values = client.execute("payload.get", jedis -> jedis.hmget(SafeEncoder.encode(getName(mainTask)), binaryFields));
+        Map<String, String> result = new HashMap<>(fields.length);
+        for (int i = 0; i < fields.length && i < values.size(); i++) {
+            if (values.get(i) != null) {
+                result.put(fields[i], PayloadCodec.decode(values.get(i)));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void remove(String mainTask, Collection<String> subTasks) {
+        if (subTasks.isEmpty()) {
+            return;
+        }
+        client.execute("payload.remove", jedis -> jedis.hdel(getName(mainTask), subTasks.toArray(new String[0])));
+    }
+
+    @Override
+    public void clear(String mainTask) {
+        client.execute("payload.clear", jedis -> jedis.del(getName(mainTask)));
+    }
+}
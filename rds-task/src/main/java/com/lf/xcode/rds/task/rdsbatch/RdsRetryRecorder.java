@@ -0,0 +1,215 @@
+package com.lf.xcode.rds.task.rdsbatch;
+
+import cn.hutool.core.util.ObjectUtil;
+import com.lf.xcode.rds.task.rdsbatch.config.BatchTaskConfig;
+import com.lf.xcode.rds.task.rdstask.RdsClient;
+import com.lf.xcode.rds.task.rdstask.RdsScript;
+import com.lf.xcode.rds.task.rdstask.RdsZsetTask;
+import redis.clients.jedis.Jedis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * 基于redis的任务重试记录
+ * 每个主任务一个hash，field为子任务，value为重试次数
+ */
+public class RdsRetryRecorder implements RetryRecorder {
+
+    private String prefix;
+    private BatchTaskConfig config;
+    private RdsClient client;
+    //子任务
+    private RdsZsetTask rdsSubTask;
+    //死信
+    private RdsDeadLetterStore deadLetterStore;
+
+    public RdsRetryRecorder(BatchTaskConfig config, String prefix, Supplier<Jedis> jedisSupplier, RdsZsetTask rdsSubTask) {
+        this(config, prefix, new RdsClient(jedisSupplier), rdsSubTask);
+    }
+
+    public RdsRetryRecorder(BatchTaskConfig config, String prefix, RdsClient client, RdsZsetTask rdsSubTask) {
+        this(config, prefix, client, rdsSubTask, new RdsDeadLetterStore(config, prefix, client));
+    }
+
+    public RdsRetryRecorder(BatchTaskConfig config, String prefix, RdsClient client, RdsZsetTask rdsSubTask,
+                            RdsDeadLetterStore deadLetterStore) {
+        this.config = config;
+        this.prefix = prefix;
+        this.client = client;
+        this.rdsSubTask = rdsSubTask;
+        this.deadLetterStore = deadLetterStore;
+    }
+
+    private static final String RETRY_COUNT_RECORD = "RETRY_RECORD";
+    private static final String NO_RESTORE = "";
+
+    //重试退避函数 b:退避参数的起始下标 ARGV[b..b+5]:当前时间,基数,倍数,上限,抖动,随机数
+    //返回第count次失败后等待中的分数(-下次执行时间)，没有开启退避返回nil，同 SubTaskSchedule.retryDelay
+    //同一批的第i个子任务随机数偏移 i*0.618034，避免同时重试
+    static final String RETRY_SCORE_FUNCTION =
+            "local function retry_score(b, count, i) " +
+                    "  local base = tonumber(ARGV[b + 1]) " +
+                    "  if base <= 0 then return nil end " +
+                    "  local delay = math.min(base * tonumber(ARGV[b + 2]) ^ (count - 1), tonumber(ARGV[b + 3])) " +
+                    "  local rnd = (tonumber(ARGV[b + 5]) + i * 0.618034) % 1 " +
+                    "  return -(tonumber(ARGV[b]) + math.floor(delay * (1 - tonumber(ARGV[b + 4]) * rnd))) " +
+                    "end ";
+
+    //记录失败脚本 KEYS[1]:重试记录 KEYS[2]:子任务 KEYS[3]:死信 KEYS[4]:死信索引
+    //ARGV:子任务,记录过期时间,最大重试次数,恢复的分数,退避参数(6个),主任务,失败原因,死信最大数量
+    //开启退避时未超过最大重试次数的子任务延迟到下次执行时间，否则恢复为指定的分数
+    //返回1表示超过最大重试次数，子任务已经删除并记录死信
+    private static final RdsScript RECORD_FAILURE_SCRIPT = new RdsScript(RETRY_SCORE_FUNCTION +
+            RdsDeadLetterStore.DEAD_LETTER_FUNCTION +
+            "local count = redis.call('hincrby', KEYS[1], ARGV[1], 1) " +
+                    "if count > tonumber(ARGV[3]) then " +
+                    "  redis.call('hdel', KEYS[1], ARGV[1]) " +
+                    "  redis.call('zrem', KEYS[2], ARGV[1]) " +
+                    "  dead_letter(3, 4, ARGV[11], ARGV[1], ARGV[12], count, tonumber(ARGV[5]), tonumber(ARGV[13])) " +
+                    "  return 1 " +
+                    "end " +
+                    "redis.call('pexpireat', KEYS[1], ARGV[2]) " +
+                    "local score = retry_score(5, count, 0) or ARGV[4] " +
+                    "if score ~= '' then redis.call('zadd', KEYS[2], 'XX', score, ARGV[1]) end " +
+                    "return 0");
+
+    protected String generateRetryRecordKey(String mainTask) {
+        return RdsZsetTask.XCODE_RDS_TASK_RDS_ZSET_TASK + prefix + RETRY_COUNT_RECORD + ":" + mainTask;
+    }
+
+    /**
+     * 重试记录的过期时间，留足够的记录时间
+     *
+     * @return
+     */
+    long recordExpireAt() {
+        return System.currentTimeMillis() + config.getTaskTimeout() * (config.getRetryCount() + 1);
+    }
+
+    /**
+     * 死信参数 主任务,失败原因,死信最大数量
+     *
+     * @param mainTask
+     * @param error
+     * @return
+     */
+    List<String> deadLetterArgs(String mainTask, String error) {
+        return Arrays.asList(mainTask, error == null ? "" : error, String.valueOf(config.getDeadLetterMaxSize()));
+    }
+
+    RdsDeadLetterStore getDeadLetterStore() {
+        return deadLetterStore;
+    }
+
+    /**
+     * 重试退避参数 当前时间,基数,倍数,上限,抖动,随机数
+     *
+     * @return
+     */
+    List<String> backoffArgs() {
+        List<String> args = new ArrayList<>(6);
+        args.add(String.valueOf(System.currentTimeMillis()));
+        args.add(String.valueOf(config.getRetryBackoffBase()));
+        args.add(String.valueOf(config.getRetryBackoffMultiplier()));
+        args.add(String.valueOf(SubTaskSchedule.maxDelay(config)));
+        args.add(String.valueOf(config.getRetryBackoffJitter()));
+        args.add(String.valueOf(ThreadLocalRandom.current().nextDouble()));
+        return args;
+    }
+
+    /**
+     * 重试次数+1
+     *
+     * @param subTask
+     */
+    @Override
+    public void addRetryRecord(String mainTask, String subTask) {
+        String key = generateRetryRecordKey(mainTask);
+        client.execute("retry.add", jedis -> {
+            jedis.hincrBy(key, subTask, 1);
+            return jedis.pexpireAt(key, recordExpireAt());
+        });
+    }
+
+    /**
+     * 获取重试次数
+     *
+     * @param subTask
+     * @return
+     */
+    @Override
+    public int getRetryCount(String mainTask, String subTask) {
+        String key = generateRetryRecordKey(mainTask);
+        return client.execute("retry.get", jedis -> {
+            String count = jedis.hget(key, subTask);
+            return ObjectUtil.isEmpty(count) ? 0 : Integer.parseInt(count);
+        });
+    }
+
+    /**
+     * 删除重试记录
+     *
+     * @param subTask
+     */
+    @Override
+    public void delRetryRecord(String mainTask, String subTask) {
+        String key = generateRetryRecordKey(mainTask);
+        client.execute("retry.del", jedis -> jedis.hdel(key, subTask));
+    }
+
+    /**
+     * 删除主任务下所有的重试记录
+     *
+     * @param mainTask
+     */
+    @Override
+    public void clearRetryRecord(String mainTask) {
+        client.execute("retry.clear", jedis -> jedis.del(generateRetryRecordKey(mainTask)));
+    }
+
+    /**
+     * 记录一次失败，并判断是否需要丢弃
+     * 超过最大重试次数时，删除重试记录和子任务，并记录死信
+     *
+     * @param mainTask
+     * @param subTask
+     * @param error    失败原因
+     * @return true:超过最大重试次数，子任务已经删除
+     */
+    @Override
+    public boolean recordFailure(String mainTask, String subTask, String error) {
+        return recordFailure(mainTask, subTask, NO_RESTORE, error);
+    }
+
+    /**
+     * 记录一次失败，并判断是否需要丢弃
+     * 未超过最大重试次数时，将子任务恢复为指定的分数
+     *
+     * @param mainTask
+     * @param subTask
+     * @param restoreScore 恢复的分数
+     * @param error        失败原因
+     * @return true:超过最大重试次数，子任务已经删除
+     */
+    @Override
+    public boolean recordFailure(String mainTask, String subTask, double restoreScore, String error) {
+        return recordFailure(mainTask, subTask, String.valueOf(restoreScore), error);
+    }
+
+    private boolean recordFailure(String mainTask, String subTask, String restoreScore, String error) {
+        List<String> args = new ArrayList<>(Arrays.asList(subTask, String.valueOf(recordExpireAt()),
+                String.valueOf(config.getRetryCount()), restoreScore));
+        args.addAll(backoffArgs());
+        args.addAll(deadLetterArgs(mainTask, error));
+        List<String> keys = new ArrayList<>(Arrays.asList(generateRetryRecordKey(mainTask), rdsSubTask.generateKey(mainTask)));
+        keys.addAll(deadLetterStore.getScriptKeys());
+        return client.execute("retry.recordFailure", jedis -> {
+            Object result = RECORD_FAILURE_SCRIPT.eval(jedis, keys, args);
+            return result != null && ((Long) result) == 1;
+        });
+    }
+}
@@ -0,0 +1,122 @@
+package com.lf.xcode.rds.task.rdsbatch;
+
+import com.lf.xcode.rds.task.metrics.TaskMetrics;
+import com.lf.xcode.rds.task.rdsbatch.config.BatchTaskConfig;
+import com.lf.xcode.rds.task.rdstask.ExecuteQueue;
+import com.lf.xcode.rds.task.rdstask.PartitionLease;
+import com.lf.xcode.rds.task.rdstask.RdsClient;
+import com.lf.xcode.rds.task.rdstask.RdsPartitionLease;
+import com.lf.xcode.rds.task.rdstask.RdsQueue;
+import com.lf.xcode.rds.task.rdstask.RdsShardedQueue;
+import com.lf.xcode.rds.task.rdstask.RdsSignal;
+import com.lf.xcode.rds.task.rdstask.RdsZsetTask;
+import com.lf.xcode.rds.task.rdstask.TaskSignal;
+import com.lf.xcode.rds.task.rdstask.ZsetTask;
+import lombok.Getter;
+import redis.clients.jedis.Jedis;
+
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 基于redis的任务存储引擎
+ */
+@Getter
+public class RdsTaskEngine implements TaskEngine {
+
+    private final Supplier<Jedis> jedisSupplier;
+    //分布式锁
+    private final Function<Supplier<Boolean>, Boolean> distributedLock;
+    //调度指标
+    private final TaskMetrics metrics;
+    //redis操作执行器，所有组件共用
+    private final RdsClient client;
+
+    public RdsTaskEngine(Supplier<Jedis> jedisSupplier, Function<Supplier<Boolean>, Boolean> distributedLock) {
+        this(jedisSupplier, distributedLock, TaskMetrics.NOOP);
+    }
+
+    public RdsTaskEngine(Supplier<Jedis> jedisSupplier, Function<Supplier<Boolean>, Boolean> distributedLock, TaskMetrics metrics) {
+        this.jedisSupplier = jedisSupplier;
+        this.distributedLock = distributedLock;
+        this.metrics = metrics == null ? TaskMetrics.NOOP : metrics;
+        this.client = new RdsClient(jedisSupplier, this.metrics);
+    }
+
+    @Override
+    public ZsetTask<String> createZsetTask(String taskType, Supplier<Integer> limitSupplier, Supplier<Long> expireFunc) {
+        return new RdsZsetTask(taskType, client, limitSupplier, expireFunc);
+    }
+
+    @Override
+    public ZsetTask<String> createZsetTask(String taskType, Supplier<Integer> limitSupplier, Supplier<Long> expireFunc,
+                                           Supplier<Long> expireRefreshInterval) {
+        return new RdsZsetTask(taskType, client, limitSupplier, expireFunc, expireRefreshInterval);
+    }
+
+    @Override
+    public ExecuteQueue createExecuteQueue(String name, Supplier<Integer> limit, Supplier<Long> expireFunc,
+                                           Supplier<Boolean> atomicAdmission) {
+        return new RdsQueue(name, client, distributedLock, limit, expireFunc, atomicAdmission);
+    }
+
+    @Override
+    public ExecuteQueue createExecuteQueue(String name, Supplier<Integer> limit, Supplier<Long> expireFunc,
+                                           Supplier<Boolean> atomicAdmission, int shards) {
+        if (shards <= 1) {
+            return createExecuteQueue(name, limit, expireFunc, atomicAdmission);
+        }
+        return new RdsShardedQueue(name, client, distributedLock, limit, expireFunc, shards);
+    }
+
+    @Override
+    public RetryRecorder createRetryRecorder(BatchTaskConfig config, String prefix, ZsetTask<String> subTask) {
+        return new RdsRetryRecorder(config, prefix, client, (RdsZsetTask) subTask);
+    }
+
+    @Override
+    public RetryRecorder createRetryRecorder(BatchTaskConfig config, String prefix, ZsetTask<String> subTask,
+                                             DeadLetterStore deadLetterStore) {
+        return new RdsRetryRecorder(config, prefix, client, (RdsZsetTask) subTask, (RdsDeadLetterStore) deadLetterStore);
+    }
+
+    @Override
+    public DeadLetterStore createDeadLetterStore(BatchTaskConfig config, String prefix) {
+        return new RdsDeadLetterStore(config, prefix, client);
+    }
+
+    @Override
+    public PayloadStore createPayloadStore(BatchTaskConfig config, String prefix) {
+        return new RdsPayloadStore(config, prefix, client);
+    }
+
+    @Override
+    public IdDictionary createIdDictionary(BatchTaskConfig config, String prefix) {
+        return new RdsIdDictionary(config, prefix, client);
+    }
+
+    @Override
+    public BatchResultRecorder createBatchResultRecorder(BatchTaskConfig config, ZsetTask<String> mainTask, Function<String, String> mainTaskKey,
+                                                         ZsetTask<String> subTask, ExecuteQueue executeQueue, RetryRecorder retryRecorder) {
+        return new RdsBatchResultRecorder(config, client, (RdsZsetTask) mainTask, mainTaskKey, (RdsZsetTask) subTask,
+                (RdsQueue) executeQueue, (RdsRetryRecorder) retryRecorder);
+    }
+
+    @Override
+    public TaskSignal createSignal(String name) {
+        return new RdsSignal(name, client);
+    }
+
+    @Override
+    public PartitionLease createPartitionLease(String name, Supplier<Long> leaseTime) {
+        return new RdsPartitionLease(name, client, leaseTime);
+    }
+
+    /**
+     * 当前线程绑定一个连接，期间组件的所有操作复用该连接
+     */
+    @Override
+    public <T> T withSession(Supplier<T> action) {
+        return client.withSession(action);
+    }
+}
@@ -1,70 +1,88 @@
 package com.lf.xcode.rds.task.rdsbatch;
 
-import cn.hutool.core.util.ObjectUtil;
-import com.lf.xcode.rds.task.rdsbatch.config.BatchTaskConfig;
-import com.lf.xcode.rds.task.rdstask.RdsZsetTask;
-import redis.clients.jedis.Jedis;
-
-import java.util.function.Supplier;
-
 /**
  * 任务重试记录
  */
-public class RetryRecorder {
+public interface RetryRecorder {
 
-    private String prefix;
-    private BatchTaskConfig config;
-    private Supplier<Jedis> jedisSupplier;
+    /**
+     * 重试次数+1
+     *
+     * @param mainTask
+     * @param subTask
+     */
+    void addRetryRecord(String mainTask, String subTask);
 
-    public RetryRecorder(BatchTaskConfig config, String prefix, Supplier<Jedis> jedisSupplier) {
-        this.config = config;
-        this.prefix = prefix;
-        this.jedisSupplier = jedisSupplier;
-    }
+    /**
+     * 获取重试次数
+     *
+     * @param mainTask
+     * @param subTask
+     * @return
+     */
+    int getRetryCount(String mainTask, String subTask);
 
-    private static final String RETRY_COUNT_RECORD = "RETRY_RECORD";
+    /**
+     * 删除重试记录
+     *
+     * @param mainTask
+     * @param subTask
+     */
+    void delRetryRecord(String mainTask, String subTask);
 
-    protected String generateRetryRecordKey(String mainTask, String subTask) {
-        return RdsZsetTask.XCODE_RDS_TASK_RDS_ZSET_TASK + prefix + RETRY_COUNT_RECORD + ":" + mainTask + ":" + subTask;
-    }
+    /**
+     * 删除主任务下所有的重试记录
+     *
+     * @param mainTask
+     */
+    void clearRetryRecord(String mainTask);
 
     /**
-     * 重试次数+1
+     * 记录一次失败，并判断是否需要丢弃
+     * 超过最大重试次数时，删除重试记录和子任务
+     * 开启重试退避时，未超过最大重试次数的子任务延迟到下次执行时间
      *
+     * @param mainTask
      * @param subTask
+     * @return true:超过最大重试次数，子任务已经删除
      */
-    protected void addRetryRecord(String mainTask, String subTask) {
-        String key = generateRetryRecordKey(mainTask, subTask);
-        try (Jedis jedis = jedisSupplier.get()) {
-            jedis.incr(key);
-            //留足够的记录时间
-            jedis.pexpireAt(key, System.currentTimeMillis() + config.getTaskTimeout() * (config.getRetryCount() + 1));
-        }
+    default boolean recordFailure(String mainTask, String subTask) {
+        return recordFailure(mainTask, subTask, (String) null);
     }
 
     /**
-     * 获取重试次数
+     * 记录一次失败，并判断是否需要丢弃
+     * 超过最大重试次数时，删除重试记录和子任务，并记录死信
      *
+     * @param mainTask
      * @param subTask
-     * @return
+     * @param error    失败原因
+     * @return true:超过最大重试次数，子任务已经删除
      */
-    protected int getRetryCount(String mainTask, String subTask) {
-        String key = generateRetryRecordKey(mainTask, subTask);
-        try (Jedis jedis = jedisSupplier.get()) {
-            String count = jedis.get(key);
-            return ObjectUtil.isEmpty(count) ? 0 : Integer.parseInt(count);
-        }
-    }
+    boolean recordFailure(String mainTask, String subTask, String error);
 
     /**
-     * 删除重试记录
+     * 记录一次失败，并判断是否需要丢弃
+     * 未超过最大重试次数时，将子任务恢复为指定的分数，开启重试退避时延迟到下次执行时间
      *
+     * @param mainTask
      * @param subTask
+     * @param restoreScore 恢复的分数
+     * @return true:超过最大重试次数，子任务已经删除
      */
-    protected void delRetryRecord(String mainTask, String subTask) {
-        String key = generateRetryRecordKey(mainTask, subTask);
-        try (Jedis jedis = jedisSupplier.get()) {
-            jedis.del(key);
-        }
+    default boolean recordFailure(String mainTask, String subTask, double restoreScore) {
+        return recordFailure(mainTask, subTask, restoreScore, null);
     }
+
+    /**
+     * 记录一次失败，并判断是否需要丢弃
+     * 未超过最大重试次数时，将子任务恢复为指定的分数，超过时记录死信
+     *
+     * @param mainTask
+     * @param subTask
+     * @param restoreScore 恢复的分数
+     * @param error        失败原因
+     * @return true:超过最大重试次数，子任务已经删除
+     */
+    boolean recordFailure(String mainTask, String subTask, double restoreScore, String error);
 }
@@ -0,0 +1,160 @@
+package com.lf.xcode.rds.task.rdsbatch;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 子任务标识编码
+ * 长标识(url、媒体key等)通常有大量相同的前缀，把最后一个分隔符及之前的前缀替换为字典中的短句柄
+ * 编码后 = MARK + 句柄 + MARK + 后缀；没有编码的标识保持原样，以 MARK 开头时为 MARK + MARK + 标识
+ * 1.字典只增不删，同一个标识在所有节点的编码结果相同，完成、心跳时可以直接编码查找
+ * 2.本地缓存字典，只有新前缀/未知句柄才访问存储，一批标识最多一次往返
+ * 3.前缀短于 MIN_PREFIX_LENGTH 或字典达到 idDictionaryMaxSize 后的新前缀不编码
+ * 4.分隔符在创建时确定，修改分隔符会改变已有标识的编码结果
+ */
+public class SubTaskIdCodec {
+
+    //编码标记
+    static final char MARK = '\u0001';
+    //62进制的字符，与lua脚本中一致
+    static final String DIGITS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+    //最短的前缀，更短的前缀替换为句柄节省不了空间
+    static final int MIN_PREFIX_LENGTH = 8;
+
+    private final IdDictionary dictionary;
+    //分隔符
+    private final String delimiters;
+    //本地缓存 前缀 -> 句柄
+    private final Map<String, String> handleCache = new ConcurrentHashMap<>();
+    //本地缓存 句柄 -> 前缀
+    private final Map<String, String> prefixCache = new ConcurrentHashMap<>();
+
+    public SubTaskIdCodec(IdDictionary dictionary, String delimiters) {
+        this.dictionary = dictionary;
+        this.delimiters = delimiters;
+    }
+
+    /**
+     * 62进制
+     *
+     * @param n
+     * @return
+     */
+    static String base62(long n) {
+        StringBuilder builder = new StringBuilder();
+        do {
+            builder.append(DIGITS.charAt((int) (n % 62)));
+            n /= 62;
+        } while (n > 0);
+        return builder.reverse().toString();
+    }
+
+    /**
+     * 前缀的结束位置，最后一个分隔符之后
+     *
+     * @param id
+     * @return 没有可以编码的前缀返回-1
+     */
+    private int prefixEnd(String id) {
+        int end = -1;
+        for (int i = 0; i < delimiters.length(); i++) {
+            end = Math.max(end, id.lastIndexOf(delimiters.charAt(i)));
+        }
+        return end + 1 >= MIN_PREFIX_LENGTH ? end + 1 : -1;
+    }
+
+    public String encode(String id) {
+        return encode(Collections.singletonList(id)).get(id);
+    }
+
+    /**
+     * 批量编码，缓存中没有的前缀一次往返分配句柄
+     *
+     * @param ids
+     * @return 标识 -> 编码后的标识，顺序与参数一致
+     */
+    public Map<String, String> encode(Collection<String> ids) {
+        Set<String> missing = new HashSet<>();
+        for (String id : ids) {
+            int end = prefixEnd(id);
+            if (end > 0 && !handleCache.containsKey(id.substring(0, end))) {
+                missing.add(id.substring(0, end));
+            }
+        }
+        if (!missing.isEmpty()) {
+            dictionary.handles(missing).forEach((prefix, handle) -> {
+                handleCache.put(prefix, handle);
+                prefixCache.put(handle, prefix);
+            });
+        }
+        Map<String, String> result = new LinkedHashMap<>(ids.size() * 2);
+        for (String id : ids) {
+            int end = prefixEnd(id);
+            String handle = end > 0 ? handleCache.get(id.substring(0, end)) : null;
+            if (handle != null) {
+                result.put(id, MARK + handle + MARK + id.substring(end));
+            } else {
+                result.put(id, !id.isEmpty() && id.charAt(0) == MARK ? "" + MARK + MARK + id : id);
+            }
+        }
+        return result;
+    }
+
+    public String decode(String member) {
+        return decode(Collections.singletonList(member)).get(member);
+    }
+
+    /**
+     * 批量解码，缓存中没有的句柄一次往返读取
+     *
+     * @param members
+     * @return 编码后的标识 -> 标识，顺序与参数一致，句柄不存在时保持原样
+     */
+    public Map<String, String> decode(Collection<String> members) {
+        Set<String> missing = new HashSet<>();
+        for (String member : members) {
+            String handle = handle(member);
+            if (handle != null && !handle.isEmpty() && !prefixCache.containsKey(handle)) {
+                missing.add(handle);
+            }
+        }
+        if (!missing.isEmpty()) {
+            dictionary.prefixes(missing).forEach((handle, prefix) -> {
+                prefixCache.put(handle, prefix);
+                handleCache.put(prefix, handle);
+            });
+        }
+        Map<String, String> result = new LinkedHashMap<>(members.size() * 2);
+        for (String member : members) {
+            String handle = handle(member);
+            if (handle == null) {
+                result.put(member, member);
+            } else if (handle.isEmpty()) {
+                result.put(member, member.substring(2));
+            } else {
+                String prefix = prefixCache.get(handle);
+                result.put(member, prefix == null ? member : prefix + member.substring(handle.length() + 2));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 编码后的标识中的句柄
+     *
+     * @param member
+     * @return 没有编码返回null，转义的原始标识返回空字符串
+     */
+    private static String handle(String member) {
+        if (member.isEmpty() || member.charAt(0) != MARK) {
+            return null;
+        }
+        int end = member.indexOf(MARK, 1);
+        return end < 0 ? null : member.substring(1, end);
+    }
+}
@@ -0,0 +1,69 @@
+package com.lf.xcode.rds.task.rdsbatch;
+
+import com.lf.xcode.rds.task.rdsbatch.config.BatchTaskConfig;
+
+/**
+ * 子任务调度时间
+ * 等待中的子任务分数 = -最早执行时间，立即执行的子任务分数为 0，执行中为 1
+ * 1.到期的子任务分数在 [-now, 0] 之间，一次范围查询即可获取，按分数倒序为 立即执行 -> 最早到期
+ * 2.未到期的子任务分数小于 -now，不会被分配，也不会删除主任务
+ * 3.失败重试时按指数退避计算下次执行时间: min(上限, 基数 * 倍数^(重试次数-1)) * (1 - 抖动 * 随机数)
+ */
+public final class SubTaskSchedule {
+
+    //等待中的子任务分数下限
+    public static final double MIN_SCORE = -1e15;
+    //未配置上限时的最大退避时间，一年
+    private static final long MAX_DELAY = 1000 * 60 * 60 * 24 * 365L;
+
+    private SubTaskSchedule() {
+    }
+
+    /**
+     * 等待中的子任务分数
+     *
+     * @param notBefore 最早执行时间 单位ms，小于等于0立即执行
+     * @return
+     */
+    public static double waitScore(long notBefore) {
+        return notBefore <= 0 ? AbstractBatchTaskHandler.SUB_TASK_WAIT : -notBefore;
+    }
+
+    /**
+     * 到期的子任务分数下限
+     *
+     * @param now
+     * @return
+     */
+    public static double dueMin(long now) {
+        return -now;
+    }
+
+    /**
+     * 退避时间上限
+     *
+     * @param config
+     * @return
+     */
+    static long maxDelay(BatchTaskConfig config) {
+        long max = config.getRetryBackoffMax();
+        return max > 0 ? Math.min(max, MAX_DELAY) : MAX_DELAY;
+    }
+
+    /**
+     * 第attempt次失败后的重试延迟
+     *
+     * @param config
+     * @param attempt 失败次数，从1开始
+     * @param random  [0, 1) 的随机数
+     * @return 延迟 单位ms，小于0表示没有开启退避
+     */
+    static long retryDelay(BatchTaskConfig config, int attempt, double random) {
+        long base = config.getRetryBackoffBase();
+        if (base <= 0) {
+            return -1;
+        }
+        double delay = Math.min(base * Math.pow(config.getRetryBackoffMultiplier(), attempt - 1), maxDelay(config));
+        return (long) Math.floor(delay * (1 - config.getRetryBackoffJitter() * random));
+    }
+}
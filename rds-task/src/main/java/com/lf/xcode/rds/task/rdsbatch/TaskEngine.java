@@ -0,0 +1,84 @@
+package com.lf.xcode.rds.task.rdsbatch;
+
+import com.lf.xcode.rds.task.metrics.TaskMetrics;
+import com.lf.xcode.rds.task.rdsbatch.config.BatchTaskConfig;
+import com.lf.xcode.rds.task.rdstask.ExecuteQueue;
+import com.lf.xcode.rds.task.rdstask.PartitionLease;
+import com.lf.xcode.rds.task.rdstask.TaskSignal;
+import com.lf.xcode.rds.task.rdstask.ZsetTask;
+
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 任务存储引擎
+ * 创建批量任务处理器使用的主任务、子任务、执行队列、重试记录等组件
+ * 组件之间会相互配合(如认领子任务直接进入执行队列)，必须使用同一个引擎创建
+ */
+public interface TaskEngine {
+
+    ZsetTask<String> createZsetTask(String taskType, Supplier<Integer> limitSupplier, Supplier<Long> expireFunc);
+
+    /**
+     * @param expireRefreshInterval 过期时间的刷新间隔，不需要维护过期时间的引擎忽略该参数
+     */
+    default ZsetTask<String> createZsetTask(String taskType, Supplier<Integer> limitSupplier, Supplier<Long> expireFunc,
+                                            Supplier<Long> expireRefreshInterval) {
+        return createZsetTask(taskType, limitSupplier, expireFunc);
+    }
+
+    ExecuteQueue createExecuteQueue(String name, Supplier<Integer> limit, Supplier<Long> expireFunc,
+                                    Supplier<Boolean> atomicAdmission);
+
+    /**
+     * @param shards 执行队列的分片数量，大于1时使用分片队列，不需要分片的引擎忽略该参数
+     */
+    default ExecuteQueue createExecuteQueue(String name, Supplier<Integer> limit, Supplier<Long> expireFunc,
+                                            Supplier<Boolean> atomicAdmission, int shards) {
+        return createExecuteQueue(name, limit, expireFunc, atomicAdmission);
+    }
+
+    RetryRecorder createRetryRecorder(BatchTaskConfig config, String prefix, ZsetTask<String> subTask);
+
+    /**
+     * @param deadLetterStore 超过最大重试次数的子任务写入的死信存储，不支持死信的引擎忽略该参数
+     */
+    default RetryRecorder createRetryRecorder(BatchTaskConfig config, String prefix, ZsetTask<String> subTask,
+                                              DeadLetterStore deadLetterStore) {
+        return createRetryRecorder(config, prefix, subTask);
+    }
+
+    DeadLetterStore createDeadLetterStore(BatchTaskConfig config, String prefix);
+
+    PayloadStore createPayloadStore(BatchTaskConfig config, String prefix);
+
+    IdDictionary createIdDictionary(BatchTaskConfig config, String prefix);
+
+    BatchResultRecorder createBatchResultRecorder(BatchTaskConfig config, ZsetTask<String> mainTask, Function<String, String> mainTaskKey,
+                                                  ZsetTask<String> subTask, ExecuteQueue executeQueue, RetryRecorder retryRecorder);
+
+    TaskSignal createSignal(String name);
+
+    PartitionLease createPartitionLease(String name, Supplier<Long> leaseTime);
+
+    /**
+     * 在一个存储会话中执行多个操作，如redis引擎在当前线程复用一个连接
+     * 不支持会话的引擎直接执行
+     *
+     * @param action
+     * @param <T>
+     * @return
+     */
+    default <T> T withSession(Supplier<T> action) {
+        return action.get();
+    }
+
+    /**
+     * 调度指标，处理器和引擎创建的组件使用同一个指标
+     *
+     * @return
+     */
+    default TaskMetrics getMetrics() {
+        return TaskMetrics.NOOP;
+    }
+}
@@ -26,6 +26,32 @@ public class BatchTaskConfig {
     private static final TaskType DEFAULT_TASK_TYPE = TaskType.SUB_TASK_NO_LIMIT;
     private static final boolean DEFAULT_USE_THREAD_POOL = false;
     private static final int DEFAULT_THREAD_POOL_SIZE = 10;
+    private static final boolean DEFAULT_USE_ATOMIC_ADMISSION = false;
+    private static final boolean DEFAULT_USE_CLAIM_ON_POLL = false;
+    private static final boolean DEFAULT_USE_EVENT_DISPATCH = false;
+    private static final long DEFAULT_DISPATCH_MAX_IDLE = 1000 * 10L;
+    private static final long DEFAULT_EXPIRE_REFRESH_INTERVAL = 0L;
+    private static final int DEFAULT_PARTITION_COUNT = 1;
+    private static final long DEFAULT_PARTITION_LEASE_TIME = 1000 * 30L;
+    private static final boolean DEFAULT_PARTITION_BUDGET_BORROW = true;
+    private static final boolean DEFAULT_USE_CLUSTER_HASH_TAG = false;
+    private static final int DEFAULT_EXECUTE_QUEUE_SHARDS = 1;
+    private static final long DEFAULT_MAIN_TASK_AGING_INTERVAL = 0L;
+    private static final long DEFAULT_RETRY_BACKOFF_BASE = 0L;
+    private static final double DEFAULT_RETRY_BACKOFF_MULTIPLIER = 2;
+    private static final double DEFAULT_RETRY_BACKOFF_JITTER = 0.2;
+    private static final long DEFAULT_RETRY_BACKOFF_MAX = 1000 * 60 * 5L;
+    private static final int DEFAULT_DEAD_LETTER_MAX_SIZE = 100000;
+    private static final int DEFAULT_TIMEOUT_REAP_BATCH_SIZE = 1000;
+    private static final long DEFAULT_TASK_LEASE_TIME = 0L;
+    private static final int DEFAULT_INGEST_CHUNK_SIZE = 1000;
+    private static final int DEFAULT_INGEST_WINDOW = 8;
+    private static final long DEFAULT_MAIN_TASK_SLOT_CHECK_INTERVAL = 1000L;
+    private static final boolean DEFAULT_USE_PAYLOAD_STORE = false;
+    private static final int DEFAULT_PAYLOAD_COMPRESS_THRESHOLD = 512;
+    private static final boolean DEFAULT_USE_ID_DICTIONARY = false;
+    private static final String DEFAULT_ID_DICTIONARY_DELIMITERS = "/:_";
+    private static final int DEFAULT_ID_DICTIONARY_MAX_SIZE = 100000;
 
 
     //同时执行任务的限制
@@ -54,6 +80,62 @@ public class BatchTaskConfig {
     private int bizThreadPoolSize;
     //主任务分布式锁超时时间,用于防止主任务执行时间不够，其他线程再次执行
     private long mainLoopLockTimeout;
+    //执行队列是否使用lua脚本原子准入，开启后添加执行任务不再使用分布式锁
+    private volatile boolean useAtomicAdmission;
+    //获取子任务时是否直接认领(等待->执行中并加入执行队列)，一次往返完成一批子任务的分配
+    private volatile boolean useClaimOnPoll;
+    //是否使用事件驱动调度，子任务完成/添加、主任务添加时唤醒调度线程
+    private volatile boolean useEventDispatch;
+    //事件驱动调度的最长空闲时间 单位ms，超过该时间没有收到信号也会执行一次调度
+    private volatile long dispatchMaxIdle;
+    //主任务/子任务列表过期时间的刷新间隔 单位ms，间隔内同一个key只在没有过期时间时设置，0表示每次写入都刷新
+    private volatile long expireRefreshInterval;
+    //主任务分区数量，大于1时主任务按hash分到多个分区，每个实例只调度持有租约的分区，运行期间不能修改
+    private int partitionCount;
+    //分区租约时间 单位ms，实例超过该时间没有调度，其持有的分区会被其他实例接管
+    private volatile long partitionLeaseTime;
+    //分区模式下是否允许借用其他分区的执行队列额度，关闭后按持有的分区比例分摊执行队列
+    private volatile boolean partitionBudgetBorrow;
+    //key是否使用cluster hash tag({prefix})，开启后处理器的所有key在同一个slot，jedisSupplier 返回持有 RdsKeys.slot("{prefix}") 的节点连接即可使用redis cluster
+    //不同前缀的处理器分布到不同的节点，开启后key会改变，运行期间不能修改
+    private boolean useClusterHashTag;
+    //执行队列分片数量，大于1时任务按hash分到多个zset，全局数量由计数器维护(只支持原子准入)，运行期间不能修改
+    private int executeQueueShards;
+    //主任务优先级老化间隔 单位ms，等待每超过一个间隔相当于提升一级优先级，小于等于0不老化(同一优先级内先进先出)
+    //默认不老化，只影响之后加入的主任务
+    private volatile long mainTaskAgingInterval;
+    //子任务失败重试的退避基数 单位ms，第n次失败后延迟 基数*倍数^(n-1) 再执行，小于等于0立即重试(默认)
+    private volatile long retryBackoffBase;
+    //退避倍数
+    private volatile double retryBackoffMultiplier;
+    //退避抖动 0-1，实际延迟在 [延迟*(1-抖动), 延迟] 之间随机，避免同时失败的子任务同时重试
+    private volatile double retryBackoffJitter;
+    //退避上限 单位ms
+    private volatile long retryBackoffMax;
+    //死信最大数量，超过时删除最早的死信，小于等于0不记录死信
+    private volatile int deadLetterMaxSize;
+    //超时回收每批的数量，每次调度分批回收所有超时的子任务
+    private volatile int timeoutReapBatchSize;
+    //子任务执行租约 单位ms，大于0时执行超时从进入执行队列或最后一次心跳开始按租约计算，长时间执行的子任务需要定期调用 heartbeat 续约
+    //小于等于0不使用租约，按 taskTimeout 判断超时
+    private volatile long taskLeaseTime;
+    //流式添加子任务每块的数量，每块一次zadd
+    private volatile int ingestChunkSize;
+    //流式添加子任务一次往返发送的块数量，客户端最多缓存 块数量*每块数量 个子任务
+    private volatile int ingestWindow;
+    //等待主任务额度时的检查间隔 单位ms，收到主任务删除的信号会提前检查
+    private volatile long mainTaskSlotCheckInterval;
+    //是否使用子任务负载存储，子任务列表只保存标识，负载在分配时按批读取放入执行参数
+    private volatile boolean usePayloadStore;
+    //负载压缩阈值 单位字节，编码后超过该大小时gzip压缩，小于等于0不压缩
+    private volatile int payloadCompressThreshold;
+    //是否使用字典编码子任务标识，子任务的公共前缀替换为短句柄
+    //只在创建处理器时读取，运行中修改不生效；开启/关闭时子任务等相关key需要为空，所有节点的设置需要一致
+    private volatile boolean useIdDictionary;
+    //子任务标识的分隔符，最后一个分隔符及之前的部分作为前缀，只在创建处理器时读取，要求同 useIdDictionary
+    private volatile String idDictionaryDelimiters;
+    //前缀字典的最大数量，达到后新的前缀不再编码
+    private volatile int idDictionaryMaxSize;
 
     public BatchTaskConfig() {
         this.executeTaskLimit = DEFAULT_EXECUTE_TASK_LIMIT;
@@ -68,5 +150,31 @@ public class BatchTaskConfig {
         this.bizThreadPoolSize = DEFAULT_THREAD_POOL_SIZE;
         this.subTaskExpireTime = DEFAULT_TASK_EXPIRE_TIME;
         this.mainTaskExpireTime = DEFAULT_TASK_EXPIRE_TIME;
+        this.useAtomicAdmission = DEFAULT_USE_ATOMIC_ADMISSION;
+        this.useClaimOnPoll = DEFAULT_USE_CLAIM_ON_POLL;
+        this.useEventDispatch = DEFAULT_USE_EVENT_DISPATCH;
+        this.dispatchMaxIdle = DEFAULT_DISPATCH_MAX_IDLE;
+        this.expireRefreshInterval = DEFAULT_EXPIRE_REFRESH_INTERVAL;
+        this.partitionCount = DEFAULT_PARTITION_COUNT;
+        this.partitionLeaseTime = DEFAULT_PARTITION_LEASE_TIME;
+        this.partitionBudgetBorrow = DEFAULT_PARTITION_BUDGET_BORROW;
+        this.useClusterHashTag = DEFAULT_USE_CLUSTER_HASH_TAG;
+        this.executeQueueShards = DEFAULT_EXECUTE_QUEUE_SHARDS;
+        this.mainTaskAgingInterval = DEFAULT_MAIN_TASK_AGING_INTERVAL;
+        this.retryBackoffBase = DEFAULT_RETRY_BACKOFF_BASE;
+        this.retryBackoffMultiplier = DEFAULT_RETRY_BACKOFF_MULTIPLIER;
+        this.retryBackoffJitter = DEFAULT_RETRY_BACKOFF_JITTER;
+        this.retryBackoffMax = DEFAULT_RETRY_BACKOFF_MAX;
+        this.deadLetterMaxSize = DEFAULT_DEAD_LETTER_MAX_SIZE;
+        this.timeoutReapBatchSize = DEFAULT_TIMEOUT_REAP_BATCH_SIZE;
+        this.taskLeaseTime = DEFAULT_TASK_LEASE_TIME;
+        this.ingestChunkSize = DEFAULT_INGEST_CHUNK_SIZE;
+        this.ingestWindow = DEFAULT_INGEST_WINDOW;
+        this.mainTaskSlotCheckInterval = DEFAULT_MAIN_TASK_SLOT_CHECK_INTERVAL;
+        this.usePayloadStore = DEFAULT_USE_PAYLOAD_STORE;
+        this.payloadCompressThreshold = DEFAULT_PAYLOAD_COMPRESS_THRESHOLD;
+        this.useIdDictionary = DEFAULT_USE_ID_DICTIONARY;
+        this.idDictionaryDelimiters = DEFAULT_ID_DICTIONARY_DELIMITERS;
+        this.idDictionaryMaxSize = DEFAULT_ID_DICTIONARY_MAX_SIZE;
     }
 }
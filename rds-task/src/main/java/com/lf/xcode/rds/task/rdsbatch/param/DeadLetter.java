@@ -0,0 +1,26 @@
+package com.lf.xcode.rds.task.rdsbatch.param;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+import lombok.experimental.Accessors;
+
+/**
+ * 死信
+ * 超过最大重试次数被删除的子任务
+ */
+@Getter
+@Setter
+@ToString
+@Accessors(chain = true)
+public class DeadLetter {
+
+    private String mainTask;
+    private String subTask;
+    //最后一次失败的原因
+    private String error;
+    //失败次数
+    private int attempts;
+    //进入死信的时间
+    private long deadAt;
+}
@@ -16,4 +16,6 @@ public class InvokeParam {
 
     private String mainTask;
     private String subTask;
+    //子任务负载，开启 usePayloadStore 时分配后按批读取，没有负载为null
+    private String payload;
 }
@@ -0,0 +1,79 @@
+package com.lf.xcode.rds.task.rdstask;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * 执行队列
+ * 结构 key:任务,进入队列或最后一次续约的时间
+ * 1.添加任务线程安全，如果超过限制数量或任务已经存在，返回false
+ * 2.获取任务支持，根据执行时间返回
+ * 3.添加时可以记录任务所属的主任务，任务从队列中删除时一起删除，超时回收时据此恢复子任务
+ * 4.执行中的任务可以续约，更新为续约的时间，超时从最后一次续约开始计算
+ */
+public interface ExecuteQueue extends Queue<String> {
+
+    boolean contains(String t);
+
+    Set<String> poll(int count);
+
+    /**
+     * 添加任务并记录任务所属的主任务
+     *
+     * @param t
+     * @param owner 所属的主任务
+     * @return
+     */
+    boolean offer(String t, String owner);
+
+    /**
+     * 获取指定数量的过期任务及所属的主任务
+     *
+     * @param count
+     * @param deadline
+     * @return 任务->所属的主任务，没有记录时为null
+     */
+    Map<String, String> pollOwner(int count, long deadline);
+
+    /**
+     * 续约，仍在队列中的任务更新为续约的时间
+     *
+     * @param tasks
+     * @param time  续约的时间
+     * @return 已经不在队列中的任务
+     */
+    Set<String> renew(Collection<String> tasks, long time);
+
+    /**
+     * 获取指定数量的过期任务
+     *
+     * @param count
+     * @param deadline
+     * @return
+     */
+    Set<String> poll(int count, long deadline);
+
+    /**
+     * 获取任务开始执行的时间
+     *
+     * @param key
+     * @return 不存在返回-1
+     */
+    long getTaskExecuteTime(String key);
+
+    /**
+     * 空闲大小
+     *
+     * @return
+     */
+    int freeSize();
+
+    /**
+     * 是否空闲
+     *
+     * @return
+     */
+    boolean free();
+}
@@ -0,0 +1,24 @@
+package com.lf.xcode.rds.task.rdstask;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 基于内存的分区租约
+ * 只有一个节点，始终持有所有分区
+ */
+public class MemPartitionLease implements PartitionLease {
+
+    @Override
+    public List<Integer> balance(String owner, int partitionCount) {
+        List<Integer> partitions = new ArrayList<>(partitionCount);
+        for (int i = 0; i < partitionCount; i++) {
+            partitions.add(i);
+        }
+        return partitions;
+    }
+
+    @Override
+    public void release(String owner, int partitionCount) {
+    }
+}
@@ -0,0 +1,191 @@
+package com.lf.xcode.rds.task.rdstask;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * 基于内存实现的执行队列，用于单节点部署和测试
+ * 1.添加任务线程安全，如果超过限制数量或任务已经存在，返回false
+ * 2.获取任务支持，根据执行时间返回
+ * 3.超过两倍的任务超时时间没有新任务加入，队列过期清空，同 RdsQueue
+ */
+public class MemQueue extends AbstractQueue<String> implements ExecuteQueue {
+
+    private final MemZset zset = new MemZset();
+    //任务 -> 所属的主任务，和zset使用同一个锁
+    private final Map<String, String> owners = new HashMap<>();
+    private final String name;
+    private final Supplier<Integer> limit;
+    private final Supplier<Long> expireFunc;
+
+    public MemQueue(String name, Supplier<Integer> limit, Supplier<Long> expireFunc) {
+        this.name = name;
+        this.limit = limit;
+        this.expireFunc = expireFunc;
+    }
+
+    private long perTaskTimeout() {
+        Long timeout = expireFunc.get();
+        return timeout == null ? RdsQueue.DEFAULT_TIMEOUT_MS : timeout;
+    }
+
+    /**
+     * 队列过期则清空
+     */
+    private void checkExpire() {
+        if (zset.expired(System.currentTimeMillis())) {
+            synchronized (zset) {
+                if (zset.expired(System.currentTimeMillis())) {
+                    zset.clear();
+                    owners.clear();
+                }
+            }
+        }
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        checkExpire();
+        return zset.iterator();
+    }
+
+    @Override
+    public int size() {
+        checkExpire();
+        return zset.size();
+    }
+
+    @Override
+    public boolean add(String t) {
+        return this.offer(t);
+    }
+
+    @Override
+    public boolean contains(String t) {
+        checkExpire();
+        return zset.score(t) != null;
+    }
+
+    @Override
+    public boolean offer(String s) {
+        return offer(s, null);
+    }
+
+    @Override
+    public boolean offer(String s, String owner) {
+        long now = System.currentTimeMillis();
+        synchronized (zset) {
+            checkExpire();
+            if (zset.size() >= limit.get() || zset.score(s) != null) {
+                return false;
+            }
+            zset.add(s, now);
+            if (owner != null) {
+                owners.put(s, owner);
+            }
+            //过期时间只延长不缩短，保留两倍的超时时间
+            zset.setExpireAt(Math.max(zset.getExpireAt(), now + perTaskTimeout() * 2));
+            return true;
+        }
+    }
+
+    @Override
+    public String poll() {
+        Set<String> set = poll(1);
+        return set.isEmpty() ? null : set.iterator().next();
+    }
+
+    @Override
+    public Set<String> poll(int count) {
+        return poll(count, -1);
+    }
+
+    @Override
+    public Set<String> poll(int count, long deadline) {
+        checkExpire();
+        return deadline < 0 ? Collections.emptySet() : new LinkedHashSet<>(zset.range(0, deadline, 0, count));
+    }
+
+    @Override
+    public Map<String, String> pollOwner(int count, long deadline) {
+        Map<String, String> result = new LinkedHashMap<>();
+        synchronized (zset) {
+            for (String task : poll(count, deadline)) {
+                result.put(task, owners.get(task));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Set<String> renew(Collection<String> tasks, long time) {
+        Set<String> lost = new LinkedHashSet<>();
+        synchronized (zset) {
+            checkExpire();
+            for (String task : tasks) {
+                if (zset.score(task) == null) {
+                    lost.add(task);
+                } else {
+                    zset.add(task, time);
+                }
+            }
+            if (lost.size() < tasks.size()) {
+                zset.setExpireAt(Math.max(zset.getExpireAt(), time + perTaskTimeout() * 2));
+            }
+        }
+        return lost;
+    }
+
+    @Override
+    public long getTaskExecuteTime(String key) {
+        checkExpire();
+        Double score = zset.score(key);
+        return score == null ? -1 : score.longValue();
+    }
+
+    @Override
+    @Deprecated
+    public String peek() {
+        return null;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (o == null) return false;
+        synchronized (zset) {
+            owners.remove(o.toString());
+            return zset.remove(o.toString());
+        }
+    }
+
+    @Override
+    public void clear() {
+        synchronized (zset) {
+            zset.clear();
+            owners.clear();
+        }
+    }
+
+    @Override
+    public int freeSize() {
+        return limit.get() - size();
+    }
+
+    @Override
+    public boolean free() {
+        return freeSize() > 0;
+    }
+
+    @Override
+    public String toString() {
+        return "MemQueue(" + name + ")";
+    }
+}
@@ -0,0 +1,29 @@
+package com.lf.xcode.rds.task.rdstask;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于内存实现的唤醒信号，用于单节点部署和测试
+ * 最多保留一个信号，多次信号会合并
+ */
+public class MemSignal implements TaskSignal {
+
+    private final BlockingQueue<Boolean> signals = new ArrayBlockingQueue<>(1);
+
+    @Override
+    public void signal() {
+        signals.offer(Boolean.TRUE);
+    }
+
+    @Override
+    public boolean await(long timeoutMs) {
+        try {
+            return signals.poll(timeoutMs, TimeUnit.MILLISECONDS) != null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.lf.xcode.rds.task.rdstask;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * 内存有序集合
+ * 1.排序规则同redis-zset: 分数升序，分数相同按成员升序
+ * 2.跳表保存排序，hash保存成员的分数，读操作无锁
+ * 3.写操作由调用方保证互斥
+ */
+class MemZset {
+
+    private final ConcurrentSkipListSet<Member> sorted = new ConcurrentSkipListSet<>();
+    private final Map<String, Double> scoreMap = new ConcurrentHashMap<>();
+    //过期时间点 0:不过期
+    private volatile long expireAt;
+
+    /**
+     * 添加或更新成员
+     *
+     * @param value
+     * @param score
+     * @return true:新增 false:更新
+     */
+    boolean add(String value, double score) {
+        Double old = scoreMap.put(value, score);
+        if (old != null) {
+            if (old == score) {
+                return false;
+            }
+            sorted.remove(new Member(old, value));
+        }
+        sorted.add(new Member(score, value));
+        return old == null;
+    }
+
+    boolean remove(String value) {
+        Double old = scoreMap.remove(value);
+        if (old == null) {
+            return false;
+        }
+        sorted.remove(new Member(old, value));
+        return true;
+    }
+
+    Double score(String value) {
+        return scoreMap.get(value);
+    }
+
+    int size() {
+        return scoreMap.size();
+    }
+
+    boolean isEmpty() {
+        return scoreMap.isEmpty();
+    }
+
+    int count(double min, double max) {
+        return min > max ? 0 : between(min, max).size();
+    }
+
+    /**
+     * 按分数升序获取区间内的成员
+     *
+     * @param min
+     * @param max
+     * @param offset
+     * @param count  小于0时获取全部
+     * @return
+     */
+    List<String> range(double min, double max, int offset, int count) {
+        return min > max ? Collections.emptyList() : page(between(min, max).iterator(), offset, count);
+    }
+
+    /**
+     * 按分数降序获取区间内的成员
+     *
+     * @param max
+     * @param min
+     * @param offset
+     * @param count  小于0时获取全部
+     * @return
+     */
+    List<String> revRange(double max, double min, int offset, int count) {
+        return min > max ? Collections.emptyList() : page(between(min, max).descendingIterator(), offset, count);
+    }
+
+    Iterator<String> iterator() {
+        return page(sorted.iterator(), 0, -1).iterator();
+    }
+
+    void clear() {
+        scoreMap.clear();
+        sorted.clear();
+        expireAt = 0;
+    }
+
+    long getExpireAt() {
+        return expireAt;
+    }
+
+    void setExpireAt(long expireAt) {
+        this.expireAt = expireAt;
+    }
+
+    boolean expired(long now) {
+        return expireAt > 0 && expireAt <= now;
+    }
+
+    private NavigableSet<Member> between(double min, double max) {
+        return sorted.subSet(new Member(min, ""), true, new Member(max, null), true);
+    }
+
+    private static List<String> page(Iterator<Member> iterator, int offset, int count) {
+        List<String> result = new ArrayList<>(count < 0 ? 16 : Math.min(count, 1024));
+        int skip = Math.max(offset, 0);
+        while (iterator.hasNext() && (count < 0 || result.size() < count)) {
+            Member member = iterator.next();
+            if (skip > 0) {
+                skip--;
+                continue;
+            }
+            result.add(member.value);
+        }
+        return result;
+    }
+
+    /**
+     * 成员，value为null时表示同分数下的最大值，只用于区间查询的上界
+     */
+    private static final class Member implements Comparable<Member> {
+        private final double score;
+        private final String value;
+
+        private Member(double score, String value) {
+            this.score = score;
+            this.value = value;
+        }
+
+        @Override
+        public int compareTo(Member o) {
+            int c = Double.compare(score, o.score);
+            if (c != 0) {
+                return c;
+            }
+            if (value == null || o.value == null) {
+                return value == null ? (o.value == null ? 0 : 1) : -1;
+            }
+            return value.compareTo(o.value);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Member && compareTo((Member) o) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Double.hashCode(score) * 31 + (value == null ? 0 : value.hashCode());
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package com.lf.xcode.rds.task.rdstask;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import static com.lf.xcode.rds.task.rdstask.RdsZsetTask.NO_EXPIRE;
+
+/**
+ * 基于内存实现的zset任务，用于单节点部署和测试
+ * 1.分数区间、分页、数量、过期时间的语义同 RdsZsetTask
+ * 2.同一个key的写操作通过ConcurrentHashMap.compute互斥，读操作无锁
+ * 3.集合为空时删除key，同redis
+ */
+public class MemZsetTask implements ZsetTask<String> {
+
+    //默认超时时间: 1个月
+    private static final long DEFAULT_TIMEOUT_MS = 1000 * 60 * 60 * 24 * 30L;
+    private final ConcurrentHashMap<String, MemZset> zsetMap = new ConcurrentHashMap<>();
+    private final String taskType;
+    //默认任务limit
+    private final Supplier<Integer> limitSupplier;
+    //默认过期时间
+    private final Supplier<Long> expireFunc;
+
+    public MemZsetTask(String taskType, Supplier<Integer> limitSupplier, Supplier<Long> expireFunc) {
+        this.taskType = taskType;
+        this.limitSupplier = limitSupplier;
+        this.expireFunc = expireFunc;
+    }
+
+    /**
+     * 获取未过期的集合
+     *
+     * @param key
+     * @return 不存在返回null
+     */
+    private MemZset get(String key) {
+        MemZset zset = zsetMap.get(key);
+        if (zset != null && zset.expired(System.currentTimeMillis())) {
+            zsetMap.remove(key, zset);
+            return null;
+        }
+        return zset;
+    }
+
+    /**
+     * 设置过期时间，规则同 RdsZsetTask
+     *
+     * @param zset
+     */
+    private void setExpire(MemZset zset) {
+        Long expire = expireFunc.get();
+        if (expire == null || expire == NO_EXPIRE) {
+            return;
+        }
+        long timeout = expire == 0 ? DEFAULT_TIMEOUT_MS : expire * (zset.size() + 1);
+        zset.setExpireAt(Math.max(zset.getExpireAt(), System.currentTimeMillis() + timeout));
+    }
+
+    private static MemZset alive(MemZset zset) {
+        return zset == null || zset.expired(System.currentTimeMillis()) ? new MemZset() : zset;
+    }
+
+    @Override
+    public boolean add(String key, String value, double score) {
+        zsetMap.compute(key, (k, zset) -> {
+            zset = alive(zset);
+            zset.add(value, score);
+            setExpire(zset);
+            return zset;
+        });
+        return true;
+    }
+
+    @Override
+    public boolean add(String key, Collection<String> value, double score) {
+        if (value.isEmpty()) {
+            return true;
+        }
+        zsetMap.compute(key, (k, zset) -> {
+            zset = alive(zset);
+            for (String s : value) {
+                zset.add(s, score);
+            }
+            setExpire(zset);
+            return zset;
+        });
+        return true;
+    }
+
+    @Override
+    public boolean addChunks(String key, List<? extends Collection<String>> chunks, double score) {
+        for (Collection<String> chunk : chunks) {
+            add(key, chunk, score);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean set(String key, String value, double score) {
+        return add(key, value, score);
+    }
+
+    @Override
+    public boolean addIfAbsent(String key, String value, double score) {
+        boolean[] added = new boolean[1];
+        zsetMap.compute(key, (k, zset) -> {
+            zset = alive(zset);
+            if (zset.score(value) == null) {
+                zset.add(value, score);
+                setExpire(zset);
+                added[0] = true;
+            }
+            return zset.isEmpty() ? null : zset;
+        });
+        return added[0];
+    }
+
+    @Override
+    public boolean upgrade(String key, String value, double score, double min, double delta) {
+        boolean[] changed = new boolean[1];
+        zsetMap.compute(key, (k, zset) -> {
+            zset = alive(zset);
+            Double old = zset.score(value);
+            if (old == null) {
+                zset.add(value, score);
+                changed[0] = true;
+            } else if (old >= min) {
+                zset.add(value, old + delta);
+                changed[0] = true;
+            }
+            return zset.isEmpty() ? null : zset;
+        });
+        return changed[0];
+    }
+
+    @Override
+    public boolean set(String key, Map<String, Double> scores) {
+        if (scores.isEmpty()) {
+            return true;
+        }
+        zsetMap.compute(key, (k, zset) -> {
+            zset = alive(zset);
+            scores.forEach(zset::add);
+            setExpire(zset);
+            return zset;
+        });
+        return true;
+    }
+
+    @Override
+    public Map<String, Double> scores(String key, Collection<String> values) {
+        Map<String, Double> result = new LinkedHashMap<>(values.size());
+        MemZset zset = get(key);
+        if (zset != null) {
+            for (String value : values) {
+                Double score = zset.score(value);
+                if (score != null) {
+                    result.put(value, score);
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean setIfPresent(String key, String value, double score) {
+        boolean[] updated = new boolean[1];
+        zsetMap.computeIfPresent(key, (k, zset) -> {
+            if (zset.score(value) != null) {
+                zset.add(value, score);
+                updated[0] = true;
+            }
+            return zset;
+        });
+        return updated[0];
+    }
+
+    @Override
+    public Set<String> pollAsc(String key, int pageNum, int pageSize) {
+        return pollAsc(key, 0, -1, pageNum, pageSize);
+    }
+
+    @Override
+    public Set<String> pollAsc(String key, double min, double max, int pageNum, int pageSize) {
+        pageSize = pageSize < 0 ? 100 : pageSize;
+        pageNum = pageNum <= 0 ? 1 : pageNum;
+        return range(key, min, max, (pageNum - 1) * pageSize, pageSize);
+    }
+
+    @Override
+    public Set<String> pollDesc(String key, int pageNum, int pageSize) {
+        return pollDesc(key, -1, 0, pageNum, pageSize);
+    }
+
+    @Override
+    public Set<String> pollDesc(String key, double max, double min, int pageNum, int pageSize) {
+        pageSize = pageSize < 0 ? 10 : pageSize;
+        pageNum = pageNum <= 0 ? 1 : pageNum;
+        MemZset zset = get(key);
+        return zset == null ? Collections.emptySet() :
+                new LinkedHashSet<>(zset.revRange(max, min, (pageNum - 1) * pageSize, pageSize));
+    }
+
+    @Override
+    public Set<String> poll(String key, double score, int pageNum, int pageSize) {
+        return poll(key, score, score, pageNum, pageSize);
+    }
+
+    @Override
+    public Set<String> poll(String key, double min, double max, int pageNum, int pageSize) {
+        pageSize = pageSize < 0 ? 10 : pageSize;
+        pageNum = pageNum <= 0 ? 1 : pageNum;
+        return range(key, min, max, (pageNum - 1) * pageSize, pageSize);
+    }
+
+    private Set<String> range(String key, double min, double max, int offset, int count) {
+        MemZset zset = get(key);
+        return zset == null ? Collections.emptySet() : new LinkedHashSet<>(zset.range(min, max, offset, count));
+    }
+
+    @Override
+    public boolean remove(String key, String value) {
+        boolean[] removed = new boolean[1];
+        zsetMap.computeIfPresent(key, (k, zset) -> {
+            removed[0] = zset.remove(value);
+            return zset.isEmpty() ? null : zset;
+        });
+        return removed[0];
+    }
+
+    @Override
+    public int size(String key) {
+        MemZset zset = get(key);
+        return zset == null ? 0 : zset.size();
+    }
+
+    @Override
+    public int size(String key, double min, double max) {
+        MemZset zset = get(key);
+        return zset == null ? 0 : zset.count(min, max);
+    }
+
+    @Override
+    public Map<String, Integer> sizes(Collection<String> keys, double min, double max) {
+        Map<String, Integer> result = new LinkedHashMap<>(keys.size());
+        for (String key : keys) {
+            result.put(key, size(key, min, max));
+        }
+        return result;
+    }
+
+    /**
+     * 认领任务，同一个key的认领互斥，执行队列的准入由MemQueue保证原子性
+     * 认领的任务在执行队列中记录所属的key
+     *
+     * @param key        任务key
+     * @param max        等待状态的分数上限
+     * @param min        等待状态的分数下限
+     * @param claimScore 认领后的分数
+     * @param count      最多认领的数量
+     * @param queue      执行队列，必须是MemQueue
+     * @return
+     */
+    @Override
+    public Set<String> claim(String key, double max, double min, double claimScore, int count, ExecuteQueue queue) {
+        if (!(queue instanceof MemQueue)) {
+            throw new IllegalArgumentException("MemZsetTask can only claim into MemQueue");
+        }
+        int limit = Math.min(count, queue.freeSize());
+        if (limit <= 0) {
+            return Collections.emptySet();
+        }
+        Set<String> claimed = new LinkedHashSet<>();
+        zsetMap.computeIfPresent(key, (k, zset) -> {
+            if (zset.expired(System.currentTimeMillis())) {
+                return null;
+            }
+            for (String member : zset.revRange(max, min, 0, limit)) {
+                //子任务不可重复执行，已经在执行队列中的跳过
+                if (queue.offer(member, key)) {
+                    zset.add(member, claimScore);
+                    claimed.add(member);
+                }
+            }
+            return zset;
+        });
+        return claimed;
+    }
+
+    @Override
+    public int freeSize(String key) {
+        return limitSupplier.get() - size(key);
+    }
+
+    @Override
+    public void clear(String key) {
+        zsetMap.remove(key);
+    }
+
+    @Override
+    public String toString() {
+        return "MemZsetTask(" + taskType + ")";
+    }
+}
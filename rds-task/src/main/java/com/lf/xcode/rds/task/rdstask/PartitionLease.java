@@ -0,0 +1,29 @@
+package com.lf.xcode.rds.task.rdstask;
+
+import java.util.List;
+
+/**
+ * 分区租约
+ * 主任务按分区保存，多个节点分摊分区，每个节点只调度自己持有租约的分区
+ */
+public interface PartitionLease {
+
+    /**
+     * 登记节点并平衡租约
+     * 1.续约已经持有的分区，超过平均数量的分区释放给其他节点
+     * 2.不足平均数量时获取空闲的分区
+     *
+     * @param owner          节点标识
+     * @param partitionCount 分区数量
+     * @return 当前节点持有的分区
+     */
+    List<Integer> balance(String owner, int partitionCount);
+
+    /**
+     * 释放节点持有的所有分区，节点下线时调用
+     *
+     * @param owner
+     * @param partitionCount
+     */
+    void release(String owner, int partitionCount);
+}
@@ -0,0 +1,77 @@
+package com.lf.xcode.rds.task.rdstask;
+
+import com.lf.xcode.rds.task.metrics.TaskMetrics;
+import lombok.Getter;
+import redis.clients.jedis.Jedis;
+
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * redis操作执行器
+ * 1.所有redis操作通过execute执行，统一借出/归还连接，并按操作记录耗时
+ * 2.withSession 在当前线程绑定一个连接，期间的所有操作复用该连接，结束后归还
+ * 3.没有会话时每个操作单独借出连接，操作内部嵌套的操作(如写入时计算过期时间)复用该连接
+ */
+public class RdsClient {
+
+    @Getter
+    private final Supplier<Jedis> jedisSupplier;
+    @Getter
+    private final TaskMetrics metrics;
+    //当前线程绑定的连接
+    private final ThreadLocal<Jedis> session = new ThreadLocal<>();
+
+    public RdsClient(Supplier<Jedis> jedisSupplier) {
+        this(jedisSupplier, TaskMetrics.NOOP);
+    }
+
+    public RdsClient(Supplier<Jedis> jedisSupplier, TaskMetrics metrics) {
+        this.jedisSupplier = jedisSupplier;
+        this.metrics = metrics == null ? TaskMetrics.NOOP : metrics;
+    }
+
+    /**
+     * 执行redis操作
+     *
+     * @param operation 操作名，用于指标
+     * @param action
+     * @param <T>
+     * @return
+     */
+    public <T> T execute(String operation, Function<Jedis, T> action) {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            //会话中复用连接，没有会话时借出一个连接作为本次操作的会话
+            T result = withSession(() -> action.apply(session.get()));
+            success = true;
+            return result;
+        } finally {
+            metrics.recordRedisOperation(operation, System.nanoTime() - start, success);
+        }
+    }
+
+    /**
+     * 在一个连接上执行多个操作
+     * 嵌套调用时复用外层会话的连接
+     * 会话期间连接一直被占用，不要在会话中执行耗时长的非redis操作
+     *
+     * @param action
+     * @param <T>
+     * @return
+     */
+    public <T> T withSession(Supplier<T> action) {
+        if (session.get() != null) {
+            return action.get();
+        }
+        try (Jedis jedis = jedisSupplier.get()) {
+            session.set(jedis);
+            try {
+                return action.get();
+            } finally {
+                session.remove();
+            }
+        }
+    }
+}
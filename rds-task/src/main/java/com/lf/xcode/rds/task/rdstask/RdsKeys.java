@@ -0,0 +1,37 @@
+package com.lf.xcode.rds.task.rdstask;
+
+import redis.clients.util.JedisClusterCRC16;
+
+/**
+ * redis key 工具
+ * redis cluster 只按key中第一个 {} 内的内容计算slot，同一个 hash tag 的key分配到同一个slot，
+ * 多key的lua脚本、pipeline 只能操作同一个slot的key
+ */
+public class RdsKeys {
+
+    private RdsKeys() {
+    }
+
+    /**
+     * 给任务前缀加上 hash tag，处理器的所有key(主任务、子任务、执行队列、重试记录、信号、分区租约)分配到同一个slot
+     *
+     * @param prefix 任务前缀
+     * @return {prefix}
+     */
+    public static String hashTag(String prefix) {
+        if (prefix.startsWith("{") && prefix.indexOf('}') > 1) {
+            return prefix;
+        }
+        return "{" + prefix + "}";
+    }
+
+    /**
+     * key所在的slot，用于在 jedisSupplier 中选择持有该slot的节点
+     *
+     * @param key
+     * @return
+     */
+    public static int slot(String key) {
+        return JedisClusterCRC16.getSlot(key);
+    }
+}
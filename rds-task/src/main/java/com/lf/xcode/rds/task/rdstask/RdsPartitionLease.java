@@ -0,0 +1,113 @@
+package com.lf.xcode.rds.task.rdstask;
+
+import cn.hutool.core.util.RandomUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static com.lf.xcode.rds.task.constant.NameSpaceConstant.NAMESPACE;
+
+/**
+ * 基于redis实现的分区租约
+ * 1.存活节点保存在zset中，分数为最后一次登记的时间，超过租约时间未登记的节点剔除
+ * 2.每个分区的租约是一个 SET NX PX 的key，值为持有的节点
+ * 3.登记、续约、释放、获取在一个lua脚本中完成，每个节点持有 ceil(分区数量/存活节点数量) 个分区
+ */
+public class RdsPartitionLease implements PartitionLease {
+
+    private static final String XCODE_RDS_TASK_REDIS_LEASE = NAMESPACE + ":LEASE:";
+
+    //平衡脚本 KEYS[1]:存活节点 KEYS[2..]:分区租约 ARGV:节点,当前时间,租约时间,获取分区的起始位置
+    private static final RdsScript BALANCE_SCRIPT = new RdsScript(
+            "local owner = ARGV[1] " +
+                    "local now = tonumber(ARGV[2]) " +
+                    "local lease = tonumber(ARGV[3]) " +
+                    "local n = #KEYS - 1 " +
+                    "redis.call('zadd', KEYS[1], now, owner) " +
+                    "redis.call('zremrangebyscore', KEYS[1], '-inf', now - lease) " +
+                    "redis.call('pexpire', KEYS[1], lease * 2) " +
+                    "local share = math.ceil(n / redis.call('zcard', KEYS[1])) " +
+                    "local owned = {} " +
+                    "for p = 0, n - 1 do " +
+                    "  local key = KEYS[p + 2] " +
+                    "  if redis.call('get', key) == owner then " +
+                    "    if #owned < share then " +
+                    "      redis.call('pexpire', key, lease) " +
+                    "      owned[#owned + 1] = p " +
+                    "    else " +
+                    "      redis.call('del', key) " +
+                    "    end " +
+                    "  end " +
+                    "end " +
+                    "for i = 0, n - 1 do " +
+                    "  if #owned >= share then break end " +
+                    "  local p = (tonumber(ARGV[4]) + i) % n " +
+                    "  if redis.call('set', KEYS[p + 2], owner, 'NX', 'PX', lease) then owned[#owned + 1] = p end " +
+                    "end " +
+                    "return owned");
+
+    //释放脚本 KEYS[1]:存活节点 KEYS[2..]:分区租约 ARGV:节点
+    private static final RdsScript RELEASE_SCRIPT = new RdsScript(
+            "redis.call('zrem', KEYS[1], ARGV[1]) " +
+                    "for i = 2, #KEYS do " +
+                    "  if redis.call('get', KEYS[i]) == ARGV[1] then redis.call('del', KEYS[i]) end " +
+                    "end " +
+                    "return 1");
+
+    private final RdsClient client;
+    private final String name;
+    //租约时间 单位ms
+    private final Supplier<Long> leaseTime;
+
+    public RdsPartitionLease(String name, RdsClient client, Supplier<Long> leaseTime) {
+        this.name = name;
+        this.client = client;
+        this.leaseTime = leaseTime;
+    }
+
+    private String getMembersName() {
+        return XCODE_RDS_TASK_REDIS_LEASE + name + ":MEMBERS";
+    }
+
+    /**
+     * 存活节点和所有分区租约的key，脚本中使用的key全部通过KEYS传入
+     */
+    private List<String> getKeys(int partitionCount) {
+        List<String> keys = new ArrayList<>(partitionCount + 1);
+        keys.add(getMembersName());
+        for (int p = 0; p < partitionCount; p++) {
+            keys.add(XCODE_RDS_TASK_REDIS_LEASE + name + ":P" + p);
+        }
+        return keys;
+    }
+
+    @Override
+    public List<Integer> balance(String owner, int partitionCount) {
+        if (partitionCount <= 0) {
+            return Collections.emptyList();
+        }
+        //随机起始位置，避免所有节点从同一个分区开始争抢
+        int start = RandomUtil.randomInt(partitionCount);
+        return client.execute("lease.balance", jedis -> {
+            Object result = BALANCE_SCRIPT.eval(jedis, getKeys(partitionCount),
+                    Arrays.asList(owner, String.valueOf(System.currentTimeMillis()), String.valueOf(leaseTime.get()),
+                            String.valueOf(start)));
+            @SuppressWarnings("unchecked")
+            List<Long> owned = (List<Long>) result;
+            List<Integer> partitions = new ArrayList<>();
+            if (owned != null) {
+                owned.forEach(p -> partitions.add(p.intValue()));
+            }
+            return partitions;
+        });
+    }
+
+    @Override
+    public void release(String owner, int partitionCount) {
+        client.execute("lease.release", jedis -> RELEASE_SCRIPT.eval(jedis, getKeys(partitionCount),
+                Collections.singletonList(owner)));
+    }
+}
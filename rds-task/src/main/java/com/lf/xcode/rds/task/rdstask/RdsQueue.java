@@ -5,9 +5,17 @@ import lombok.Setter;
 import redis.clients.jedis.Jedis;
 
 import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
@@ -18,14 +26,66 @@ import static com.lf.xcode.rds.task.constant.NameSpaceConstant.NAMESPACE;
  * 结构 key:key,executeTime
  * 1.添加任务线程安全，如果超过限制数量，返回false
  * 2.获取任务支持，根据执行时间返回
+ * 3.原子准入模式下，容量检查、去重、添加、延长过期时间在一个lua脚本中完成，不依赖分布式锁
+ * 4.操作执行队列的lua脚本通过 script 生成，脚本内使用 q_size/q_has/q_add/q_rem/q_expire/q_owner/q_expired 操作队列，
+ * 队列的key放在KEYS的最后，子类可以替换队列的存储结构(如分片)而不用修改脚本
+ * 5.任务所属的主任务保存在 key:OWNER hash 中，和任务一起添加、删除、过期
  */
-public class RdsQueue extends AbstractQueue<String> {
+public class RdsQueue extends AbstractQueue<String> implements ExecuteQueue {
 
     //全局子任务数量限制
     private static final String XCODE_RDS_TASK_REDIS_QUEUE = NAMESPACE + ":QUEUE:";
     public final static long DEFAULT_TIMEOUT_MS = 1000 * 60 * 60 * 24 * 30 * 3;
+    private static final String OWNER_SUFFIX = ":OWNER";
+    //原子准入脚本 KEYS:队列 ARGV:任务,执行时间,限制数量,单个任务超时时间,所属的主任务
+    private static final String OFFER_SCRIPT =
+            "if q_size() >= tonumber(ARGV[3]) then return 0 end " +
+                    "if q_has(ARGV[1]) then return 0 end " +
+                    "q_add(ARGV[1], ARGV[2], ARGV[5]) " +
+                    //过期时间只延长不缩短，保留两倍的超时时间
+                    "q_expire(tonumber(ARGV[4]) * 2) " +
+                    "return 1";
+    //续约脚本 KEYS:队列 ARGV:续约的时间,单个任务超时时间,任务...
+    //返回已经不在队列中的任务
+    private static final String RENEW_SCRIPT =
+            "local lost = {} " +
+                    "for i = 3, #ARGV do " +
+                    "  if q_has(ARGV[i]) then q_add(ARGV[i], ARGV[1]) else lost[#lost + 1] = ARGV[i] end " +
+                    "end " +
+                    "if #lost < #ARGV - 2 then q_expire(tonumber(ARGV[2]) * 2) end " +
+                    "return lost";
+    //删除脚本 KEYS:队列 ARGV:任务
+    private static final String REMOVE_SCRIPT = "return q_rem(ARGV[1])";
+    //过期任务脚本 KEYS:队列 ARGV:截止时间,数量
+    //返回 任务,所属的主任务(没有记录时为空字符串),任务,所属的主任务...
+    private static final String EXPIRED_SCRIPT =
+            "local result = {} " +
+                    "for _, m in ipairs(q_expired(ARGV[1], tonumber(ARGV[2]))) do " +
+                    "  result[#result + 1] = m " +
+                    "  result[#result + 1] = q_owner(m) or '' " +
+                    "end " +
+                    "return result";
+    //队列操作函数 qk:队列在KEYS中的位置 KEYS[qk+1]:所属的主任务
+    private static final String QUEUE_FUNCTIONS =
+            "local function q_size() return redis.call('zcard', KEYS[qk]) end " +
+                    "local function q_has(m) return redis.call('zscore', KEYS[qk], m) end " +
+                    "local function q_add(m, s, o) " +
+                    "  redis.call('zadd', KEYS[qk], s, m) " +
+                    "  if o and o ~= '' then redis.call('hset', KEYS[qk + 1], m, o) end " +
+                    "end " +
+                    "local function q_rem(m) " +
+                    "  redis.call('hdel', KEYS[qk + 1], m) " +
+                    "  return redis.call('zrem', KEYS[qk], m) " +
+                    "end " +
+                    "local function q_expire(ms) " +
+                    "  for k = qk, qk + 1 do if redis.call('pttl', KEYS[k]) < ms then redis.call('pexpire', KEYS[k], ms) end end " +
+                    "end " +
+                    "local function q_owner(m) return redis.call('hget', KEYS[qk + 1], m) end " +
+                    "local function q_expired(deadline, count) " +
+                    "  return redis.call('zrangebyscore', KEYS[qk], 0, deadline, 'LIMIT', 0, count) " +
+                    "end ";
 
-    private Supplier<Jedis> jedisSupplier;
+    protected RdsClient client;
     //分布式锁
     private Function<Supplier<Boolean>, Boolean> distributedLock;
     private String name;
@@ -33,27 +93,80 @@ public class RdsQueue extends AbstractQueue<String> {
     @Getter
     @Setter
     private Supplier<Long> expireFunc;
+    //是否使用lua脚本原子准入
+    private Supplier<Boolean> atomicAdmission;
+    //生成的脚本缓存 脚本内容->脚本，避免每次拼接脚本、计算sha1
+    private final Map<String, RdsScript> scripts = new ConcurrentHashMap<>();
 
     public RdsQueue(String name, Supplier<Jedis> jedisSupplier, Function<Supplier<Boolean>, Boolean> distributedLock,
                     Supplier<Integer> limit, Supplier<Long> expireFunc) {
+        this(name, jedisSupplier, distributedLock, limit, expireFunc, () -> false);
+    }
+
+    public RdsQueue(String name, Supplier<Jedis> jedisSupplier, Function<Supplier<Boolean>, Boolean> distributedLock,
+                    Supplier<Integer> limit, Supplier<Long> expireFunc, Supplier<Boolean> atomicAdmission) {
+        this(name, new RdsClient(jedisSupplier), distributedLock, limit, expireFunc, atomicAdmission);
+    }
+
+    public RdsQueue(String name, RdsClient client, Function<Supplier<Boolean>, Boolean> distributedLock,
+                    Supplier<Integer> limit, Supplier<Long> expireFunc, Supplier<Boolean> atomicAdmission) {
         this.distributedLock = distributedLock;
-        this.jedisSupplier = jedisSupplier;
+        this.client = client;
         this.limit = limit;
         this.name = name;
         this.expireFunc = expireFunc;
+        this.atomicAdmission = atomicAdmission;
     }
 
-    private String getQueueName() {
+    public String getQueueName() {
         return XCODE_RDS_TASK_REDIS_QUEUE + name;
     }
 
+    /**
+     * 任务所属的主任务
+     *
+     * @return
+     */
+    public String getOwnerName() {
+        return getQueueName() + OWNER_SUFFIX;
+    }
+
+    /**
+     * 脚本中队列使用的key，放在KEYS的最后
+     *
+     * @return
+     */
+    public List<String> getScriptKeys() {
+        return Arrays.asList(getQueueName(), getOwnerName());
+    }
+
+    /**
+     * 脚本中的队列操作函数
+     *
+     * @return
+     */
+    protected String queueFunctions() {
+        return QUEUE_FUNCTIONS;
+    }
+
+    /**
+     * 生成操作执行队列的脚本
+     *
+     * @param queueKeyIndex 队列的第一个key在KEYS中的位置，从1开始，同一个脚本内容只能使用同一个位置
+     * @param body          脚本内容，使用 q_size/q_has/q_add/q_rem/q_expire/q_owner/q_expired 操作队列
+     * @return
+     */
+    public RdsScript script(int queueKeyIndex, String body) {
+        return scripts.computeIfAbsent(body, b -> new RdsScript("local qk = " + queueKeyIndex + " " + queueFunctions() + b));
+    }
+
     /**
      * 每次任务添加成功，会更新任务超时时间
      *
      * @return
      */
     private long queueExpireAtTime() {
-        long perTaskTimeout = expireFunc.get() == null ? DEFAULT_TIMEOUT_MS : expireFunc.get();
+        long perTaskTimeout = perTaskTimeout();
         //两倍的超时时间
         long expireAtTime = System.currentTimeMillis() + perTaskTimeout * 2;
         //获取当前的过期时间
@@ -62,16 +175,26 @@ public class RdsQueue extends AbstractQueue<String> {
         return expire > expireAtTime ? expire + perTaskTimeout : expireAtTime;
     }
 
+    /**
+     * 单个任务的超时时间
+     *
+     * @return
+     */
+    long perTaskTimeout() {
+        Long timeout = expireFunc.get();
+        return timeout == null ? DEFAULT_TIMEOUT_MS : timeout;
+    }
+
     /**
      * 获取过期时间
      *
      * @return
      */
     private long expire() {
-        try (Jedis jedis = jedisSupplier.get()) {
+        return client.execute("queue.pttl", jedis -> {
             Long pttl = jedis.pttl(getQueueName());
             return pttl == null ? 0 : pttl;
-        }
+        });
     }
 
     @Override
@@ -82,10 +205,10 @@ public class RdsQueue extends AbstractQueue<String> {
 
     @Override
     public int size() {
-        try (Jedis jedis = jedisSupplier.get()) {
+        return client.execute("queue.size", jedis -> {
             Long zcard = jedis.zcard(getQueueName());
             return zcard == null ? 0 : zcard.intValue();
-        }
+        });
     }
 
 
@@ -94,46 +217,87 @@ public class RdsQueue extends AbstractQueue<String> {
         return this.offer(t);
     }
 
+    @Override
     public boolean contains(String t) {
-        try (Jedis jedis = jedisSupplier.get()) {
-            return jedis.zscore(getQueueName(), t) != null;
-        }
+        return client.execute("queue.contains", jedis -> jedis.zscore(getQueueName(), t) != null);
     }
 
     @Override
     public boolean offer(String s) {
+        return offer(s, null);
+    }
+
+    @Override
+    public boolean offer(String s, String owner) {
+        if (Boolean.TRUE.equals(atomicAdmission.get())) {
+            return offerAtomic(s, owner);
+        }
         String limitKey = getQueueName();
         Boolean result = distributedLock.apply(() -> {
             long now = System.currentTimeMillis();
             //分布式线程安全
-            try (Jedis jedis = jedisSupplier.get()) {
-                Long count = jedis.zcard(limitKey);
-                if (count == null || count < limit.get()) {
-                    //双重锁如果没有改任务添加进来
-                    if (jedis.zscore(getQueueName(), s) == null) {
-                        //添加子任务
-                        jedis.zadd(limitKey, now, s);
-                        return true;
+            try {
+                return client.execute("queue.offer", jedis -> {
+                    Long count = jedis.zcard(limitKey);
+                    if (count == null || count < limit.get()) {
+                        //双重锁如果没有改任务添加进来
+                        if (jedis.zscore(getQueueName(), s) == null) {
+                            //添加子任务
+                            jedis.zadd(limitKey, now, s);
+                            if (owner != null) {
+                                jedis.hset(getOwnerName(), s, owner);
+                            }
+                            return true;
+                        }
                     }
-                }
+                    //add失败
+                    return false;
+                });
             } finally {
-                try (Jedis jedis = jedisSupplier.get()) {
-                    //设置队列过期时间
-                    jedis.pexpireAt(limitKey, queueExpireAtTime());
-                }
+                //设置队列过期时间
+                long expireAt = queueExpireAtTime();
+                client.execute("queue.expire", jedis -> {
+                    jedis.pexpireAt(getOwnerName(), expireAt);
+                    return jedis.pexpireAt(limitKey, expireAt);
+                });
             }
-            //add失败
-            return false;
         });
         return result != null && result;
     }
 
+    /**
+     * 原子准入，一次往返完成容量检查、去重、添加和过期时间延长
+     *
+     * @param s
+     * @return
+     */
+    public boolean offerAtomic(String s) {
+        return offerAtomic(s, null);
+    }
+
+    /**
+     * 原子准入，同时记录任务所属的主任务
+     *
+     * @param s
+     * @param owner 所属的主任务，null不记录
+     * @return
+     */
+    public boolean offerAtomic(String s, String owner) {
+        return client.execute("queue.offerAtomic", jedis -> {
+            Object result = script(1, OFFER_SCRIPT).eval(jedis, getScriptKeys(),
+                    Arrays.asList(s, String.valueOf(System.currentTimeMillis()), String.valueOf(limit.get()),
+                            String.valueOf(perTaskTimeout()), owner == null ? "" : owner));
+            return result != null && ((Long) result) == 1;
+        });
+    }
+
     @Override
     public String poll() {
         Set<String> set = poll(1);
         return set == null || set.isEmpty() ? null : set.iterator().next();
     }
 
+    @Override
     public Set<String> poll(int count) {
         return poll(count, -1);
     }
@@ -145,13 +309,60 @@ public class RdsQueue extends AbstractQueue<String> {
      * @param deadline
      * @return
      */
+    @Override
     public Set<String> poll(int count, long deadline) {
-        try (Jedis jedis = jedisSupplier.get()) {
+        return client.execute("queue.poll", jedis -> {
             String limitKey = getQueueName();
             //从执行队列中获取一个任务，按照执行时间排序
             Set<String> set = jedis.zrangeByScore(limitKey, 0, deadline, 0, count);
-            return set == null ? Collections.emptySet() : set;
+            return set == null ? Collections.<String>emptySet() : set;
+        });
+    }
+
+    /**
+     * 批量续约，一次往返完成
+     *
+     * @param tasks
+     * @param time  续约的时间
+     * @return
+     */
+    @Override
+    public Set<String> renew(Collection<String> tasks, long time) {
+        if (tasks.isEmpty()) {
+            return Collections.emptySet();
         }
+        List<String> args = new ArrayList<>(tasks.size() + 2);
+        args.add(String.valueOf(time));
+        args.add(String.valueOf(perTaskTimeout()));
+        args.addAll(tasks);
+        return client.execute("queue.renew", jedis -> {
+            @SuppressWarnings("unchecked")
+            List<String> lost = (List<String>) script(1, RENEW_SCRIPT).eval(jedis, getScriptKeys(), args);
+            return lost == null ? Collections.<String>emptySet() : new LinkedHashSet<>(lost);
+        });
+    }
+
+    /**
+     * 获取指定数量的过期任务及所属的主任务，一次往返完成
+     *
+     * @param count
+     * @param deadline
+     * @return
+     */
+    @Override
+    public Map<String, String> pollOwner(int count, long deadline) {
+        return client.execute("queue.pollOwner", jedis -> {
+            @SuppressWarnings("unchecked")
+            List<String> items = (List<String>) script(1, EXPIRED_SCRIPT).eval(jedis, getScriptKeys(),
+                    Arrays.asList(String.valueOf(deadline), String.valueOf(count)));
+            Map<String, String> result = new LinkedHashMap<>();
+            if (items != null) {
+                for (int i = 0; i + 1 < items.size(); i += 2) {
+                    result.put(items.get(i), items.get(i + 1).isEmpty() ? null : items.get(i + 1));
+                }
+            }
+            return result;
+        });
     }
 
     /**
@@ -160,12 +371,13 @@ public class RdsQueue extends AbstractQueue<String> {
      * @param key
      * @return
      */
+    @Override
     public long getTaskExecuteTime(String key) {
-        try (Jedis jedis = jedisSupplier.get()) {
+        return client.execute("queue.score", jedis -> {
             String limitKey = getQueueName();
             Double score = jedis.zscore(limitKey, key);
             return score == null ? -1 : score.longValue();
-        }
+        });
     }
 
     @Override
@@ -177,17 +389,24 @@ public class RdsQueue extends AbstractQueue<String> {
     @Override
     public boolean remove(Object o) {
         if (o == null) return false;
-        try (Jedis jedis = jedisSupplier.get()) {
-            String limitKey = getQueueName();
-            return jedis.zrem(limitKey, o.toString()) == 1;
-        }
+        return client.execute("queue.remove", jedis -> {
+            Object result = script(1, REMOVE_SCRIPT).eval(jedis, getScriptKeys(), Collections.singletonList(o.toString()));
+            return result != null && ((Long) result) == 1;
+        });
     }
 
     @Override
     public void clear() {
-        try (Jedis jedis = jedisSupplier.get()) {
-            jedis.del(getQueueName());
-        }
+        client.execute("queue.clear", jedis -> jedis.del(getQueueName(), getOwnerName()));
+    }
+
+    /**
+     * 队列的限制数量
+     *
+     * @return
+     */
+    int limit() {
+        return limit.get();
     }
 
     /**
@@ -195,6 +414,7 @@ public class RdsQueue extends AbstractQueue<String> {
      *
      * @return
      */
+    @Override
     public int freeSize() {
         return limit.get() - size();
     }
@@ -204,6 +424,7 @@ public class RdsQueue extends AbstractQueue<String> {
      *
      * @return
      */
+    @Override
     public boolean free() {
         return freeSize() > 0;
     }
@@ -0,0 +1,39 @@
+package com.lf.xcode.rds.task.rdstask;
+
+import cn.hutool.crypto.digest.DigestUtil;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+
+import java.util.List;
+
+/**
+ * redis lua脚本
+ * 1.优先使用evalsha执行，只传输脚本的sha1
+ * 2.脚本未加载(NOSCRIPT)时回退为eval，eval执行后redis会缓存该脚本
+ */
+public class RdsScript {
+
+    private final String script;
+    private final String sha;
+
+    public RdsScript(String script) {
+        this.script = script;
+        this.sha = DigestUtil.sha1Hex(script);
+    }
+
+    /**
+     * 执行脚本
+     *
+     * @param jedis
+     * @param keys
+     * @param args
+     * @return
+     */
+    public Object eval(Jedis jedis, List<String> keys, List<String> args) {
+        try {
+            return jedis.evalsha(sha, keys, args);
+        } catch (JedisNoScriptException e) {
+            return jedis.eval(script, keys, args);
+        }
+    }
+}
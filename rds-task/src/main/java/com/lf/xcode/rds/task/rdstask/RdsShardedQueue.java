@@ -0,0 +1,282 @@
+package com.lf.xcode.rds.task.rdstask;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 基于redis分片zset实现的执行队列
+ * 1.任务按hash分到多个分片zset，避免单个zset成为热点key
+ * 2.全局数量保存在计数器中，和分片在同一个lua脚本中修改，size/freeSize 只读取计数器
+ * 3.只支持原子准入，超时扫描一次往返读取所有分片，并定期用分片的实际数量校正计数器
+ * 4.分片的hash在java和lua中保持一致: h = (h * 31 + byte) % 2147483647，分片 = h % 分片数量
+ * 5.任务所属的主任务按同样的分片保存在每个分片对应的hash中
+ */
+public class RdsShardedQueue extends RdsQueue {
+
+    private static final long HASH_MOD = 2147483647L;
+    //计数器校正间隔 单位ms
+    private static final long RECONCILE_INTERVAL = 1000 * 60L;
+
+    //分片队列操作函数 KEYS[qk]:计数器 KEYS[qk+1..qk+n]:分片 KEYS[qk+n+1..]:分片对应的所属主任务
+    private static final String SHARD_FUNCTIONS =
+            "local q_touched = {} " +
+                    "local q_n = (#KEYS - qk) / 2 " +
+                    "local function q_key(m) " +
+                    "  local h = 0 " +
+                    "  for i = 1, #m do h = (h * 31 + string.byte(m, i)) % " + HASH_MOD + " end " +
+                    "  return qk + 1 + h % q_n " +
+                    "end " +
+                    "local function q_size() return tonumber(redis.call('get', KEYS[qk]) or 0) end " +
+                    "local function q_has(m) return redis.call('zscore', KEYS[q_key(m)], m) end " +
+                    "local function q_add(m, s, o) " +
+                    "  local k = q_key(m) " +
+                    "  if redis.call('zadd', KEYS[k], s, m) == 1 then redis.call('incr', KEYS[qk]) end " +
+                    "  q_touched[k] = true " +
+                    "  if o and o ~= '' then " +
+                    "    redis.call('hset', KEYS[k + q_n], m, o) " +
+                    "    q_touched[k + q_n] = true " +
+                    "  end " +
+                    "end " +
+                    "local function q_rem(m) " +
+                    "  local k = q_key(m) " +
+                    "  redis.call('hdel', KEYS[k + q_n], m) " +
+                    "  local r = redis.call('zrem', KEYS[k], m) " +
+                    "  if r == 1 and redis.call('decr', KEYS[qk]) < 0 then redis.call('set', KEYS[qk], 0) end " +
+                    "  return r " +
+                    "end " +
+                    "local function q_owner(m) return redis.call('hget', KEYS[q_key(m) + q_n], m) end " +
+                    //依次读取每个分片，直到满足数量
+                    "local function q_expired(deadline, count) " +
+                    "  local result = {} " +
+                    "  for i = qk + 1, qk + q_n do " +
+                    "    if #result >= count then break end " +
+                    "    local items = redis.call('zrangebyscore', KEYS[i], 0, deadline, 'LIMIT', 0, count - #result) " +
+                    "    for _, v in ipairs(items) do result[#result + 1] = v end " +
+                    "  end " +
+                    "  return result " +
+                    "end " +
+                    //只延长计数器和本次写入的分片
+                    "local function q_expire(ms) " +
+                    "  q_touched[qk] = true " +
+                    "  for k in pairs(q_touched) do " +
+                    "    if redis.call('pttl', KEYS[k]) < ms then redis.call('pexpire', KEYS[k], ms) end " +
+                    "  end " +
+                    "end ";
+
+    //删除脚本 KEYS:队列 ARGV:任务
+    private static final String REMOVE_SCRIPT = "return q_rem(ARGV[1])";
+
+    //校正计数器函数 ttl:计数器过期时间
+    private static final String RECONCILE_FUNCTION =
+            "local function q_reconcile(ttl) " +
+                    "  local total = 0 " +
+                    "  for i = qk + 1, qk + q_n do total = total + redis.call('zcard', KEYS[i]) end " +
+                    "  if total == 0 then redis.call('del', KEYS[qk]) " +
+                    "  else " +
+                    "    local pttl = redis.call('pttl', KEYS[qk]) " +
+                    "    redis.call('set', KEYS[qk], total) " +
+                    "    redis.call('pexpire', KEYS[qk], math.max(pttl, ttl)) " +
+                    "  end " +
+                    "end ";
+
+    //扫描脚本 KEYS:队列 ARGV:截止时间,每个分片的数量,是否校正计数器,计数器过期时间
+    //返回 任务,分数,任务,分数...
+    private static final String SCAN_SCRIPT = RECONCILE_FUNCTION +
+            "local result = {} " +
+                    "for i = qk + 1, qk + q_n do " +
+                    "  local items = redis.call('zrangebyscore', KEYS[i], 0, ARGV[1], 'WITHSCORES', 'LIMIT', 0, ARGV[2]) " +
+                    "  for _, v in ipairs(items) do result[#result + 1] = v end " +
+                    "end " +
+                    "if ARGV[3] == '1' then q_reconcile(tonumber(ARGV[4])) end " +
+                    "return result";
+
+    //校正计数器脚本 KEYS:队列 ARGV:计数器过期时间
+    private static final String RECONCILE_SCRIPT = RECONCILE_FUNCTION + "q_reconcile(tonumber(ARGV[1])) return 1";
+
+    //分片数量
+    private final int shards;
+    private final List<String> scriptKeys;
+    //下次校正计数器的时间
+    private volatile long nextReconcile;
+
+    public RdsShardedQueue(String name, RdsClient client, Function<Supplier<Boolean>, Boolean> distributedLock,
+                           Supplier<Integer> limit, Supplier<Long> expireFunc, int shards) {
+        super(name, client, distributedLock, limit, expireFunc, () -> true);
+        this.shards = Math.max(shards, 1);
+        List<String> keys = new ArrayList<>(this.shards * 2 + 1);
+        keys.add(getCounterName());
+        for (int i = 0; i < this.shards; i++) {
+            keys.add(getShardName(i));
+        }
+        for (int i = 0; i < this.shards; i++) {
+            keys.add(getShardOwnerName(i));
+        }
+        this.scriptKeys = Collections.unmodifiableList(keys);
+    }
+
+    public String getCounterName() {
+        return getQueueName() + ":COUNT";
+    }
+
+    public String getShardName(int shard) {
+        return getQueueName() + ":S" + shard;
+    }
+
+    public String getShardOwnerName(int shard) {
+        return getShardName(shard) + ":OWNER";
+    }
+
+    /**
+     * 任务所在的分片，与lua脚本中的 q_key 一致
+     *
+     * @param member
+     * @return
+     */
+    int shard(String member) {
+        long h = 0;
+        for (byte b : member.getBytes(StandardCharsets.UTF_8)) {
+            h = (h * 31 + (b & 0xff)) % HASH_MOD;
+        }
+        return (int) (h % shards);
+    }
+
+    private String getShardKey(String member) {
+        return getShardName(shard(member));
+    }
+
+    /**
+     * 计数器+所有分片+所有分片的所属主任务
+     *
+     * @return
+     */
+    @Override
+    public List<String> getScriptKeys() {
+        return scriptKeys;
+    }
+
+    @Override
+    protected String queueFunctions() {
+        return SHARD_FUNCTIONS;
+    }
+
+    @Override
+    public int size() {
+        return client.execute("queue.size", jedis -> {
+            String count = jedis.get(getCounterName());
+            return count == null ? 0 : Math.max(Integer.parseInt(count), 0);
+        });
+    }
+
+    @Override
+    public boolean contains(String t) {
+        return client.execute("queue.contains", jedis -> jedis.zscore(getShardKey(t), t) != null);
+    }
+
+    /**
+     * 分片队列只支持原子准入
+     *
+     * @param s
+     * @return
+     */
+    @Override
+    public boolean offer(String s) {
+        return offerAtomic(s);
+    }
+
+    @Override
+    public boolean offer(String s, String owner) {
+        return offerAtomic(s, owner);
+    }
+
+    /**
+     * 读取所有分片中截止时间之前的任务，按执行时间排序后返回最多count个
+     *
+     * @param count
+     * @param deadline
+     * @return
+     */
+    @Override
+    public Set<String> poll(int count, long deadline) {
+        boolean reconcile = reconcileDue();
+        return client.execute("queue.poll", jedis -> {
+            @SuppressWarnings("unchecked")
+            List<String> items = (List<String>) script(1, SCAN_SCRIPT).eval(jedis, scriptKeys,
+                    Arrays.asList(String.valueOf(deadline), String.valueOf(count), reconcile ? "1" : "0",
+                            String.valueOf(perTaskTimeout() * 2)));
+            if (items == null || items.isEmpty()) {
+                return Collections.<String>emptySet();
+            }
+            List<String[]> scored = new ArrayList<>(items.size() / 2);
+            for (int i = 0; i + 1 < items.size(); i += 2) {
+                scored.add(new String[]{items.get(i), items.get(i + 1)});
+            }
+            scored.sort(Comparator.comparingDouble(item -> Double.parseDouble(item[1])));
+            Set<String> set = new LinkedHashSet<>();
+            for (int i = 0; i < scored.size() && i < count; i++) {
+                set.add(scored.get(i)[0]);
+            }
+            return set;
+        });
+    }
+
+    /**
+     * 读取过期任务及所属的主任务，到达校正间隔时先校正计数器
+     *
+     * @param count
+     * @param deadline
+     * @return
+     */
+    @Override
+    public Map<String, String> pollOwner(int count, long deadline) {
+        if (reconcileDue()) {
+            client.execute("queue.reconcile", jedis -> script(1, RECONCILE_SCRIPT).eval(jedis, scriptKeys,
+                    Collections.singletonList(String.valueOf(perTaskTimeout() * 2))));
+        }
+        return super.pollOwner(count, deadline);
+    }
+
+    /**
+     * 是否到达计数器校正时间，到达时更新下次校正时间
+     *
+     * @return
+     */
+    private boolean reconcileDue() {
+        long now = System.currentTimeMillis();
+        if (now >= nextReconcile) {
+            nextReconcile = now + RECONCILE_INTERVAL;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public long getTaskExecuteTime(String key) {
+        return client.execute("queue.score", jedis -> {
+            Double score = jedis.zscore(getShardKey(key), key);
+            return score == null ? -1 : score.longValue();
+        });
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (o == null) return false;
+        return client.execute("queue.remove", jedis -> {
+            Object result = script(1, REMOVE_SCRIPT).eval(jedis, scriptKeys, Collections.singletonList(o.toString()));
+            return result != null && ((Long) result) == 1;
+        });
+    }
+
+    @Override
+    public void clear() {
+        client.execute("queue.clear", jedis -> jedis.del(scriptKeys.toArray(new String[0])));
+    }
+}
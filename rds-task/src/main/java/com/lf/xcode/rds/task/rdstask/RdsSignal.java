@@ -0,0 +1,65 @@
+package com.lf.xcode.rds.task.rdstask;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+import java.util.List;
+import java.util.function.Supplier;
+
+import static com.lf.xcode.rds.task.constant.NameSpaceConstant.NAMESPACE;
+
+/**
+ * 基于redis-list实现的唤醒信号
+ * 1.signal 发送信号，list最多保留一个元素，多次信号会合并
+ * 2.await 阻塞等待信号，没有等待者时信号会保留到下一次await，不会丢失唤醒
+ */
+public class RdsSignal implements TaskSignal {
+
+    private static final String XCODE_RDS_TASK_REDIS_SIGNAL = NAMESPACE + ":SIGNAL:";
+    private static final String SIGNAL = "1";
+
+    private final RdsClient client;
+    private final String name;
+
+    public RdsSignal(String name, Supplier<Jedis> jedisSupplier) {
+        this(name, new RdsClient(jedisSupplier));
+    }
+
+    public RdsSignal(String name, RdsClient client) {
+        this.name = name;
+        this.client = client;
+    }
+
+    private String getSignalName() {
+        return XCODE_RDS_TASK_REDIS_SIGNAL + name;
+    }
+
+    /**
+     * 发送信号
+     */
+    @Override
+    public void signal() {
+        client.execute("signal.signal", jedis -> {
+            Pipeline pipeline = jedis.pipelined();
+            pipeline.lpush(getSignalName(), SIGNAL);
+            pipeline.ltrim(getSignalName(), 0, 0);
+            pipeline.sync();
+            return null;
+        });
+    }
+
+    /**
+     * 等待信号
+     *
+     * @param timeoutMs 最长等待时间，brpop的精度为秒，不足1秒按1秒等待
+     * @return true:收到信号 false:等待超时
+     */
+    @Override
+    public boolean await(long timeoutMs) {
+        int timeout = (int) Math.max(1, (timeoutMs + 999) / 1000);
+        return client.execute("signal.await", jedis -> {
+            List<String> result = jedis.brpop(timeout, getSignalName());
+            return result != null && !result.isEmpty();
+        });
+    }
+}
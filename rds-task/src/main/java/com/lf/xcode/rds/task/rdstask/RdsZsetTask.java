@@ -2,10 +2,21 @@ package com.lf.xcode.rds.task.rdstask;
 
 import lombok.Setter;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.params.sortedset.ZAddParams;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Supplier;
 
 import static com.lf.xcode.rds.task.constant.NameSpaceConstant.NAMESPACE;
@@ -14,6 +25,7 @@ import static com.lf.xcode.rds.task.constant.NameSpaceConstant.NAMESPACE;
  * 基于redis实现的zset任务
  * 1.limit 非线程安全 不支持自动限制
  * 2.支持排序查询
+ * 3.写入和过期时间维护在一个lua脚本中完成，过期时间在redis中计算，可以按间隔减少刷新次数
  */
 public class RdsZsetTask implements ZsetTask<String> {
 
@@ -21,99 +33,316 @@ public class RdsZsetTask implements ZsetTask<String> {
     public static final String XCODE_RDS_TASK_RDS_ZSET_TASK = NAMESPACE + ":ZSET_TASK:";
     //默认超时时间: 1个月
     private static final long DEFAULT_TIMEOUT_MS = 1000 * 60 * 60 * 24 * 30L;
-    private final Supplier<Jedis> jedisSupplier;
+    private final RdsClient client;
     private final String taskType;
     //默认任务limit
     private final Supplier<Integer> limitSupplier;
     @Setter
     //默认过期时间
     private final Supplier<Long> expireFunc;
+    //过期时间刷新间隔
+    private final Supplier<Long> expireRefreshInterval;
+    //key -> 下次刷新过期时间的时间点
+    private final Map<String, Long> nextExpireRefresh = new ConcurrentHashMap<>();
+    //刷新记录超过该数量时清理已经到期的记录
+    private static final int EXPIRE_REFRESH_PRUNE_SIZE = 10000;
+    //一次zadd的成员数量，避免unpack参数过多
+    private static final int ADD_BATCH_SIZE = 500;
 
     public static final int NO_LIMIT = -1;
     public static final long NO_EXPIRE = -1L;
 
+    //认领脚本 KEYS[1]:任务 KEYS[2..]:执行队列 ARGV:等待分数上限,等待分数下限,认领分数,数量,执行时间,队列限制数量,单个任务超时时间,任务所属的key
+    private static final String CLAIM_SCRIPT =
+            "local count = math.min(tonumber(ARGV[4]), tonumber(ARGV[6]) - q_size()) " +
+                    "if count <= 0 then return {} end " +
+                    "local members = redis.call('zrevrangebyscore', KEYS[1], ARGV[1], ARGV[2], 'LIMIT', 0, count) " +
+                    "local claimed = {} " +
+                    "for _, member in ipairs(members) do " +
+                    //子任务不可重复执行，已经在执行队列中的跳过
+                    "  if not q_has(member) then " +
+                    "    q_add(member, ARGV[5], ARGV[8]) " +
+                    "    redis.call('zadd', KEYS[1], ARGV[3], member) " +
+                    "    claimed[#claimed + 1] = member " +
+                    "  end " +
+                    "end " +
+                    "if #claimed > 0 then q_expire(tonumber(ARGV[7]) * 2) end " +
+                    "return claimed";
+
     public RdsZsetTask(String taskType, Supplier<Jedis> jedisSupplier, Supplier<Integer> limitSupplier, Supplier<Long> expireFunc) {
+        this(taskType, new RdsClient(jedisSupplier), limitSupplier, expireFunc);
+    }
+
+    //维护过期时间 KEYS[1]:任务 ARGV:单个任务过期时间,默认过期时间,是否刷新过期时间
+    private static final String EXPIRE_SCRIPT =
+            "local pttl = redis.call('pttl', KEYS[1]) " +
+                    "if ARGV[3] == '1' or pttl == -1 then " +
+                    "  local expire = tonumber(ARGV[1]) " +
+                    "  local timeout = tonumber(ARGV[2]) " +
+                    "  if expire > 0 then timeout = expire * (redis.call('zcard', KEYS[1]) + 1) end " +
+                    "  if pttl < timeout then redis.call('pexpire', KEYS[1], timeout) end " +
+                    "end ";
+
+    //写入脚本 KEYS[1]:任务 ARGV:单个任务过期时间,默认过期时间,是否刷新过期时间,分数,任务...
+    //过期时间=单个任务过期时间*(任务数量+1)，只延长不缩短；不刷新时只给没有过期时间的key设置，保证key不会永久存在
+    private static final RdsScript ADD_SCRIPT = new RdsScript(
+            "local args = {} " +
+                    "for i = 5, #ARGV do " +
+                    "  args[#args + 1] = ARGV[4] " +
+                    "  args[#args + 1] = ARGV[i] " +
+                    "  if #args >= " + ADD_BATCH_SIZE * 2 + " then redis.call('zadd', KEYS[1], unpack(args)) args = {} end " +
+                    "end " +
+                    "if #args > 0 then redis.call('zadd', KEYS[1], unpack(args)) end " +
+                    EXPIRE_SCRIPT +
+                    "return 1");
+
+    //维护过期时间脚本 KEYS[1]:任务 ARGV:单个任务过期时间,默认过期时间,是否刷新过期时间
+    private static final RdsScript TOUCH_SCRIPT = new RdsScript(EXPIRE_SCRIPT + "return 1");
+
+    //批量设置分数脚本 KEYS[1]:任务 ARGV:单个任务过期时间,默认过期时间,是否刷新过期时间,分数,任务,分数,任务...
+    private static final RdsScript SET_SCRIPT = new RdsScript(
+            "for i = 4, #ARGV, " + ADD_BATCH_SIZE * 2 + " do " +
+                    "  redis.call('zadd', KEYS[1], unpack(ARGV, i, math.min(i + " + (ADD_BATCH_SIZE * 2 - 1) + ", #ARGV))) " +
+                    "end " +
+                    EXPIRE_SCRIPT +
+                    "return 1");
+
+    //不存在时写入脚本 KEYS[1]:任务 ARGV:单个任务过期时间,默认过期时间,是否刷新过期时间,分数,任务
+    private static final RdsScript ADD_NX_SCRIPT = new RdsScript(
+            "local added = redis.call('zadd', KEYS[1], 'NX', ARGV[4], ARGV[5]) " +
+                    EXPIRE_SCRIPT +
+                    "return added");
+
+    //提升分数脚本 KEYS[1]:任务 ARGV:任务,不存在时的分数,最小分数,增量
+    private static final RdsScript UPGRADE_SCRIPT = new RdsScript(
+            "local score = redis.call('zscore', KEYS[1], ARGV[1]) " +
+                    "if not score then redis.call('zadd', KEYS[1], ARGV[2], ARGV[1]) return 1 end " +
+                    "if tonumber(score) >= tonumber(ARGV[3]) then redis.call('zincrby', KEYS[1], ARGV[4], ARGV[1]) return 1 end " +
+                    "return 0");
+
+    public RdsZsetTask(String taskType, RdsClient client, Supplier<Integer> limitSupplier, Supplier<Long> expireFunc) {
+        this(taskType, client, limitSupplier, expireFunc, () -> 0L);
+    }
+
+    /**
+     * @param expireRefreshInterval 过期时间刷新间隔 单位ms，间隔内同一个key只在没有过期时间时设置
+     */
+    public RdsZsetTask(String taskType, RdsClient client, Supplier<Integer> limitSupplier, Supplier<Long> expireFunc,
+                       Supplier<Long> expireRefreshInterval) {
         this.taskType = taskType.endsWith(":") ? taskType : taskType + ":";
-        this.jedisSupplier = jedisSupplier;
+        this.client = client;
         this.expireFunc = expireFunc;
         this.limitSupplier = limitSupplier;
+        this.expireRefreshInterval = expireRefreshInterval;
     }
 
 
-    private String generateKey(String key) {
+    public String generateKey(String key) {
         return XCODE_RDS_TASK_RDS_ZSET_TASK + taskType + key;
     }
 
     /**
-     * 计算任务的过期时间
+     * 本次写入是否需要刷新过期时间
+     * 每个key在刷新间隔内只刷新一次
      *
-     * @param key
+     * @param redisKey
      * @return
      */
-    private long getTaskTimeoutMsAt(String key) {
-        //每个任务的超时时间总和即为，总任务的存活时间
-        if (expireFunc.get() == null || expireFunc.get() == NO_EXPIRE) {
-            return NO_EXPIRE;
+    private boolean shouldRefreshExpire(String redisKey) {
+        Long interval = expireRefreshInterval.get();
+        if (interval == null || interval <= 0) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        Long next = nextExpireRefresh.get(redisKey);
+        if (next != null && next > now) {
+            return false;
         }
-        long timeout = expireFunc.get() == 0 ? DEFAULT_TIMEOUT_MS : expireFunc.get() * (size(key) + 1);
-        long ttl = ttl(key); //获取当前的过期时间
-        long newTTL = System.currentTimeMillis() + timeout;
-        return ttl > newTTL ? ttl + timeout : newTTL;
+        nextExpireRefresh.put(redisKey, now + interval);
+        if (nextExpireRefresh.size() > EXPIRE_REFRESH_PRUNE_SIZE) {
+            nextExpireRefresh.values().removeIf(time -> time <= now);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean add(String key, String value, double score) {
+        return add(key, Collections.singletonList(value), score);
     }
 
     /**
-     * 获取当前的过期时间
-     *
-     * @param key
-     * @return
+     * 写入任务并维护过期时间，一次往返
+     * 每个任务的超时时间总和即为，总任务的存活时间
      */
-    private long ttl(String key) {
-        try (Jedis jedis = jedisSupplier.get()) {
-            Long ttl = jedis.ttl(generateKey(key));
-            return ttl == null ? 0 : ttl;
+    @Override
+    public boolean add(String key, Collection<String> value, double score) {
+        if (value.isEmpty()) {
+            return true;
+        }
+        String redisKey = generateKey(key);
+        Long expire = expireFunc.get();
+        if (expire == null || expire == NO_EXPIRE) {
+            //不设置过期时间
+            HashMap<String, Double> map = new HashMap<>(value.size());
+            for (String s : value) {
+                map.put(s, score);
+            }
+            return client.execute("zset.add", jedis -> {
+                jedis.zadd(redisKey, map);
+                return true;
+            });
         }
+        List<String> args = new ArrayList<>(value.size() + 4);
+        args.add(String.valueOf(expire));
+        args.add(String.valueOf(DEFAULT_TIMEOUT_MS));
+        args.add(shouldRefreshExpire(redisKey) ? "1" : "0");
+        args.add(String.valueOf(score));
+        args.addAll(value);
+        return client.execute("zset.add", jedis -> {
+            ADD_SCRIPT.eval(jedis, Collections.singletonList(redisKey), args);
+            return true;
+        });
     }
 
+    /**
+     * 分块写入，使用pipeline一次往返发送所有块的zadd，最后执行一次过期时间维护
+     * 单个zadd的大小由块的大小决定，避免一次写入过多成员阻塞redis
+     */
     @Override
-    public boolean add(String key, String value, double score) {
-        try (Jedis jedis = jedisSupplier.get()) {
-            jedis.zadd(generateKey(key), score, value);
-            setExpire(jedis, generateKey(key));
+    public boolean addChunks(String key, List<? extends Collection<String>> chunks, double score) {
+        if (chunks.isEmpty()) {
+            return true;
         }
-        return true;
+        String redisKey = generateKey(key);
+        Long expire = expireFunc.get();
+        return client.execute("zset.addChunks", jedis -> {
+            Pipeline pipeline = jedis.pipelined();
+            for (Collection<String> chunk : chunks) {
+                if (chunk.isEmpty()) {
+                    continue;
+                }
+                Map<String, Double> map = new HashMap<>(chunk.size() * 2);
+                for (String s : chunk) {
+                    map.put(s, score);
+                }
+                pipeline.zadd(redisKey, map);
+            }
+            pipeline.sync();
+            if (expire != null && expire != NO_EXPIRE) {
+                TOUCH_SCRIPT.eval(jedis, Collections.singletonList(redisKey), Arrays.asList(String.valueOf(expire),
+                        String.valueOf(DEFAULT_TIMEOUT_MS), shouldRefreshExpire(redisKey) ? "1" : "0"));
+            }
+            return true;
+        });
+    }
+
+    @Override
+    public boolean set(String key, String value, double score) {
+        return add(key, value, score);
     }
 
     /**
-     * 设置过期时间
-     *
-     * @param jedis
-     * @param key
+     * 不存在时写入并维护过期时间，一次往返
      */
-    private void setExpire(Jedis jedis, String key) {
-        long expireTime = getTaskTimeoutMsAt(key);
-        if (expireTime != NO_EXPIRE) {
-            jedis.pexpireAt(key, expireTime);
-        } else {
-            //不设置过期时间
+    @Override
+    public boolean addIfAbsent(String key, String value, double score) {
+        String redisKey = generateKey(key);
+        Long expire = expireFunc.get();
+        if (expire == null || expire == NO_EXPIRE) {
+            return client.execute("zset.addNx", jedis -> {
+                Long added = jedis.zadd(redisKey, score, value, ZAddParams.zAddParams().nx());
+                return added != null && added > 0;
+            });
         }
+        List<String> args = Arrays.asList(String.valueOf(expire), String.valueOf(DEFAULT_TIMEOUT_MS),
+                shouldRefreshExpire(redisKey) ? "1" : "0", String.valueOf(score), value);
+        return client.execute("zset.addNx", jedis -> {
+            Object added = ADD_NX_SCRIPT.eval(jedis, Collections.singletonList(redisKey), args);
+            return added != null && ((Long) added) > 0;
+        });
     }
 
+    /**
+     * 提升分数，只在分数变化时写入，不更新过期时间
+     */
     @Override
-    public boolean add(String key, Collection<String> value, double score) {
-        HashMap<String, Double> map = new HashMap<>(value.size());
-        for (String s : value) {
-            map.put(s, score);
+    public boolean upgrade(String key, String value, double score, double min, double delta) {
+        return client.execute("zset.upgrade", jedis -> {
+            Object changed = UPGRADE_SCRIPT.eval(jedis, Collections.singletonList(generateKey(key)),
+                    Arrays.asList(value, String.valueOf(score), String.valueOf(min), String.valueOf(delta)));
+            return changed != null && ((Long) changed) == 1;
+        });
+    }
+
+    /**
+     * 批量设置分数并维护过期时间，一次往返
+     */
+    @Override
+    public boolean set(String key, Map<String, Double> scores) {
+        if (scores.isEmpty()) {
+            return true;
         }
-        try (Jedis jedis = jedisSupplier.get()) {
-            jedis.zadd(generateKey(key), map);
-            setExpire(jedis, generateKey(key));
+        String redisKey = generateKey(key);
+        Long expire = expireFunc.get();
+        if (expire == null || expire == NO_EXPIRE) {
+            return client.execute("zset.set", jedis -> {
+                jedis.zadd(redisKey, scores);
+                return true;
+            });
         }
-        return true;
+        List<String> args = new ArrayList<>(scores.size() * 2 + 3);
+        args.add(String.valueOf(expire));
+        args.add(String.valueOf(DEFAULT_TIMEOUT_MS));
+        args.add(shouldRefreshExpire(redisKey) ? "1" : "0");
+        scores.forEach((value, score) -> {
+            args.add(String.valueOf(score));
+            args.add(value);
+        });
+        return client.execute("zset.set", jedis -> {
+            SET_SCRIPT.eval(jedis, Collections.singletonList(redisKey), args);
+            return true;
+        });
     }
 
     @Override
-    public boolean set(String key, String value, double score) {
-        return add(key, value, score);
+    public Map<String, Double> scores(String key, Collection<String> values) {
+        Map<String, Double> result = new LinkedHashMap<>(values.size());
+        if (values.isEmpty()) {
+            return result;
+        }
+        String redisKey = generateKey(key);
+        Map<String, Response<Double>> responseMap = new LinkedHashMap<>(values.size());
+        client.execute("zset.scores", jedis -> {
+            Pipeline pipeline = jedis.pipelined();
+            for (String value : values) {
+                responseMap.put(value, pipeline.zscore(redisKey, value));
+            }
+            pipeline.sync();
+            return null;
+        });
+        responseMap.forEach((value, response) -> {
+            Double score = response.get();
+            if (score != null) {
+                result.put(value, score);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 成员存在时才更新分数，不会重新添加已经删除的任务，不更新过期时间
+     *
+     * @param key
+     * @param value
+     * @param score
+     * @return true:分数有变化
+     */
+    @Override
+    public boolean setIfPresent(String key, String value, double score) {
+        return client.execute("zset.setIfPresent", jedis -> {
+            Long changed = jedis.zadd(generateKey(key), score, value, ZAddParams.zAddParams().xx().ch());
+            return changed != null && changed > 0;
+        });
     }
 
     @Override
@@ -126,9 +355,8 @@ public class RdsZsetTask implements ZsetTask<String> {
         pageSize = pageSize < 0 ? 100 : pageSize;
         pageNum = pageNum <= 0 ? 1 : pageNum;
         int offset = (pageNum - 1) * pageSize;
-        try (Jedis jedis = jedisSupplier.get()) {
-            return jedis.zrangeByScore(generateKey(key), min, max, offset, pageSize);
-        }
+        int size = pageSize;
+        return client.execute("zset.range", jedis -> jedis.zrangeByScore(generateKey(key), min, max, offset, size));
     }
 
     @Override
@@ -136,9 +364,8 @@ public class RdsZsetTask implements ZsetTask<String> {
         pageSize = pageSize < 0 ? 10 : pageSize;
         pageNum = pageNum <= 0 ? 1 : pageNum;
         int offset = (pageNum - 1) * pageSize;
-        try (Jedis jedis = jedisSupplier.get()) {
-            return jedis.zrevrangeByScore(generateKey(key), max, min, offset, pageSize);
-        }
+        int size = pageSize;
+        return client.execute("zset.revRange", jedis -> jedis.zrevrangeByScore(generateKey(key), max, min, offset, size));
     }
 
     @Override
@@ -151,9 +378,8 @@ public class RdsZsetTask implements ZsetTask<String> {
         pageSize = pageSize < 0 ? 10 : pageSize;
         pageNum = pageNum <= 0 ? 1 : pageNum;
         int offset = (pageNum - 1) * pageSize;
-        try (Jedis jedis = jedisSupplier.get()) {
-            return jedis.zrangeByScore(generateKey(key), value, value, offset, pageSize);
-        }
+        int size = pageSize;
+        return client.execute("zset.range", jedis -> jedis.zrangeByScore(generateKey(key), value, value, offset, size));
     }
 
     @Override
@@ -161,32 +387,96 @@ public class RdsZsetTask implements ZsetTask<String> {
         pageSize = pageSize < 0 ? 10 : pageSize;
         pageNum = pageNum <= 0 ? 1 : pageNum;
         int offset = (pageNum - 1) * pageSize;
-        try (Jedis jedis = jedisSupplier.get()) {
-            return jedis.zrangeByScore(generateKey(key), min, max, offset, pageSize);
+        int size = pageSize;
+        return client.execute("zset.range", jedis -> jedis.zrangeByScore(generateKey(key), min, max, offset, size));
+    }
+
+    /**
+     * 认领任务
+     * 原子的获取最多count个等待中的任务，修改为认领状态，并加入执行队列
+     * 受执行队列空闲数量限制，已经在执行队列中的任务不会被认领
+     * 认领的任务在执行队列中记录所属的key，用于超时回收
+     *
+     * @param key        任务key
+     * @param max        等待状态的分数上限
+     * @param min        等待状态的分数下限
+     * @param claimScore 认领后的分数
+     * @param count      最多认领的数量
+     * @param executeQueue 执行队列，必须是RdsQueue
+     * @return 认领成功的任务
+     */
+    @Override
+    public Set<String> claim(String key, double max, double min, double claimScore, int count, ExecuteQueue executeQueue) {
+        if (!(executeQueue instanceof RdsQueue)) {
+            throw new IllegalArgumentException("RdsZsetTask can only claim into RdsQueue");
+        }
+        RdsQueue queue = (RdsQueue) executeQueue;
+        if (count <= 0) {
+            return Collections.emptySet();
         }
+        return client.execute("zset.claim", jedis -> {
+            List<String> keys = new ArrayList<>(queue.getScriptKeys().size() + 1);
+            keys.add(generateKey(key));
+            keys.addAll(queue.getScriptKeys());
+            Object result = queue.script(2, CLAIM_SCRIPT).eval(jedis, keys,
+                    Arrays.asList(String.valueOf(max), String.valueOf(min), String.valueOf(claimScore), String.valueOf(count),
+                            String.valueOf(System.currentTimeMillis()), String.valueOf(queue.limit()),
+                            String.valueOf(queue.perTaskTimeout()), key));
+            @SuppressWarnings("unchecked")
+            List<String> claimed = (List<String>) result;
+            return claimed == null ? Collections.<String>emptySet() : new LinkedHashSet<>(claimed);
+        });
     }
 
     @Override
     public boolean remove(String key, String value) {
-        try (Jedis jedis = jedisSupplier.get()) {
-            return jedis.zrem(generateKey(key), value) == 1;
-        }
+        return client.execute("zset.remove", jedis -> jedis.zrem(generateKey(key), value) == 1);
     }
 
     @Override
     public int size(String key) {
-        try (Jedis jedis = jedisSupplier.get()) {
+        return client.execute("zset.size", jedis -> {
             Long zcard = jedis.zcard(generateKey(key));
             return zcard == null ? 0 : zcard.intValue();
-        }
+        });
     }
 
     @Override
     public int size(String key, double min, double max) {
-        try (Jedis jedis = jedisSupplier.get()) {
+        return client.execute("zset.count", jedis -> {
             Long zcount = jedis.zcount(generateKey(key), min + "", max + "");
             return zcount == null ? 0 : zcount.intValue();
+        });
+    }
+
+    /**
+     * 使用pipeline在一个连接上批量执行zcount，只需要一次往返
+     *
+     * @param keys
+     * @param min
+     * @param max
+     * @return
+     */
+    @Override
+    public Map<String, Integer> sizes(Collection<String> keys, double min, double max) {
+        Map<String, Integer> result = new LinkedHashMap<>(keys.size());
+        if (keys.isEmpty()) {
+            return result;
         }
+        Map<String, Response<Long>> responseMap = new LinkedHashMap<>(keys.size());
+        client.execute("zset.counts", jedis -> {
+            Pipeline pipeline = jedis.pipelined();
+            for (String key : keys) {
+                responseMap.put(key, pipeline.zcount(generateKey(key), min, max));
+            }
+            pipeline.sync();
+            return null;
+        });
+        responseMap.forEach((key, response) -> {
+            Long zcount = response.get();
+            result.put(key, zcount == null ? 0 : zcount.intValue());
+        });
+        return result;
     }
 
     @Override
@@ -196,8 +486,7 @@ public class RdsZsetTask implements ZsetTask<String> {
 
     @Override
     public void clear(String key) {
-        try (Jedis jedis = jedisSupplier.get()) {
-            jedis.del(generateKey(key));
-        }
+        nextExpireRefresh.remove(generateKey(key));
+        client.execute("zset.clear", jedis -> jedis.del(generateKey(key)));
     }
 }
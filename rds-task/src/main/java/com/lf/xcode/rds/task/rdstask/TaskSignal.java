@@ -0,0 +1,21 @@
+package com.lf.xcode.rds.task.rdstask;
+
+/**
+ * 唤醒信号
+ * 多次信号会合并为一个，没有等待者时信号会保留到下一次await
+ */
+public interface TaskSignal {
+
+    /**
+     * 发送信号
+     */
+    void signal();
+
+    /**
+     * 等待信号
+     *
+     * @param timeoutMs 最长等待时间
+     * @return true:收到信号 false:等待超时
+     */
+    boolean await(long timeoutMs);
+}
@@ -1,6 +1,8 @@
 package com.lf.xcode.rds.task.rdstask;
 
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public interface ZsetTask<T> {
@@ -9,8 +11,71 @@ public interface ZsetTask<T> {
 
     boolean add(String key, Collection<T> t, double score);
 
+    /**
+     * 分块写入，每块一次zadd，所有块一次往返发送，写入后维护一次过期时间
+     *
+     * @param key
+     * @param chunks 每块的成员
+     * @param score
+     * @return
+     */
+    boolean addChunks(String key, List<? extends Collection<T>> chunks, double score);
+
     boolean set(String key, T value, double score);
 
+    /**
+     * 成员不存在时才添加，同 zadd nx
+     *
+     * @param key
+     * @param value
+     * @param score
+     * @return true:添加成功
+     */
+    boolean addIfAbsent(String key, T value, double score);
+
+    /**
+     * 提升分数
+     * 1.成员不存在时以 score 添加
+     * 2.成员存在且分数不小于 min 时，分数增加 delta
+     * 3.否则不修改，避免重复写入
+     *
+     * @param key
+     * @param value
+     * @param score 不存在时的分数
+     * @param min   需要提升的最小分数
+     * @param delta 增量
+     * @return true:有修改
+     */
+    boolean upgrade(String key, T value, double score, double min, double delta);
+
+    /**
+     * 批量设置成员的分数，不存在的成员会添加
+     *
+     * @param key
+     * @param scores 成员 -> 分数
+     * @return
+     */
+    boolean set(String key, Map<T, Double> scores);
+
+    /**
+     * 批量获取成员的分数
+     *
+     * @param key
+     * @param values
+     * @return 成员 -> 分数，不存在的成员不返回
+     */
+    Map<T, Double> scores(String key, Collection<T> values);
+
+    /**
+     * 成员存在时才更新分数，同 zadd xx
+     *
+     * @param key
+     * @param value
+     * @param score
+     * @return
+     */
+    boolean setIfPresent(String key, T value, double score);
+
     Set<T> pollAsc(String key, int pageNum, int pageSize);
 
     Set<T> pollAsc(String key,double min, double max, int pageNum, int pageSize);
@@ -28,6 +93,30 @@ public interface ZsetTask<T> {
 
     int size(String key, double min, double max);
 
+    /**
+     * 批量获取多个key在分数区间内的数量
+     *
+     * @param keys
+     * @param min
+     * @param max
+     * @return key -> 数量
+     */
+    Map<String, Integer> sizes(Collection<String> keys, double min, double max);
+
+    /**
+     * 认领任务
+     * 原子的获取最多count个等待中的任务(分数在 [min, max] 之间，按分数从高到低)，修改为认领状态，并加入执行队列
+     *
+     * @param key        任务key
+     * @param max        等待状态的分数上限
+     * @param min        等待状态的分数下限
+     * @param claimScore 认领后的分数
+     * @param count      最多认领的数量
+     * @param queue      执行队列，需要与任务使用同一种存储
+     * @return 认领成功的任务
+     */
+    Set<T> claim(String key, double max, double min, double claimScore, int count, ExecuteQueue queue);
+
     int freeSize(String key);
     void clear(String key);
 
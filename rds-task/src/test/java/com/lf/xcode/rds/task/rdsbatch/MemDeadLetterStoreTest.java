@@ -0,0 +1,66 @@
+package com.lf.xcode.rds.task.rdsbatch;
+
+import com.lf.xcode.rds.task.rdsbatch.config.BatchTaskConfig;
+import com.lf.xcode.rds.task.rdsbatch.param.DeadLetter;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 内存死信
+ */
+class MemDeadLetterStoreTest {
+
+    private static DeadLetter deadLetter(int i) {
+        return new DeadLetter().setMainTask("m").setSubTask("s" + i).setError("e").setAttempts(1).setDeadAt(i);
+    }
+
+    @Test
+    void trimOldest() {
+        BatchTaskConfig config = new BatchTaskConfig();
+        config.setDeadLetterMaxSize(3);
+        MemDeadLetterStore store = new MemDeadLetterStore(config);
+        for (int i = 0; i < 5; i++) {
+            store.add(deadLetter(i));
+        }
+        assertEquals(3, store.size());
+        assertEquals("s2", store.list(1, 1).get(0).getSubTask());
+    }
+
+    @Test
+    void trimBounded() {
+        BatchTaskConfig config = new BatchTaskConfig();
+        MemDeadLetterStore store = new MemDeadLetterStore(config);
+        for (int i = 0; i < 2500; i++) {
+            store.add(deadLetter(i));
+        }
+        //调小最大数量后，每次写入最多删除 TRIM_BATCH_SIZE 个
+        config.setDeadLetterMaxSize(1);
+        store.add(deadLetter(2500));
+        assertEquals(2501 - DeadLetterStore.TRIM_BATCH_SIZE, store.size());
+        store.add(deadLetter(2501));
+        assertEquals(2502 - 2 * DeadLetterStore.TRIM_BATCH_SIZE, store.size());
+        store.add(deadLetter(2502));
+        assertEquals(1, store.size());
+        assertEquals("s2502", store.list(1, 1).get(0).getSubTask());
+    }
+
+    @Test
+    void popOldest() {
+        MemDeadLetterStore store = new MemDeadLetterStore(new BatchTaskConfig());
+        for (int i = 0; i < 5; i++) {
+            store.add(deadLetter(i));
+        }
+        List<DeadLetter> popped = store.pop(2);
+        assertEquals(2, popped.size());
+        assertEquals("s0", popped.get(0).getSubTask());
+        assertEquals("s1", popped.get(1).getSubTask());
+        //取出的死信已经删除
+        assertEquals(3, store.size());
+        assertEquals("s2", store.pop(10).get(0).getSubTask());
+        assertTrue(store.pop(10).isEmpty());
+    }
+}
@@ -0,0 +1,55 @@
+package com.lf.xcode.rds.task.rdsbatch;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 负载编码
+ */
+class PayloadCodecTest {
+
+    private static String repeated(int size) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            builder.append("{\"key\":\"value-").append(i % 7).append("\"}");
+        }
+        return builder.toString();
+    }
+
+    @Test
+    void rawRoundTrip() {
+        byte[] data = PayloadCodec.encode("{\"i\":1}", 512);
+        //短于阈值不压缩
+        assertEquals(0, data[0]);
+        assertEquals("{\"i\":1}".length() + 1, data.length);
+        assertEquals("{\"i\":1}", PayloadCodec.decode(data));
+        assertEquals("", PayloadCodec.decode(PayloadCodec.encode("", 512)));
+        assertEquals("中文负载", PayloadCodec.decode(PayloadCodec.encode("中文负载", 512)));
+    }
+
+    @Test
+    void gzipRoundTrip() {
+        String payload = repeated(200);
+        byte[] data = PayloadCodec.encode(payload, 512);
+        assertEquals(1, data[0]);
+        assertTrue(data.length < payload.length());
+        assertEquals(payload, PayloadCodec.decode(data));
+        assertEquals("中文负载", PayloadCodec.decode(PayloadCodec.encode("中文负载", 1)));
+    }
+
+    @Test
+    void incompressibleStaysRaw() {
+        //压缩后更大时保持原样
+        byte[] data = PayloadCodec.encode("abc", 1);
+        assertEquals(0, data[0]);
+        assertEquals("abc", PayloadCodec.decode(data));
+    }
+
+    @Test
+    void unknownType() {
+        assertThrows(IllegalArgumentException.class, () -> PayloadCodec.decode(new byte[]{9, 1, 2}));
+    }
+}
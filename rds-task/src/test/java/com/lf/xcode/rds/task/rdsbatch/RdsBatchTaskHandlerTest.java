@@ -0,0 +1,417 @@
+package com.lf.xcode.rds.task.rdsbatch;
+
+import com.lf.xcode.rds.task.rdsbatch.config.BatchTaskConfig;
+import com.lf.xcode.rds.task.rdsbatch.param.DeadLetter;
+import com.lf.xcode.rds.task.rdsbatch.param.InvokeParam;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 调度
+ */
+class RdsBatchTaskHandlerTest {
+
+    /**
+     * 使用内存引擎的处理器
+     *
+     * @param config
+     * @param biz    业务处理，入参为处理器和执行参数
+     * @return
+     */
+    private static RdsBatchTaskHandler handler(BatchTaskConfig config, BiFunction<RdsBatchTaskHandler, InvokeParam, Boolean> biz) {
+        RdsBatchTaskHandler[] handler = new RdsBatchTaskHandler[1];
+        handler[0] = new RdsBatchTaskHandler(new MemTaskEngine(), config, () -> param -> biz.apply(handler[0], param), "main", "test");
+        return handler[0];
+    }
+
+    /**
+     * 执行成功并完成子任务的处理器
+     *
+     * @param config
+     * @param done   完成的子任务
+     * @return
+     */
+    private static RdsBatchTaskHandler handler(BatchTaskConfig config, Set<String> done) {
+        return handler(config, (handler, param) -> {
+            done.add(param.getSubTask());
+            handler.finishSubTask(param.getMainTask(), param.getSubTask());
+            return true;
+        });
+    }
+
+    private static List<String> subTasks(String mainTask, int size) {
+        List<String> subTaskList = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            subTaskList.add(mainTask + "_" + i);
+        }
+        return subTaskList;
+    }
+
+    private static int due(RdsBatchTaskHandler handler, String mainTask) {
+        return handler.rdsSubTask.size(mainTask, SubTaskSchedule.dueMin(System.currentTimeMillis()), AbstractBatchTaskHandler.SUB_TASK_WAIT);
+    }
+
+    @Test
+    void dispatchAndFinish() {
+        BatchTaskConfig config = new BatchTaskConfig();
+        Set<String> done = ConcurrentHashMap.newKeySet();
+        RdsBatchTaskHandler handler = handler(config, done);
+        for (int i = 0; i < 3; i++) {
+            handler.addSubTask("m" + i, subTasks("m" + i, 7));
+            handler.addMainTask("m" + i);
+        }
+        for (int i = 0; i < 10 && done.size() < 21; i++) {
+            handler.dispatch();
+        }
+        assertEquals(21, done.size());
+        for (int i = 0; i < 3; i++) {
+            assertTrue(handler.isAllSubTaskFinished("m" + i));
+        }
+        assertEquals(config.getExecuteTaskLimit(), handler.executeQueue.freeSize());
+        //子任务都完成后删除主任务
+        handler.dispatch();
+        assertEquals(config.getMainTaskLimit(), handler.mainTaskFreeSize());
+    }
+
+    @Test
+    void bizWorkRunsOutsideSession() {
+        //记录当前线程是否在会话中
+        ThreadLocal<Boolean> inSession = ThreadLocal.withInitial(() -> false);
+        MemTaskEngine engine = new MemTaskEngine() {
+            @Override
+            public <T> T withSession(Supplier<T> action) {
+                if (inSession.get()) {
+                    return action.get();
+                }
+                inSession.set(true);
+                try {
+                    return action.get();
+                } finally {
+                    inSession.set(false);
+                }
+            }
+        };
+        Map<String, Boolean> sessions = new ConcurrentHashMap<>();
+        RdsBatchTaskHandler[] handler = new RdsBatchTaskHandler[1];
+        handler[0] = new RdsBatchTaskHandler(engine, new BatchTaskConfig(), () -> param -> {
+            sessions.put(param.getSubTask(), inSession.get());
+            handler[0].finishSubTask(param.getMainTask(), param.getSubTask());
+            return true;
+        }, "main", "test");
+        for (int i = 0; i < 3; i++) {
+            handler[0].addSubTask("m" + i, subTasks("m" + i, 3));
+            handler[0].addMainTask("m" + i);
+        }
+        handler[0].dispatch();
+        //同步执行业务时不占用会话的连接
+        assertEquals(9, sessions.size());
+        assertFalse(sessions.containsValue(true));
+    }
+
+    @Test
+    void dispatchLimitedByExecuteQueue() {
+        BatchTaskConfig config = new BatchTaskConfig();
+        config.setExecuteTaskLimit(4);
+        Set<String> running = ConcurrentHashMap.newKeySet();
+        //不完成子任务，一直占用执行队列
+        RdsBatchTaskHandler handler = handler(config, (h, param) -> running.add(param.getSubTask()));
+        handler.addSubTask("m", subTasks("m", 10));
+        handler.addMainTask("m");
+        handler.dispatch();
+        handler.dispatch();
+        assertEquals(4, running.size());
+        assertEquals(0, handler.executeQueue.freeSize());
+        assertFalse(handler.executeQueue.free());
+    }
+
+    @Test
+    void weightedFairAllocation() {
+        BatchTaskConfig config = new BatchTaskConfig();
+        config.setExecuteTaskLimit(4);
+        config.setAllocationPolicy(AllocationPolicy.WEIGHTED_FAIR);
+        Map<String, Integer> admitted = new ConcurrentHashMap<>();
+        RdsBatchTaskHandler handler = handler(config, (h, param) -> {
+            admitted.merge(param.getMainTask(), 1, Integer::sum);
+            return true;
+        });
+        handler.addSubTask("heavy", subTasks("heavy", 20));
+        handler.addMainTask("heavy", MainTaskPriority.DEFAULT, 3);
+        handler.addSubTask("light", subTasks("light", 20));
+        handler.addMainTask("light", MainTaskPriority.DEFAULT, 1);
+        handler.dispatch();
+        //按权重 3:1 分配执行队列
+        assertEquals(3, admitted.get("heavy"));
+        assertEquals(1, admitted.get("light"));
+        assertEquals(0, handler.executeQueue.freeSize());
+    }
+
+    @Test
+    void weightedFairDeficitCarriesOver() {
+        BatchTaskConfig config = new BatchTaskConfig();
+        config.setExecuteTaskLimit(1);
+        config.setAllocationPolicy(AllocationPolicy.WEIGHTED_FAIR);
+        Map<String, Integer> admitted = new ConcurrentHashMap<>();
+        RdsBatchTaskHandler handler = handler(config, (h, param) -> {
+            admitted.merge(param.getMainTask(), 1, Integer::sum);
+            h.finishSubTask(param.getMainTask(), param.getSubTask());
+            return true;
+        });
+        handler.addSubTask("a", subTasks("a", 20));
+        handler.addMainTask("a", MainTaskPriority.DEFAULT, 1);
+        handler.addSubTask("b", subTasks("b", 20));
+        handler.addMainTask("b", MainTaskPriority.DEFAULT, 1);
+        //每次只有1个空位，赤字累积后两个主任务轮流分配
+        for (int i = 0; i < 10; i++) {
+            handler.dispatch();
+        }
+        assertEquals(10, admitted.get("a") + admitted.get("b"));
+        assertTrue(Math.abs(admitted.get("a") - admitted.get("b")) <= 2);
+    }
+
+    @Test
+    void delayedSubTaskRunsAfterNotBefore() throws InterruptedException {
+        Set<String> done = ConcurrentHashMap.newKeySet();
+        RdsBatchTaskHandler handler = handler(new BatchTaskConfig(), done);
+        handler.addSubTask("m", "later", System.currentTimeMillis() + 200);
+        handler.addSubTask("m", "now");
+        handler.addMainTask("m");
+        handler.dispatch();
+        assertTrue(done.contains("now"));
+        assertFalse(done.contains("later"));
+        //未到期的子任务不会删除主任务
+        assertEquals(1, handler.rdsSubTask.size("m"));
+        TimeUnit.MILLISECONDS.sleep(300);
+        handler.dispatch();
+        assertTrue(done.contains("later"));
+        assertTrue(handler.isAllSubTaskFinished("m"));
+    }
+
+    @Test
+    void failedSubTaskBacksOff() {
+        BatchTaskConfig config = new BatchTaskConfig();
+        config.setRetryBackoffBase(TimeUnit.MINUTES.toMillis(1));
+        Map<String, Integer> attempts = new ConcurrentHashMap<>();
+        RdsBatchTaskHandler handler = handler(config, (h, param) -> {
+            attempts.merge(param.getSubTask(), 1, Integer::sum);
+            return false;
+        });
+        handler.addSubTask("m", "s");
+        handler.addMainTask("m");
+        handler.dispatch();
+        handler.dispatch();
+        assertEquals(1, attempts.get("s"));
+        //失败后延迟到下次执行时间，子任务保留在主任务中
+        assertEquals(1, handler.rdsSubTask.size("m"));
+        assertEquals(0, due(handler, "m"));
+        assertEquals(config.getExecuteTaskLimit(), handler.executeQueue.freeSize());
+    }
+
+    @Test
+    void failedSubTaskRetriesWithoutBackoff() {
+        BatchTaskConfig config = new BatchTaskConfig();
+        config.setRetryBackoffBase(0);
+        Map<String, Integer> attempts = new ConcurrentHashMap<>();
+        RdsBatchTaskHandler handler = handler(config, (h, param) -> {
+            if (attempts.merge(param.getSubTask(), 1, Integer::sum) < 2) {
+                return false;
+            }
+            h.finishSubTask(param.getMainTask(), param.getSubTask());
+            return true;
+        });
+        handler.addSubTask("m", "s");
+        handler.addMainTask("m");
+        handler.dispatch();
+        handler.dispatch();
+        assertEquals(2, attempts.get("s"));
+        assertTrue(handler.isAllSubTaskFinished("m"));
+    }
+
+    @Test
+    void dispatchReturnsWhenAllSubTasksDelayed() {
+        BatchTaskConfig config = new BatchTaskConfig();
+        Set<String> done = ConcurrentHashMap.newKeySet();
+        RdsBatchTaskHandler handler = handler(config, done);
+        long notBefore = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1);
+        //主任务数量不少于一页，每个主任务只有一个延迟的子任务
+        for (int i = 0; i < 10; i++) {
+            handler.addSubTask("m" + i, "s" + i, notBefore);
+            handler.addMainTask("m" + i);
+        }
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> assertTrue(handler.dispatch()));
+        assertTrue(done.isEmpty());
+        assertEquals(config.getExecuteTaskLimit(), handler.executeQueue.freeSize());
+    }
+
+    @Test
+    void dispatchReachesMainTasksBehindDelayedPage() {
+        Set<String> done = ConcurrentHashMap.newKeySet();
+        BatchTaskConfig config = new BatchTaskConfig();
+        config.setMainLoopSize(3);
+        RdsBatchTaskHandler handler = handler(config, done);
+        long notBefore = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1);
+        //优先级高的一页都是延迟的子任务
+        for (int i = 0; i < 3; i++) {
+            handler.addSubTask("delayed" + i, "d" + i, notBefore);
+            handler.addMainTask("delayed" + i, 1);
+        }
+        handler.addSubTask("due", "s0");
+        handler.addMainTask("due", 9);
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> assertTrue(handler.dispatch()));
+        assertTrue(done.contains("s0"));
+    }
+
+    @Test
+    void deadLetterAndReplay() {
+        BatchTaskConfig config = new BatchTaskConfig();
+        config.setRetryCount(1);
+        config.setRetryBackoffBase(0);
+        AtomicBoolean healthy = new AtomicBoolean(false);
+        Set<String> done = ConcurrentHashMap.newKeySet();
+        RdsBatchTaskHandler handler = handler(config, (h, param) -> {
+            if (!healthy.get()) {
+                return false;
+            }
+            done.add(param.getSubTask());
+            h.finishSubTask(param.getMainTask(), param.getSubTask());
+            return true;
+        });
+        handler.addSubTask("m", "s");
+        handler.addMainTask("m");
+        for (int i = 0; i < 3; i++) {
+            handler.dispatch();
+        }
+        //超过重试次数进入死信，子任务删除
+        assertEquals(1, handler.deadLetterSize());
+        DeadLetter deadLetter = handler.listDeadLetters(1, 10).get(0);
+        assertEquals("m", deadLetter.getMainTask());
+        assertEquals("s", deadLetter.getSubTask());
+        assertEquals(2, deadLetter.getAttempts());
+        assertTrue(handler.isAllSubTaskFinished("m"));
+
+        healthy.set(true);
+        assertEquals(1, handler.replayDeadLetters(10, 10, 0));
+        assertEquals(0, handler.deadLetterSize());
+        assertEquals(1, handler.rdsSubTask.size("m"));
+        handler.dispatch();
+        assertTrue(done.contains("s"));
+        assertTrue(handler.isAllSubTaskFinished("m"));
+    }
+
+    @Test
+    void leaseRenewedByHeartbeat() throws InterruptedException {
+        BatchTaskConfig config = new BatchTaskConfig();
+        config.setTaskLeaseTime(100);
+        config.setRetryBackoffBase(0);
+        Map<String, Integer> attempts = new ConcurrentHashMap<>();
+        RdsBatchTaskHandler handler = handler(config, (h, param) -> null);
+        handler.registerAsyncBizHandler(() -> param -> {
+            attempts.merge(param.getSubTask(), 1, Integer::sum);
+            return new CompletableFuture<>();
+        });
+        handler.addSubTask("m", "slow");
+        handler.addMainTask("m");
+        handler.dispatch();
+        //执行时间超过租约，按时心跳不会被回收
+        for (int i = 0; i < 10; i++) {
+            assertTrue(handler.heartbeat("m", "slow"));
+            TimeUnit.MILLISECONDS.sleep(30);
+            handler.dispatch();
+        }
+        assertEquals(1, attempts.get("slow"));
+        handler.finishSubTask("m", "slow");
+        assertFalse(handler.heartbeat("m", "slow"));
+    }
+
+    @Test
+    void leaseLostWithoutHeartbeat() throws InterruptedException {
+        BatchTaskConfig config = new BatchTaskConfig();
+        config.setTaskLeaseTime(100);
+        config.setRetryBackoffBase(0);
+        Map<String, Integer> attempts = new ConcurrentHashMap<>();
+        RdsBatchTaskHandler handler = handler(config, (h, param) -> null);
+        handler.registerAsyncBizHandler(() -> param -> {
+            attempts.merge(param.getSubTask(), 1, Integer::sum);
+            return new CompletableFuture<>();
+        });
+        handler.addSubTask("m", "lost");
+        handler.addMainTask("m");
+        handler.dispatch();
+        TimeUnit.MILLISECONDS.sleep(200);
+        //租约到期后回收，重新执行
+        handler.dispatch();
+        assertEquals(2, attempts.get("lost"));
+    }
+
+    @Test
+    void heartbeatReportsLostLease() throws InterruptedException {
+        BatchTaskConfig config = new BatchTaskConfig();
+        config.setTaskLeaseTime(100);
+        config.setRetryCount(0);
+        RdsBatchTaskHandler handler = handler(config, (h, param) -> null);
+        handler.registerAsyncBizHandler(() -> param -> new CompletableFuture<>());
+        handler.addSubTask("m", "lost");
+        handler.addMainTask("m");
+        handler.dispatch();
+        TimeUnit.MILLISECONDS.sleep(200);
+        //租约到期后回收，没有重试次数进入死信，心跳返回已经不在执行中
+        handler.dispatch();
+        assertEquals(1, handler.deadLetterSize());
+        List<InvokeParam> lost = handler.heartbeat(Collections.singletonList(new InvokeParam().setMainTask("m").setSubTask("lost")));
+        assertEquals(1, lost.size());
+        assertEquals("lost", lost.get(0).getSubTask());
+    }
+
+    @Test
+    void idDictionaryRoundTrip() {
+        BatchTaskConfig config = new BatchTaskConfig();
+        config.setUseIdDictionary(true);
+        Set<String> done = ConcurrentHashMap.newKeySet();
+        RdsBatchTaskHandler handler = handler(config, done);
+        String subTask = "https://cdn.example.com/media/a.mp4";
+        handler.addSubTask("m", Arrays.asList(subTask, "\u0001raw"));
+        handler.addMainTask("m");
+        handler.dispatch();
+        //业务拿到的是原始标识，完成时按原始标识删除
+        assertEquals(new HashSet<>(Arrays.asList(subTask, "\u0001raw")), done);
+        assertTrue(handler.isAllSubTaskFinished("m"));
+        assertEquals(config.getExecuteTaskLimit(), handler.executeQueue.freeSize());
+    }
+
+    @Test
+    void idDictionaryToggleIgnoredAfterCreate() {
+        for (boolean use : new boolean[]{false, true}) {
+            BatchTaskConfig config = new BatchTaskConfig();
+            config.setUseIdDictionary(use);
+            Set<String> done = ConcurrentHashMap.newKeySet();
+            RdsBatchTaskHandler handler = handler(config, done);
+            String subTask = "https://cdn.example.com/media/a.mp4";
+            handler.addSubTask("m", subTask);
+            handler.addMainTask("m");
+            //运行中切换不生效，已经添加的子任务仍然可以完成
+            config.setUseIdDictionary(!use);
+            handler.dispatch();
+            assertTrue(done.contains(subTask));
+            assertTrue(handler.isAllSubTaskFinished("m"));
+            assertEquals(config.getExecuteTaskLimit(), handler.executeQueue.freeSize());
+        }
+    }
+}
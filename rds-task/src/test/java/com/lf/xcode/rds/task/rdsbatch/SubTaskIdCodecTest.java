@@ -0,0 +1,93 @@
+package com.lf.xcode.rds.task.rdsbatch;
+
+import com.lf.xcode.rds.task.rdsbatch.config.BatchTaskConfig;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 子任务标识编码
+ */
+class SubTaskIdCodecTest {
+
+    private static SubTaskIdCodec codec(IdDictionary dictionary, BatchTaskConfig config) {
+        return new SubTaskIdCodec(dictionary, config.getIdDictionaryDelimiters());
+    }
+
+    @Test
+    void base62() {
+        assertEquals("0", SubTaskIdCodec.base62(0));
+        assertEquals("z", SubTaskIdCodec.base62(61));
+        assertEquals("10", SubTaskIdCodec.base62(62));
+        assertEquals("zz", SubTaskIdCodec.base62(3843));
+    }
+
+    @Test
+    void roundTrip() {
+        BatchTaskConfig config = new BatchTaskConfig();
+        SubTaskIdCodec codec = codec(new MemIdDictionary(config), config);
+        List<String> ids = Arrays.asList("https://cdn.example.com/media/2024/x1.mp4", "https://cdn.example.com/media/2024/x2.mp4",
+                "subMediaId_1_abcde", "short_x", "", "中文前缀/路径/文件");
+        Map<String, String> members = codec.encode(ids);
+        assertEquals(ids, Arrays.asList(members.keySet().toArray()));
+        //相同前缀使用同一个句柄，编码后更短
+        String first = members.get(ids.get(0));
+        assertEquals(SubTaskIdCodec.MARK, first.charAt(0));
+        assertTrue(first.length() < ids.get(0).length());
+        assertEquals(first.substring(0, first.lastIndexOf(SubTaskIdCodec.MARK)),
+                members.get(ids.get(1)).substring(0, members.get(ids.get(1)).lastIndexOf(SubTaskIdCodec.MARK)));
+        //前缀太短不编码
+        assertEquals("short_x", members.get("short_x"));
+        Map<String, String> decoded = codec.decode(members.values());
+        for (String id : ids) {
+            assertEquals(id, decoded.get(members.get(id)));
+            assertEquals(id, codec.decode(codec.encode(id)));
+        }
+    }
+
+    @Test
+    void markEscaped() {
+        BatchTaskConfig config = new BatchTaskConfig();
+        SubTaskIdCodec codec = codec(new MemIdDictionary(config), config);
+        //以 MARK 开头的原始标识转义，不会被当成句柄解码
+        for (String id : Arrays.asList("\u0001", "\u0001weird", "\u00010\u0001x", "\u0001\u0001")) {
+            String member = codec.encode(id);
+            assertNotEquals(id, member);
+            assertEquals("" + SubTaskIdCodec.MARK + SubTaskIdCodec.MARK + id, member);
+            assertEquals(id, codec.decode(member));
+        }
+    }
+
+    @Test
+    void sharedDictionary() {
+        BatchTaskConfig config = new BatchTaskConfig();
+        MemIdDictionary dictionary = new MemIdDictionary(config);
+        //不同节点的本地缓存不同，编码结果相同，可以互相解码
+        SubTaskIdCodec writer = codec(dictionary, config);
+        SubTaskIdCodec reader = codec(dictionary, config);
+        String id = "https://cdn.example.com/media/a.mp4";
+        String member = writer.encode(id);
+        assertEquals(id, reader.decode(member));
+        assertEquals(member, reader.encode(id));
+    }
+
+    @Test
+    void dictionaryFull() {
+        BatchTaskConfig config = new BatchTaskConfig();
+        config.setIdDictionaryMaxSize(1);
+        MemIdDictionary dictionary = new MemIdDictionary(config);
+        SubTaskIdCodec codec = codec(dictionary, config);
+        String encoded = codec.encode("prefixnumber1_a");
+        //字典已满后的新前缀保持原样
+        assertEquals("prefixnumber2_b", codec.encode("prefixnumber2_b"));
+        assertEquals(1, dictionary.size());
+        assertEquals("prefixnumber1_a", codec.decode(encoded));
+        assertEquals("prefixnumber2_b", codec.decode("prefixnumber2_b"));
+    }
+}
@@ -0,0 +1,40 @@
+package com.lf.xcode.rds.task.rdsbatch;
+
+import com.lf.xcode.rds.task.rdsbatch.config.BatchTaskConfig;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 子任务调度时间
+ */
+class SubTaskScheduleTest {
+
+    @Test
+    void waitScore() {
+        assertEquals(AbstractBatchTaskHandler.SUB_TASK_WAIT, SubTaskSchedule.waitScore(0));
+        assertEquals(-1000D, SubTaskSchedule.waitScore(1000));
+        //到期的分数在 [-now, 0] 之间
+        assertTrue(SubTaskSchedule.waitScore(1000) >= SubTaskSchedule.dueMin(2000));
+        assertTrue(SubTaskSchedule.waitScore(3000) < SubTaskSchedule.dueMin(2000));
+    }
+
+    @Test
+    void retryDelay() {
+        BatchTaskConfig config = new BatchTaskConfig();
+        config.setRetryBackoffBase(100);
+        config.setRetryBackoffMultiplier(2);
+        config.setRetryBackoffJitter(0);
+        config.setRetryBackoffMax(300);
+        assertEquals(100, SubTaskSchedule.retryDelay(config, 1, 0.5));
+        assertEquals(200, SubTaskSchedule.retryDelay(config, 2, 0.5));
+        //不超过上限
+        assertEquals(300, SubTaskSchedule.retryDelay(config, 3, 0.5));
+        config.setRetryBackoffJitter(0.5);
+        assertEquals(150, SubTaskSchedule.retryDelay(config, 2, 0.5));
+        //没有开启退避
+        config.setRetryBackoffBase(0);
+        assertEquals(-1, SubTaskSchedule.retryDelay(config, 1, 0.5));
+    }
+}